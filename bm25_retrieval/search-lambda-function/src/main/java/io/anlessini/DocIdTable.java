@@ -0,0 +1,378 @@
+package io.anlessini;
+
+import io.anlessini.store.Settings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The external id of every document of an index, held in primitive arrays so that a hit's id is an array lookup
+ * instead of a stored fields read, which decompresses a whole block of documents including their contents. Ids that
+ * are all canonical decimal numbers are kept as an {@code int[]} or {@code long[]}, any others as UTF-8 bytes in one
+ * arena with an offset per document.
+ * <p>
+ * The table is read from {@value #NAME} if it was published with the index and built from the same commit, or else
+ * built from the id's sorted doc values.
+ */
+public abstract class DocIdTable {
+  private static final Logger LOG = LogManager.getLogger(DocIdTable.class);
+
+  public static final String NAME = "docids.bin";
+  static final int MAGIC = 0x44494454;
+  /**
+   * Version 2 records the id of the commit the table was built from
+   */
+  static final int VERSION = 2;
+  static final byte NUMERIC = 0;
+  static final byte BYTES = 1;
+
+  /**
+   * Returns the id of the document, or null if it has none
+   */
+  public abstract String get(int doc);
+
+  public abstract int maxDoc();
+
+  public abstract long ramBytesUsed();
+
+  /**
+   * Loads the table of the reader according to the {@code DOCID_TABLE} setting: {@code auto} (the default) reads the
+   * table published with the index and otherwise builds it from doc values, {@code docvalues} always builds it and
+   * {@code off} disables it. Returns null if the table is disabled or there is no source for it, in which case ids are
+   * read from stored fields.
+   */
+  public static DocIdTable load(Directory directory, IndexReader reader, String field) throws IOException {
+    String mode = Settings.getString("DOCID_TABLE", "auto");
+    if (mode.equals("off")) return null;
+
+    long start = System.currentTimeMillis();
+    DocIdTable table = null;
+    if (mode.equals("auto") && Arrays.asList(directory.listAll()).contains(NAME)) {
+      try (IndexInput in = directory.openInput(NAME, IOContext.READONCE)) {
+        byte[] data = new byte[Math.toIntExact(in.length())];
+        in.readBytes(data, 0, data.length);
+        table = read(new ByteArrayDataInput(data), commitId(reader));
+      }
+      if (table == null) {
+        // the same number of documents does not mean the same documents in the same order
+        LOG.warn(NAME + " was built from another commit of the index, ignoring it");
+      } else if (table.maxDoc() != reader.maxDoc()) {
+        LOG.warn(NAME + " has " + table.maxDoc() + " documents but the index has " + reader.maxDoc() + ", ignoring it");
+        table = null;
+      }
+    }
+    if (table == null) {
+      table = fromDocValues(reader, field);
+    }
+    if (table == null) {
+      LOG.info("No " + NAME + " or " + field + " doc values found, reading ids from stored fields");
+      return null;
+    }
+    LOG.info("Loaded ids of " + table.maxDoc() + " documents (" + table.ramBytesUsed() + " bytes) in " +
+        (System.currentTimeMillis() - start) + " ms");
+    return table;
+  }
+
+  /**
+   * Builds the table from the sorted doc values of the field, or returns null if a segment has none
+   */
+  public static DocIdTable fromDocValues(IndexReader reader, String field) throws IOException {
+    Builder builder = new Builder(reader.maxDoc());
+    for (LeafReaderContext context : reader.leaves()) {
+      SortedDocValues values = context.reader().getSortedDocValues(field);
+      if (values == null) return null;
+      for (int doc = values.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = values.nextDoc()) {
+        BytesRef id = values.binaryValue();
+        builder.add(context.docBase + doc, id.bytes, id.offset, id.length);
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Identifies the commit a reader was opened on by the id Lucene generates for every commit, which differs between two
+   * builds of an index even if they have the same number of documents. Returns null if the reader is not a
+   * {@link DirectoryReader}.
+   */
+  public static byte[] commitId(IndexReader reader) throws IOException {
+    if (!(reader instanceof DirectoryReader)) return null;
+    IndexCommit commit = ((DirectoryReader) reader).getIndexCommit();
+    return SegmentInfos.readCommit(commit.getDirectory(), commit.getSegmentsFileName()).getId();
+  }
+
+  public static DocIdTable read(DataInput in) throws IOException {
+    return read(in, null);
+  }
+
+  /**
+   * Reads a table, returning null if it was not built from the commit {@code commitId}, unless that is null
+   */
+  public static DocIdTable read(DataInput in, byte[] commitId) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a doc id table");
+    }
+    int version = in.readVInt();
+    if (version < 1 || version > VERSION) {
+      throw new IOException("Unsupported doc id table version " + version);
+    }
+    // tables from before version 2 cannot be matched to a commit
+    byte[] tableCommitId = null;
+    if (version >= 2) {
+      tableCommitId = new byte[in.readVInt()];
+      in.readBytes(tableCommitId, 0, tableCommitId.length);
+    }
+    if (commitId != null && !Arrays.equals(commitId, tableCommitId)) {
+      return null;
+    }
+    int maxDoc = in.readVInt();
+    byte type = in.readByte();
+    if (type == NUMERIC) {
+      long[] ids = new long[maxDoc];
+      long previous = 0;
+      for (int doc = 0; doc < maxDoc; doc++) {
+        ids[doc] = previous += in.readZLong();
+      }
+      return Numeric.of(ids);
+    } else if (type == BYTES) {
+      int size = in.readVInt();
+      byte[] data = new byte[size];
+      int[] offsets = new int[maxDoc + 1];
+      int offset = 0;
+      for (int doc = 0; doc < maxDoc; doc++) {
+        int length = in.readVInt();
+        in.readBytes(data, offset, length);
+        offset += length;
+        offsets[doc + 1] = offset;
+      }
+      return new Bytes(data, offsets);
+    }
+    throw new IOException("Unknown doc id table type " + type);
+  }
+
+  /**
+   * Writes the table, recording that it was built from the commit {@code commitId}
+   */
+  public abstract void write(DataOutput out, byte[] commitId) throws IOException;
+
+  void writeHeader(DataOutput out, byte[] commitId, byte type) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeVInt(VERSION);
+    out.writeVInt(commitId.length);
+    out.writeBytes(commitId, 0, commitId.length);
+    out.writeVInt(maxDoc());
+    out.writeByte(type);
+  }
+
+  /**
+   * Collects the ids of documents added in increasing order, documents that are skipped have no id
+   */
+  public static class Builder {
+    private final int maxDoc;
+    private byte[] data = new byte[1024];
+    private final int[] offsets;
+    /**
+     * The ids as numbers while all of them are, null once one is not
+     */
+    private long[] numbers;
+    private int next;
+
+    public Builder(int maxDoc) {
+      this.maxDoc = maxDoc;
+      this.offsets = new int[maxDoc + 1];
+      this.numbers = new long[maxDoc];
+    }
+
+    public void add(int doc, String id) {
+      byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+      add(doc, bytes, 0, bytes.length);
+    }
+
+    public void add(int doc, byte[] bytes, int offset, int length) {
+      if (doc < next || doc >= maxDoc) {
+        throw new IllegalArgumentException("Document " + doc + " is out of order or out of bounds");
+      }
+      int end = offsets[next];
+      // documents in between have no id
+      while (next < doc) {
+        offsets[++next] = end;
+        numbers = null;
+      }
+      if ((long) end + length > Integer.MAX_VALUE) {
+        throw new IllegalStateException("Ids exceed " + Integer.MAX_VALUE + " bytes");
+      }
+      if (end + length > data.length) {
+        data = Arrays.copyOf(data, (int) Math.min(Integer.MAX_VALUE, Math.max(end + length, (long) data.length * 2)));
+      }
+      System.arraycopy(bytes, offset, data, end, length);
+      offsets[++next] = end + length;
+      if (numbers != null) {
+        numbers[doc] = parseCanonical(data, end, length);
+        if (numbers[doc] < 0) numbers = null;
+      }
+    }
+
+    public DocIdTable build() {
+      int end = offsets[next];
+      while (next < maxDoc) {
+        offsets[++next] = end;
+        numbers = null;
+      }
+      if (numbers != null) {
+        return Numeric.of(numbers);
+      }
+      return new Bytes(Arrays.copyOf(data, end), offsets);
+    }
+
+    /**
+     * Parses a non-negative decimal number that prints back to the same bytes, returning -1 if the bytes are not one
+     */
+    static long parseCanonical(byte[] bytes, int offset, int length) {
+      if (length == 0 || length > 18 || (bytes[offset] == '0' && length > 1)) return -1;
+      long value = 0;
+      for (int i = offset; i < offset + length; i++) {
+        if (bytes[i] < '0' || bytes[i] > '9') return -1;
+        value = value * 10 + (bytes[i] - '0');
+      }
+      return value;
+    }
+  }
+
+  static abstract class Numeric extends DocIdTable {
+    static Numeric of(long[] ids) {
+      for (long id : ids) {
+        if (id > Integer.MAX_VALUE) return new Longs(ids);
+      }
+      int[] ints = new int[ids.length];
+      for (int i = 0; i < ids.length; i++) {
+        ints[i] = (int) ids[i];
+      }
+      return new Ints(ints);
+    }
+
+    abstract long id(int doc);
+
+    @Override
+    public String get(int doc) {
+      return Long.toString(id(doc));
+    }
+
+    @Override
+    public void write(DataOutput out, byte[] commitId) throws IOException {
+      writeHeader(out, commitId, NUMERIC);
+      // ids mostly follow the order documents were indexed in, so their differences are small
+      long previous = 0;
+      for (int doc = 0; doc < maxDoc(); doc++) {
+        long id = id(doc);
+        out.writeZLong(id - previous);
+        previous = id;
+      }
+    }
+  }
+
+  static class Ints extends Numeric {
+    private final int[] ids;
+
+    Ints(int[] ids) {
+      this.ids = ids;
+    }
+
+    @Override
+    long id(int doc) {
+      return ids[doc];
+    }
+
+    @Override
+    public String get(int doc) {
+      return Integer.toString(ids[doc]);
+    }
+
+    @Override
+    public int maxDoc() {
+      return ids.length;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return 4L * ids.length;
+    }
+  }
+
+  static class Longs extends Numeric {
+    private final long[] ids;
+
+    Longs(long[] ids) {
+      this.ids = ids;
+    }
+
+    @Override
+    long id(int doc) {
+      return ids[doc];
+    }
+
+    @Override
+    public int maxDoc() {
+      return ids.length;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return 8L * ids.length;
+    }
+  }
+
+  static class Bytes extends DocIdTable {
+    private final byte[] data;
+    /**
+     * The start of each document's id in the data, followed by the end of the last one
+     */
+    private final int[] offsets;
+
+    Bytes(byte[] data, int[] offsets) {
+      this.data = data;
+      this.offsets = offsets;
+    }
+
+    @Override
+    public String get(int doc) {
+      int length = offsets[doc + 1] - offsets[doc];
+      return length == 0 ? null : new String(data, offsets[doc], length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int maxDoc() {
+      return offsets.length - 1;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return data.length + 4L * offsets.length;
+    }
+
+    @Override
+    public void write(DataOutput out, byte[] commitId) throws IOException {
+      writeHeader(out, commitId, BYTES);
+      out.writeVInt(data.length);
+      for (int doc = 0; doc < maxDoc(); doc++) {
+        out.writeVInt(offsets[doc + 1] - offsets[doc]);
+        out.writeBytes(data, offsets[doc], offsets[doc + 1] - offsets[doc]);
+      }
+    }
+  }
+}
@@ -0,0 +1,474 @@
+package io.anlessini;
+
+import io.anlessini.store.Metrics;
+import io.anlessini.store.Settings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * An impact-ordered index of BM25 scores precomputed for fixed k1 and b and quantized to small integers, evaluated
+ * score-at-a-time: the postings of each term are grouped into segments of documents sharing an impact, and a query
+ * processes the segments of all its terms from the highest contribution down, adding impacts to per-document
+ * accumulators. Processing can stop after a budget of postings (anytime early termination), so that a query only reads
+ * the highest-impact segments of its terms, at the cost of ranking by approximate scores.
+ * <p>
+ * The index is three files next to the Lucene index, written by {@link Writer}:
+ * <ul>
+ *   <li>{@value #TERM_INDEX}, the id of the index commit it was built from, the parameters and every
+ *   {@value #INDEX_INTERVAL}th term, which is loaded into memory,</li>
+ *   <li>{@value #TERMS}, the sorted terms with a pointer to their postings, of which a lookup reads one run,</li>
+ *   <li>{@value #POSTINGS}, for each term the impact, document count and length of each segment, highest impact
+ *   first, followed by the segments' delta-coded document numbers.</li>
+ * </ul>
+ */
+public class ImpactIndex implements Closeable {
+  private static final Logger LOG = LogManager.getLogger(ImpactIndex.class);
+
+  public static final String TERM_INDEX = "impact.tix";
+  public static final String TERMS = "impact.tis";
+  public static final String POSTINGS = "impact.pst";
+  static final int MAGIC = 0x494d5058;
+  static final int VERSION = 2;
+  static final int INDEX_INTERVAL = 64;
+
+  /**
+   * Accumulators are as large as the collection, so each search thread keeps its own across queries
+   */
+  private static final ThreadLocal<Accumulators> ACCUMULATORS = ThreadLocal.withInitial(Accumulators::new);
+
+  public final float k1;
+  public final float b;
+  /**
+   * The id of the index commit the index was built from, null for indexes from before version 2
+   */
+  final byte[] commitId;
+  /**
+   * The BM25 score of one impact unit
+   */
+  final float scale;
+  final int maxImpact;
+  final int maxDoc;
+  private final byte[][] indexTerms;
+  private final long[] indexPointers;
+  private final IndexInput terms;
+  private final IndexInput postings;
+  private final TopHits topHits;
+  private final Metrics metrics = Metrics.getInstance();
+
+  /**
+   * Opens the impact index stored with the index according to the {@code IMPACT_INDEX} setting, returning null if it
+   * is disabled, absent or was built from another commit of the index
+   */
+  public static ImpactIndex open(Directory directory, IndexReader reader, TopHits topHits) throws IOException {
+    if (!Settings.getBoolean("IMPACT_INDEX", true)) return null;
+    List<String> files = Arrays.asList(directory.listAll());
+    if (!files.contains(TERM_INDEX) || !files.contains(TERMS) || !files.contains(POSTINGS)) return null;
+
+    byte[] termIndex;
+    try (IndexInput in = directory.openInput(TERM_INDEX, IOContext.READONCE)) {
+      termIndex = new byte[Math.toIntExact(in.length())];
+      in.readBytes(termIndex, 0, termIndex.length);
+    }
+    ImpactIndex index = new ImpactIndex(new ByteArrayDataInput(termIndex),
+        directory.openInput(TERMS, IOContext.READ), directory.openInput(POSTINGS, IOContext.READ), topHits);
+    if (!index.builtFrom(DocIdTable.commitId(reader))) {
+      // the same number of documents does not mean the same documents in the same order
+      LOG.warn(TERM_INDEX + " was built from another commit of the index, ignoring it");
+      index.close();
+      return null;
+    }
+    if (index.maxDoc != reader.maxDoc()) {
+      LOG.warn(TERM_INDEX + " has " + index.maxDoc + " documents but the index has " + reader.maxDoc() +
+          ", ignoring it");
+      index.close();
+      return null;
+    }
+    LOG.info("Opened impact index for k1=" + index.k1 + " b=" + index.b + " with " + index.indexTerms.length +
+        " indexed terms");
+    return index;
+  }
+
+  ImpactIndex(DataInput termIndex, IndexInput terms, IndexInput postings, TopHits topHits) throws IOException {
+    int version = checkHeader(termIndex, TERM_INDEX);
+    // indexes from before version 2 cannot be matched to a commit
+    if (version >= 2) {
+      commitId = new byte[termIndex.readVInt()];
+      termIndex.readBytes(commitId, 0, commitId.length);
+    } else {
+      commitId = null;
+    }
+    k1 = Float.intBitsToFloat(termIndex.readInt());
+    b = Float.intBitsToFloat(termIndex.readInt());
+    scale = Float.intBitsToFloat(termIndex.readInt());
+    maxImpact = termIndex.readVInt();
+    maxDoc = termIndex.readVInt();
+    int count = termIndex.readVInt();
+    indexTerms = new byte[count][];
+    indexPointers = new long[count];
+    for (int i = 0; i < count; i++) {
+      indexTerms[i] = new byte[termIndex.readVInt()];
+      termIndex.readBytes(indexTerms[i], 0, indexTerms[i].length);
+      indexPointers[i] = termIndex.readVLong();
+    }
+    this.terms = terms;
+    this.postings = postings;
+    this.topHits = topHits;
+  }
+
+  private static int checkHeader(DataInput in, String name) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException(name + " is not an impact index file");
+    }
+    int version = in.readVInt();
+    if (version < 1 || version > VERSION) {
+      throw new IOException("Unsupported impact index version " + version + " in " + name);
+    }
+    return version;
+  }
+
+  private static void writeHeader(DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeVInt(VERSION);
+  }
+
+  /**
+   * Whether the index was built from the commit {@code commitId}, which is taken for granted if that is null
+   */
+  boolean builtFrom(byte[] commitId) {
+    return commitId == null || Arrays.equals(commitId, this.commitId);
+  }
+
+  /**
+   * Whether the index holds scores for the given BM25 parameters
+   */
+  public boolean matches(float k1, float b) {
+    return this.k1 == k1 && this.b == b;
+  }
+
+  /**
+   * The budget of postings a query processes according to the {@code IMPACT_MAX_POSTINGS} setting: 0 to process all,
+   * by default a tenth of the documents
+   */
+  public long defaultMaxPostings() {
+    int maxPostings = Settings.getInt("IMPACT_MAX_POSTINGS", -1);
+    return maxPostings >= 0 ? maxPostings : Math.max(1, maxDoc / 10);
+  }
+
+  /**
+   * Returns the pointer to the postings of the term, or -1 if the index does not have it
+   */
+  long lookup(IndexInput terms, byte[] term) throws IOException {
+    int low = 0, high = indexTerms.length - 1;
+    // the last indexed term at or before the term starts the run to scan
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (TopHits.compareIds(indexTerms[mid], term) <= 0) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    if (high < 0) return -1;
+    terms.seek(indexPointers[high]);
+    for (int i = 0; i < INDEX_INTERVAL && terms.getFilePointer() < terms.length(); i++) {
+      byte[] candidate = new byte[terms.readVInt()];
+      terms.readBytes(candidate, 0, candidate.length);
+      long pointer = terms.readVLong();
+      int c = TopHits.compareIds(candidate, term);
+      if (c == 0) return pointer;
+      if (c > 0) return -1;
+    }
+    return -1;
+  }
+
+  /**
+   * A run of documents of one term sharing an impact
+   */
+  private static final class Segment {
+    final int contribution;
+    final int docCount;
+    final long pointer;
+
+    Segment(int contribution, int docCount, long pointer) {
+      this.contribution = contribution;
+      this.docCount = docCount;
+      this.pointer = pointer;
+    }
+  }
+
+  /**
+   * Ranks the top n documents for the analyzed terms, each weighted by the number of times it occurs in the query,
+   * processing at most about {@code maxPostings} postings, or all of them if it is 0
+   */
+  public TopDocs search(Map<String, Integer> queryTerms, int n, long maxPostings) throws IOException {
+    IndexInput terms = this.terms.clone();
+    IndexInput postings = this.postings.clone();
+
+    List<Segment> segments = new ArrayList<>();
+    int maxScore = 0;
+    for (Map.Entry<String, Integer> term : queryTerms.entrySet()) {
+      long pointer = lookup(terms, term.getKey().getBytes(StandardCharsets.UTF_8));
+      if (pointer < 0) continue;
+      postings.seek(pointer);
+      int count = postings.readVInt();
+      int[] impacts = new int[count];
+      int[] docCounts = new int[count];
+      long[] lengths = new long[count];
+      for (int i = 0; i < count; i++) {
+        impacts[i] = postings.readVInt();
+        docCounts[i] = postings.readVInt();
+        lengths[i] = postings.readVLong();
+      }
+      long segmentPointer = postings.getFilePointer();
+      for (int i = 0; i < count; i++) {
+        segments.add(new Segment(impacts[i] * term.getValue(), docCounts[i], segmentPointer));
+        segmentPointer += lengths[i];
+      }
+      if (count > 0) maxScore += impacts[0] * term.getValue();
+    }
+    // the highest contributions first, the sort is stable so a term's segments keep their order
+    segments.sort((x, y) -> Integer.compare(y.contribution, x.contribution));
+
+    Accumulators accumulators = ACCUMULATORS.get();
+    accumulators.ensureCapacity(maxDoc);
+    try {
+      long processed = 0;
+      boolean terminated = false;
+      for (Segment segment : segments) {
+        if (maxPostings > 0 && processed >= maxPostings) {
+          terminated = true;
+          break;
+        }
+        postings.seek(segment.pointer);
+        int doc = 0;
+        for (int i = 0; i < segment.docCount; i++) {
+          doc += postings.readVInt();
+          accumulators.add(doc, segment.contribution);
+        }
+        processed += segment.docCount;
+      }
+      metrics.count(Metrics.IMPACT_POSTINGS, processed);
+
+      ScoreDoc[] candidates = accumulators.top(n, maxScore, scale);
+      TotalHits totalHits = new TotalHits(accumulators.touched,
+          terminated ? TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO : TotalHits.Relation.EQUAL_TO);
+      return new TopDocs(totalHits, topHits.rank(candidates, n));
+    } finally {
+      accumulators.clear();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    terms.close();
+    postings.close();
+  }
+
+  /**
+   * The score of each document a query touched, in impact units, and the list of those documents
+   */
+  static final class Accumulators {
+    int[] scores = new int[0];
+    int[] docs = new int[1024];
+    int touched;
+
+    void ensureCapacity(int maxDoc) {
+      if (scores.length < maxDoc) scores = new int[maxDoc];
+    }
+
+    void add(int doc, int contribution) {
+      if (scores[doc] == 0) {
+        if (touched == docs.length) docs = Arrays.copyOf(docs, docs.length * 2);
+        docs[touched++] = doc;
+      }
+      scores[doc] += contribution;
+    }
+
+    /**
+     * Returns the touched documents scoring at least as much as the n-th highest, found by counting the documents at
+     * each score as scores are bounded by the query's maximum
+     */
+    ScoreDoc[] top(int n, int maxScore, float scale) {
+      int cutoff = 1;
+      if (touched > n) {
+        int[] counts = new int[maxScore + 1];
+        for (int i = 0; i < touched; i++) {
+          counts[Math.min(scores[docs[i]], maxScore)]++;
+        }
+        int seen = 0;
+        for (cutoff = maxScore; cutoff > 1; cutoff--) {
+          seen += counts[cutoff];
+          if (seen >= n) break;
+        }
+      }
+      List<ScoreDoc> top = new ArrayList<>();
+      for (int i = 0; i < touched; i++) {
+        int score = scores[docs[i]];
+        if (score >= cutoff) top.add(new ScoreDoc(docs[i], score * scale));
+      }
+      return top.toArray(new ScoreDoc[0]);
+    }
+
+    void clear() {
+      for (int i = 0; i < touched; i++) {
+        scores[docs[i]] = 0;
+      }
+      touched = 0;
+    }
+  }
+
+  /**
+   * Writes an impact index from terms added in sorted order
+   */
+  public static class Writer implements Closeable {
+    private final CountingDataOutput termIndex;
+    private final CountingDataOutput terms;
+    private final CountingDataOutput postings;
+    private final List<byte[]> indexTerms = new ArrayList<>();
+    private final List<Long> indexPointers = new ArrayList<>();
+    private final float k1;
+    private final float b;
+    private final float scale;
+    private final int maxImpact;
+    private final int maxDoc;
+    private final byte[] commitId;
+    private long termCount;
+
+    /**
+     * @param maxScore the highest BM25 score of any posting, which is quantized to {@code maxImpact}
+     * @param commitId the id of the index commit the postings are read from
+     */
+    public Writer(OutputStream termIndex, OutputStream terms, OutputStream postings, float k1, float b,
+                  float maxScore, int maxImpact, int maxDoc, byte[] commitId) throws IOException {
+      this.termIndex = new CountingDataOutput(termIndex);
+      this.terms = new CountingDataOutput(terms);
+      this.postings = new CountingDataOutput(postings);
+      this.k1 = k1;
+      this.b = b;
+      this.scale = maxScore / maxImpact;
+      this.maxImpact = maxImpact;
+      this.maxDoc = maxDoc;
+      this.commitId = commitId;
+      writeHeader(this.terms);
+      writeHeader(this.postings);
+    }
+
+    /**
+     * The impact of a score, at least 1 so that every posting counts
+     */
+    public int impact(float score) {
+      return Math.max(1, Math.min(maxImpact, Math.round(score / scale)));
+    }
+
+    /**
+     * Adds the postings of a term, given in increasing document order with their impacts
+     */
+    public void add(byte[] term, int[] docs, int[] impacts, int count) throws IOException {
+      if (termCount % INDEX_INTERVAL == 0) {
+        indexTerms.add(term.clone());
+        indexPointers.add(terms.position);
+      }
+      terms.writeVInt(term.length);
+      terms.writeBytes(term, 0, term.length);
+      terms.writeVLong(postings.position);
+      termCount++;
+
+      // bucket the documents by impact, which keeps them in document order within each impact
+      int[] counts = new int[maxImpact + 2];
+      for (int i = 0; i < count; i++) {
+        counts[impacts[i] + 1]++;
+      }
+      int segmentCount = 0;
+      for (int impact = 1; impact <= maxImpact; impact++) {
+        if (counts[impact + 1] > 0) segmentCount++;
+        counts[impact + 1] += counts[impact];
+      }
+      int[] sorted = new int[count];
+      int[] next = Arrays.copyOf(counts, counts.length);
+      for (int i = 0; i < count; i++) {
+        sorted[next[impacts[i]]++] = docs[i];
+      }
+
+      byte[][] data = new byte[segmentCount][];
+      postings.writeVInt(segmentCount);
+      int segment = 0;
+      for (int impact = maxImpact; impact >= 1; impact--) {
+        int start = counts[impact], end = counts[impact + 1];
+        if (start == end) continue;
+        ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        CountingDataOutput out = new CountingDataOutput(bytes);
+        int previous = 0;
+        for (int i = start; i < end; i++) {
+          out.writeVInt(sorted[i] - previous);
+          previous = sorted[i];
+        }
+        data[segment++] = bytes.toByteArray();
+        postings.writeVInt(impact);
+        postings.writeVInt(end - start);
+        postings.writeVLong(data[segment - 1].length);
+      }
+      for (byte[] segmentData : data) {
+        postings.writeBytes(segmentData, 0, segmentData.length);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      writeHeader(termIndex);
+      termIndex.writeVInt(commitId.length);
+      termIndex.writeBytes(commitId, 0, commitId.length);
+      termIndex.writeInt(Float.floatToIntBits(k1));
+      termIndex.writeInt(Float.floatToIntBits(b));
+      termIndex.writeInt(Float.floatToIntBits(scale));
+      termIndex.writeVInt(maxImpact);
+      termIndex.writeVInt(maxDoc);
+      termIndex.writeVInt(indexTerms.size());
+      for (int i = 0; i < indexTerms.size(); i++) {
+        termIndex.writeVInt(indexTerms.get(i).length);
+        termIndex.writeBytes(indexTerms.get(i), 0, indexTerms.get(i).length);
+        termIndex.writeVLong(indexPointers.get(i));
+      }
+      termIndex.out.close();
+      terms.out.close();
+      postings.out.close();
+    }
+  }
+
+  private static final class CountingDataOutput extends DataOutput {
+    final OutputStream out;
+    long position;
+
+    CountingDataOutput(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void writeByte(byte b) throws IOException {
+      out.write(b);
+      position++;
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int length) throws IOException {
+      out.write(b, offset, length);
+      position += length;
+    }
+  }
+}
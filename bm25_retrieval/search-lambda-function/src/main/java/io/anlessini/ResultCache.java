@@ -0,0 +1,228 @@
+package io.anlessini;
+
+import io.anlessini.store.Metrics;
+import io.anlessini.store.Settings;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Results of recent queries, keyed on the multiset of terms the analyzer produced from the query text and the BM25
+ * parameters, so that queries differing only in case, punctuation or stopwords share a result. A result of n hits
+ * also serves requests for fewer hits, and concurrent misses on the same key wait for a single search. The cache is
+ * bounded by the estimated size of the results it holds, evicting the least recently used.
+ */
+public class ResultCache {
+  /**
+   * The default cache size, 0 turns the cache off
+   */
+  static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+  /**
+   * Estimated heap cost of an entry and of each hit besides the characters of its docid
+   */
+  static final int ENTRY_OVERHEAD = 256;
+  static final int HIT_OVERHEAD = 96;
+
+  /**
+   * Searches for the top {@code maxDocs} hits of a query that missed the cache
+   */
+  public interface Search {
+    List<SearchResponse.Hit> search(int maxDocs) throws IOException;
+  }
+
+  public static final class Key {
+    /**
+     * The analyzed terms and the number of times each occurs
+     */
+    final SortedMap<String, Integer> terms = new TreeMap<>();
+    final float k1;
+    final float b;
+    /**
+     * Whether the query may be ranked on the impact index, whose results are kept apart from exact ones
+     */
+    final boolean approximate;
+
+    public Key(List<String> terms, float k1, float b) {
+      this(terms, k1, b, false);
+    }
+
+    public Key(List<String> terms, float k1, float b, boolean approximate) {
+      for (String term : terms) {
+        this.terms.merge(term, 1, Integer::sum);
+      }
+      this.k1 = k1;
+      this.b = b;
+      this.approximate = approximate;
+    }
+
+    long size() {
+      long size = ENTRY_OVERHEAD;
+      for (String term : terms.keySet()) {
+        size += HIT_OVERHEAD + 2L * term.length();
+      }
+      return size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      Key key = (Key) o;
+      return Float.compare(key.k1, k1) == 0 && Float.compare(key.b, b) == 0 && approximate == key.approximate &&
+          terms.equals(key.terms);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(terms, k1, b, approximate);
+    }
+
+    @Override
+    public String toString() {
+      return "Key{terms=" + terms + ", k1=" + k1 + ", b=" + b + ", approximate=" + approximate + "}";
+    }
+  }
+
+  static final class Entry {
+    final CompletableFuture<List<SearchResponse.Hit>> result = new CompletableFuture<>();
+    /**
+     * The number of hits the search asked for
+     */
+    final int maxDocs;
+    /**
+     * The estimated size of the entry, 0 until its search completes
+     */
+    long size;
+
+    Entry(int maxDocs) {
+      this.maxDocs = maxDocs;
+    }
+
+    /**
+     * Whether the entry holds or will hold the top {@code maxDocs} hits, which is also the case if it found fewer hits
+     * than it asked for
+     */
+    boolean covers(int maxDocs) {
+      if (maxDocs <= this.maxDocs) return true;
+      return result.isDone() && !result.isCompletedExceptionally() && result.join().size() < this.maxDocs;
+    }
+  }
+
+  private final long maxSize;
+  /**
+   * Entries in access order, guarded by this
+   */
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long size;
+  private final Metrics metrics = Metrics.getInstance();
+
+  public static ResultCache fromSettings() {
+    return new ResultCache(Settings.getBytes("RESULT_CACHE_SIZE", DEFAULT_MAX_SIZE));
+  }
+
+  public ResultCache(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  public boolean isEnabled() {
+    return maxSize > 0;
+  }
+
+  /**
+   * Returns the top {@code maxDocs} hits for the key, running the search if no cached or in-flight result covers them
+   */
+  public List<SearchResponse.Hit> get(Key key, int maxDocs, Search search) throws IOException {
+    if (!isEnabled()) {
+      return search.search(maxDocs);
+    }
+
+    Entry entry;
+    boolean owner = false;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null || !entry.covers(maxDocs)) {
+        Entry previous = entries.put(key, entry = new Entry(maxDocs));
+        if (previous != null) {
+          size -= previous.size;
+        }
+        owner = true;
+      }
+    }
+    metrics.count(owner ? Metrics.RESULT_CACHE_MISSES : Metrics.RESULT_CACHE_HITS, 1);
+
+    if (owner) {
+      List<SearchResponse.Hit> hits;
+      try {
+        hits = Collections.unmodifiableList(new ArrayList<>(search.search(maxDocs)));
+      } catch (IOException | RuntimeException e) {
+        synchronized (this) {
+          entries.remove(key, entry);
+        }
+        entry.result.completeExceptionally(e);
+        throw e;
+      }
+      entry.result.complete(hits);
+      synchronized (this) {
+        // a request for more hits may have replaced the entry while it was being searched
+        if (entries.get(key) == entry) {
+          entry.size = sizeOf(key, hits);
+          size += entry.size;
+          evict();
+        }
+      }
+      return hits;
+    }
+
+    List<SearchResponse.Hit> hits;
+    try {
+      hits = entry.result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the result of " + key);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+    return hits.size() > maxDocs ? hits.subList(0, maxDocs) : hits;
+  }
+
+  private static long sizeOf(Key key, List<SearchResponse.Hit> hits) {
+    long size = key.size();
+    for (SearchResponse.Hit hit : hits) {
+      size += HIT_OVERHEAD + 2L * (hit.docid != null ? hit.docid.length() : 0);
+    }
+    return size;
+  }
+
+  /**
+   * Evicts the least recently used completed entries until the cache fits, searches in flight are never evicted
+   */
+  private void evict() {
+    Iterator<Entry> it = entries.values().iterator();
+    while (size > maxSize && it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.size > 0) {
+        it.remove();
+        size -= entry.size;
+        metrics.count(Metrics.RESULT_CACHE_EVICTIONS, 1);
+      }
+    }
+  }
+
+  public synchronized long size() {
+    return size;
+  }
+
+  public synchronized int entries() {
+    return entries.size();
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    size = 0;
+  }
+}
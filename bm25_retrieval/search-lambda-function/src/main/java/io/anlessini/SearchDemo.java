@@ -1,11 +1,12 @@
 package io.anlessini;
 
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.anlessini.store.S3Directory;
+import io.anlessini.store.S3ObjectStore;
+import io.anlessini.store.SimulatedObjectStore;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.config.Configurator;
 import org.apache.lucene.analysis.Analyzer;
@@ -101,6 +102,24 @@ public class SearchDemo {
 
     @Option(name = "-trials", metaVar = "[number]", usage = "number of repeated trials")
     public int trials = 0;
+
+    @Option(name = "-simulate", usage = "search the local index through S3Directory over a simulated object store")
+    public boolean simulate = false;
+
+    @Option(name = "-simulate.latency", metaVar = "[ms]", usage = "simulated time to first byte of each request")
+    public long simulateLatency = 30;
+
+    @Option(name = "-simulate.jitter", metaVar = "[ms]", usage = "simulated random latency added to each request")
+    public long simulateJitter = 20;
+
+    @Option(name = "-simulate.bandwidth", metaVar = "[bytes/s]", usage = "simulated throughput of a single request")
+    public long simulateBandwidth = 1024*1024*90;
+
+    @Option(name = "-simulate.aggregateBandwidth", metaVar = "[bytes/s]", usage = "simulated throughput shared by all requests")
+    public long simulateAggregateBandwidth = 1024L*1024*600;
+
+    @Option(name = "-simulate.throttle", metaVar = "[rate]", usage = "fraction of requests failing with 503 SlowDown")
+    public double simulateThrottle = 0;
   }
 
   public static void main(String[] args) throws IOException {
@@ -126,12 +145,21 @@ public class SearchDemo {
 
     long startTime = System.currentTimeMillis();
     IndexReader reader;
-    if (searchArgs.index != null ) {
+    if (searchArgs.index != null && searchArgs.simulate) {
+      System.out.println("Searching local index through simulated S3...");
+      SimulatedObjectStore store = new SimulatedObjectStore()
+          .withLatency(searchArgs.simulateLatency, searchArgs.simulateJitter)
+          .withBandwidth(searchArgs.simulateBandwidth, searchArgs.simulateAggregateBandwidth)
+          .withThrottling(searchArgs.simulateThrottle, 0);
+      store.putDirectory("local", "index", Paths.get(searchArgs.index));
+      S3Directory directory = new S3Directory(store, "local", "index");
+      reader = DirectoryReader.open(directory);
+    } else if (searchArgs.index != null ) {
       System.out.println("Searching local index...");
       reader = DirectoryReader.open(FSDirectory.open(Paths.get(searchArgs.index)));
     } else {
       System.out.println("Searching S3 index...");
-      AmazonS3 s3Client = AmazonS3ClientBuilder.defaultClient();
+      AmazonS3 s3Client = S3ObjectStore.newClient();
       S3Directory directory = new S3Directory(s3Client, searchArgs.bucket, searchArgs.key);
       reader = DirectoryReader.open(directory);
     }
@@ -2,69 +2,220 @@ package io.anlessini;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.anlessini.store.Metrics;
+import io.anlessini.store.Prewarmer;
+import io.anlessini.store.QueryTrace;
 import io.anlessini.store.S3BlockCache;
 import io.anlessini.store.S3Directory;
 import io.anlessini.store.S3IndexInput;
+import io.anlessini.store.S3ObjectStore;
+import io.anlessini.store.Settings;
+import io.anserini.analysis.AnalyzerUtils;
 import io.anserini.index.IndexArgs;
 import io.anserini.search.query.BagOfWordsQueryGenerator;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.similarities.BM25Similarity;
-import org.apache.lucene.search.similarities.Similarity;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class SearchLambda implements RequestHandler<SearchRequest, SearchResponse> {
   public static final Sort BREAK_SCORE_TIES_BY_DOCID =
       new Sort(SortField.FIELD_SCORE, new SortField(IndexArgs.ID, SortField.Type.STRING_VAL));
   private static final Logger LOG = LogManager.getLogger(SearchLambda.class);
 
-  private final AmazonS3 s3Client;
+  /**
+   * Threads that score the slices of the index in parallel, 0 to score all segments on the invoking thread
+   */
+  static final int SEARCH_THREADS = Settings.getInt("SEARCH_THREADS", 0);
+  /**
+   * Threads that run the queries of a batch request concurrently
+   */
+  static final int BATCH_THREADS = Settings.getInt("SEARCH_BATCH_THREADS", Runtime.getRuntime().availableProcessors());
+  /**
+   * Segments are grouped into slices of at most this many documents and segments, a larger segment is a slice of its
+   * own. Each slice is scored by one thread.
+   */
+  static final int SLICE_MAX_DOCS = Settings.getInt("SEARCH_SLICE_MAX_DOCS", 250_000);
+  static final int SLICE_MAX_SEGMENTS = Settings.getInt("SEARCH_SLICE_MAX_SEGMENTS", 5);
+  /**
+   * The number of (k1, b) pairs whose searchers are kept
+   */
+  static final int MAX_SEARCHERS = 16;
+  /**
+   * Whether to rank by score with dynamic pruning and break the ties at the cutoff in a second pass, rather than
+   * sorting every matching document by score and id. Both produce the same ranking.
+   */
+  static final boolean PRUNING = Settings.getBoolean("SEARCH_PRUNING", true);
+
   private final S3Directory directory;
   private final IndexReader reader;
   private final Analyzer analyzer;
+  private final ResultCache resultCache;
+  /**
+   * The id of every document, null if ids are read from stored fields
+   */
+  private final DocIdTable docIds;
+  private final TopHits topHits;
+  /**
+   * Precomputed scores for one pair of BM25 parameters, null if the index has none
+   */
+  private final ImpactIndex impactIndex;
+  /**
+   * Scores slices in parallel, null if the search runs on the invoking thread
+   */
+  private final ThreadPoolExecutor executor;
+  private final ExecutorService batchExecutor = Executors.newFixedThreadPool(BATCH_THREADS,
+      new ThreadFactoryBuilder().setNameFormat("search-batch-%d").setDaemon(true).build());
+  /**
+   * Searchers by their BM25 parameters, least recently used first
+   */
+  private final Map<List<Float>, IndexSearcher> searchers = Collections.synchronizedMap(
+      new LinkedHashMap<List<Float>, IndexSearcher>(MAX_SEARCHERS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Float>, IndexSearcher> eldest) {
+          return size() > MAX_SEARCHERS;
+        }
+      });
   private static final String S3_INDEX_BUCKET = System.getenv("INDEX_BUCKET");
   private static final String S3_INDEX_KEY = System.getenv("INDEX_KEY");
 
   public SearchLambda() throws IOException {
-    s3Client = AmazonS3ClientBuilder.defaultClient();
-    directory = new S3Directory(s3Client, S3_INDEX_BUCKET, S3_INDEX_KEY);
+    this(new S3Directory(S3ObjectStore.newClient(), S3_INDEX_BUCKET, S3_INDEX_KEY));
+    // load the blocks popular queries read while we are still in the init phase
+    Prewarmer.fromSettings().prewarm(directory);
+  }
+
+  public SearchLambda(S3Directory directory) throws IOException {
+    this(directory, SEARCH_THREADS, ResultCache.fromSettings());
+  }
+
+  public SearchLambda(S3Directory directory, int searchThreads, ResultCache resultCache) throws IOException {
+    this.directory = directory;
+    this.resultCache = resultCache;
     reader = DirectoryReader.open(directory);
+    docIds = DocIdTable.load(directory, reader, IndexArgs.ID);
+    topHits = PRUNING ? new TopHits(reader, IndexArgs.ID, docIds) : null;
+    impactIndex = ImpactIndex.open(directory, reader, new TopHits(reader, IndexArgs.ID, docIds));
     analyzer = new EnglishAnalyzer();
+    executor = searchThreads > 0 ? new TracingExecutor(searchThreads) : null;
+  }
+
+  /**
+   * Returns the searcher scoring with the given BM25 parameters, which is built once and reused by later queries, as are
+   * the slices of the reader it computes when it is built
+   */
+  IndexSearcher searcher(float k1, float b) {
+    return searchers.computeIfAbsent(Arrays.asList(k1, b), key -> {
+      IndexSearcher searcher = executor != null ? new SlicedIndexSearcher(reader, executor) : new IndexSearcher(reader);
+      searcher.setSimilarity(new BM25Similarity(k1, b));
+      searcher.setQueryCache(null); // disable query caching
+      return searcher;
+    });
+  }
+
+  /**
+   * Slices the segments by {@link #SLICE_MAX_DOCS} and {@link #SLICE_MAX_SEGMENTS} rather than Lucene's defaults
+   */
+  static class SlicedIndexSearcher extends IndexSearcher {
+    SlicedIndexSearcher(IndexReader reader, ThreadPoolExecutor executor) {
+      super(reader, executor);
+    }
+
+    @Override
+    protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+      return slices(leaves, SLICE_MAX_DOCS, SLICE_MAX_SEGMENTS);
+    }
+  }
+
+  /**
+   * Runs each slice with the trace of the query that submitted it, so that the blocks read by the search threads are
+   * recorded in the trace
+   */
+  static class TracingExecutor extends ThreadPoolExecutor {
+    TracingExecutor(int threads) {
+      super(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+          new ThreadFactoryBuilder().setNameFormat("search-%d").setDaemon(true).build());
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      super.execute(QueryTrace.wrap(command));
+    }
+  }
+
+  /**
+   * Records a query phase that started at {@code phaseStart} in the metrics and, if the query is traced, in its trace,
+   * returning the start of the next phase
+   */
+  private static long endPhase(String metric, String phase, long phaseStart, QueryTrace trace) {
+    Metrics.getInstance().recordNanos(metric, phaseStart);
+    if (trace != null) {
+      trace.phase(phase, phaseStart);
+    }
+    return System.nanoTime();
+  }
+
+  /**
+   * Ranks the top {@code maxDocs} documents for the query of the request and loads their ids. Approximate queries with
+   * the BM25 parameters of the impact index are evaluated on it, others with Lucene.
+   */
+  private List<SearchResponse.Hit> search(SearchRequest input, ResultCache.Key key, int maxDocs, QueryTrace trace)
+      throws IOException {
+    long phaseStart = System.nanoTime();
+    TopDocs topDocs;
+    if (key.approximate && impactIndex != null && impactIndex.matches(key.k1, key.b)) {
+      topDocs = impactIndex.search(key.terms, maxDocs, impactIndex.defaultMaxPostings());
+    } else {
+      IndexSearcher searcher = searcher(input.getBm25k1(), input.getBm25b());
+      Query query = new BagOfWordsQueryGenerator().buildQuery(IndexArgs.CONTENTS, analyzer, input.getQuery());
+      // both break score ties by the id, the pruned search only looks up the ids of tied hits
+      topDocs = topHits != null
+          ? topHits.search(searcher, query, maxDocs)
+          : searcher.search(query, maxDocs, BREAK_SCORE_TIES_BY_DOCID, true);
+    }
+    phaseStart = endPhase(Metrics.QUERY_SEARCH_LATENCY, "search", phaseStart, trace);
+
+    List<SearchResponse.Hit> hits = new ArrayList<>();
+    for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+      String docid = docIds != null ? docIds.get(scoreDoc.doc) : reader.document(scoreDoc.doc).get(IndexArgs.ID);
+      hits.add(new SearchResponse.Hit(docid, scoreDoc.score, scoreDoc.doc));
+    }
+    endPhase(Metrics.QUERY_FETCH_LATENCY, "fetch", phaseStart, trace);
+    return hits;
   }
 
   @Override
   public SearchResponse handleRequest(SearchRequest input, Context context) {
     try {
       LOG.info("Received input: " + input);
+      Metrics metrics = Metrics.getInstance();
       long startTime = System.currentTimeMillis();
-      Similarity similarity = new BM25Similarity(input.getBm25k1(), input.getBm25b());
-      IndexSearcher searcher = new IndexSearcher(reader);
-      searcher.setSimilarity(similarity);
-      searcher.setQueryCache(null); // disable query caching
-
-      Query query = new BagOfWordsQueryGenerator().buildQuery(IndexArgs.CONTENTS, analyzer, input.getQuery());
-      TopDocs topDocs = searcher.search(query, input.getMaxDocs(), BREAK_SCORE_TIES_BY_DOCID, true);
-
-      List<SearchResponse.Hit> hits = new ArrayList<>();
-      for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-        Document doc = reader.document(scoreDoc.doc);
-        hits.add(new SearchResponse.Hit(doc.get(IndexArgs.ID), scoreDoc.score, scoreDoc.doc));
-      }
-      SearchResponse response = new SearchResponse(hits);
+      SearchResponse response = input.isBatch() ? searchBatch(input.getQueries()) : search(input);
 
       LOG.trace("Response: " + response);
       long endTime = System.currentTimeMillis();
       LOG.info("Query latency: " + (endTime - startTime) + " ms");
+      metrics.gauge(Metrics.RESULT_CACHE_BYTES, resultCache.size());
+      metrics.gauge(Metrics.RESULT_CACHE_ENTRIES, resultCache.entries());
+      metrics.emit(System.out, context != null
+          ? Collections.singletonMap("FunctionName", context.getFunctionName())
+          : Collections.emptyMap());
 
       S3BlockCache.getInstance().logStats();
       S3IndexInput.logStats();
@@ -78,4 +229,66 @@ public class SearchLambda implements RequestHandler<SearchRequest, SearchRespons
       throw new RuntimeException(ioe);
     }
   }
+
+  /**
+   * Runs the queries of a batch concurrently over the shared reader and caches, returning their responses in order
+   */
+  SearchResponse searchBatch(List<SearchRequest> queries) throws IOException {
+    List<Future<SearchResponse>> futures = new ArrayList<>(queries.size());
+    boolean success = false;
+    try {
+      for (SearchRequest query : queries) {
+        futures.add(batchExecutor.submit(() -> search(query)));
+      }
+      List<SearchResponse> results = new ArrayList<>(queries.size());
+      for (Future<SearchResponse> future : futures) {
+        results.add(future.get());
+      }
+      success = true;
+      return SearchResponse.batch(results);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while searching a batch of " + queries.size() + " queries");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw new IOException(e.getCause());
+    } finally {
+      if (!success) {
+        // one failed query fails the batch, so the queued ones need not run; the running ones are not interrupted,
+        // which would close the files they are reading from disk
+        futures.forEach(future -> future.cancel(false));
+      }
+    }
+  }
+
+  /**
+   * Answers a single query on the calling thread
+   */
+  SearchResponse search(SearchRequest input) throws IOException {
+    // blocks are recorded for the thread that started the trace and the search threads scoring its slices
+    QueryTrace trace = Boolean.TRUE.equals(input.getTrace()) ? QueryTrace.start() : null;
+    try {
+      long queryStart = System.nanoTime();
+      long phaseStart = queryStart;
+      // queries with the same analyzed terms share a cached result, only a miss builds the query and searches
+      ResultCache.Key key = new ResultCache.Key(AnalyzerUtils.analyze(analyzer, input.getQuery()),
+          input.getBm25k1(), input.getBm25b(), Boolean.TRUE.equals(input.getApproximate()));
+      phaseStart = endPhase(Metrics.QUERY_ANALYZE_LATENCY, "analyze", phaseStart, trace);
+      List<SearchResponse.Hit> hits =
+          resultCache.get(key, input.getMaxDocs(), maxDocs -> search(input, key, maxDocs, trace));
+      SearchResponse response = new SearchResponse(hits);
+      endPhase(Metrics.QUERY_LATENCY, "total", queryStart, trace);
+      if (trace != null) {
+        // the blocks the query read may still be arriving, the trace is returned once their downloads are timed
+        trace.awaitFetches();
+      }
+      response.trace = trace;
+      return response;
+    } finally {
+      if (trace != null) {
+        trace.stop();
+      }
+    }
+  }
 }
@@ -1,6 +1,7 @@
 package io.anlessini;
 
 import java.io.Serializable;
+import java.util.List;
 
 public class SearchRequest implements Serializable, Cloneable {
   static final Integer DEFAULT_MAX_DOCS = 10;
@@ -11,11 +12,26 @@ public class SearchRequest implements Serializable, Cloneable {
   private Integer maxDocs;
   private Float bm25k1;
   private Float bm25b;
+  /**
+   * Whether to return the time spent in each phase and the index blocks the query touched
+   */
+  private Boolean trace;
+  /**
+   * Whether the query may be ranked on the impact index, by quantized scores and possibly without processing all of
+   * its postings
+   */
+  private Boolean approximate;
+  /**
+   * The queries of a batch request, each with its own parameters, or null if this request carries a single query
+   */
+  private List<SearchRequest> queries;
 
   public SearchRequest() {
     setMaxDocs(DEFAULT_MAX_DOCS);
     setBm25k1(DEFAULT_BM25_K1);
     setBm25b(DEFAULT_BM25_B);
+    setTrace(false);
+    setApproximate(false);
   }
 
   public SearchRequest(String query, Integer maxDocs, Float bm25k1, Float bm25b) {
@@ -23,6 +39,8 @@ public class SearchRequest implements Serializable, Cloneable {
     this.maxDocs = maxDocs;
     this.bm25k1 = bm25k1;
     this.bm25b = bm25b;
+    this.trace = false;
+    this.approximate = false;
   }
 
   public String getQuery() {
@@ -57,6 +75,34 @@ public class SearchRequest implements Serializable, Cloneable {
     this.bm25b = bm25b;
   }
 
+  public Boolean getTrace() {
+    return trace;
+  }
+
+  public void setTrace(Boolean trace) {
+    this.trace = trace;
+  }
+
+  public Boolean getApproximate() {
+    return approximate;
+  }
+
+  public void setApproximate(Boolean approximate) {
+    this.approximate = approximate;
+  }
+
+  public List<SearchRequest> getQueries() {
+    return queries;
+  }
+
+  public void setQueries(List<SearchRequest> queries) {
+    this.queries = queries;
+  }
+
+  public boolean isBatch() {
+    return queries != null;
+  }
+
   @Override
   public String toString() {
     return "SearchRequest{" +
@@ -64,6 +110,9 @@ public class SearchRequest implements Serializable, Cloneable {
         ", maxDocs=" + maxDocs +
         ", bm25k1=" + bm25k1 +
         ", bm25b=" + bm25b +
+        ", trace=" + trace +
+        ", approximate=" + approximate +
+        (queries != null ? ", queries=" + queries : "") +
         '}';
   }
 }
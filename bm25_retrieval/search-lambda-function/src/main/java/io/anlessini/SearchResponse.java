@@ -1,15 +1,32 @@
 package io.anlessini;
 
+import io.anlessini.store.QueryTrace;
+
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.List;
 
 public class SearchResponse implements Serializable, Cloneable {
   public final List<Hit> hits;
+  /**
+   * The phase timings and index blocks of the query if the request asked for a trace, otherwise null
+   */
+  public QueryTrace trace;
+  /**
+   * The responses to the queries of a batch request in the order of the queries, otherwise null
+   */
+  public List<SearchResponse> results;
 
   public SearchResponse(List<Hit> hits) {
     this.hits = hits;
   }
 
+  public static SearchResponse batch(List<SearchResponse> results) {
+    SearchResponse response = new SearchResponse(Collections.emptyList());
+    response.results = results;
+    return response;
+  }
+
   public static class Hit implements Serializable, Cloneable {
     /** The document identifier field
      *  @see io.anserini.index.IndexArgs#ID */
@@ -42,6 +59,8 @@ public class SearchResponse implements Serializable, Cloneable {
   public String toString() {
     return "SearchResponse{" +
         "hits=" + hits +
+        (trace != null ? ", trace=" + trace : "") +
+        (results != null ? ", results=" + results : "") +
         '}';
   }
 }
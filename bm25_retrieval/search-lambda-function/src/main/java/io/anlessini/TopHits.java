@@ -0,0 +1,188 @@
+package io.anlessini;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Ranks the top hits of a query by score, breaking score ties by the id field, in the same order as searching with
+ * {@link SearchLambda#BREAK_SCORE_TIES_BY_DOCID}. Sorting by a field makes Lucene score and count every matching
+ * document, whereas collecting by score lets block-max WAND skip documents that cannot make the top hits. The catch is
+ * that the score collector breaks ties by Lucene's document number and skips documents that merely tie with the last
+ * hit, so the ranking takes two passes:
+ * <ol>
+ *   <li>collect the top n hits by score with skipping, which finds every hit scoring above the n-th one,</li>
+ *   <li>if there were n hits, collect every document scoring exactly as much as the n-th, skipping those scoring less,
+ *   and rank the union by score and then id.</li>
+ * </ol>
+ * Both passes score the same way, as scorers sum clause scores in double precision, so the ties found in the second
+ * pass are exact.
+ */
+public class TopHits {
+  private final IndexReader reader;
+  private final String idField;
+  /**
+   * The ids of the documents, or null to read them from the id field's sorted doc values
+   */
+  private final DocIdTable docIds;
+
+  public TopHits(IndexReader reader, String idField, DocIdTable docIds) {
+    this.reader = reader;
+    this.idField = idField;
+    this.docIds = docIds;
+  }
+
+  public TopDocs search(IndexSearcher searcher, Query query, int n) throws IOException {
+    TopDocs top = searcher.search(query, n);
+    ScoreDoc[] hits = top.scoreDocs;
+    if (hits.length == n && n > 0) {
+      float cutoff = hits[n - 1].score;
+      List<ScoreDoc> candidates = new ArrayList<>();
+      for (ScoreDoc hit : hits) {
+        if (hit.score > cutoff) candidates.add(hit);
+      }
+      candidates.addAll(searcher.search(query, new TiesCollectorManager(cutoff)));
+      hits = candidates.toArray(new ScoreDoc[0]);
+    }
+    return new TopDocs(top.totalHits, rank(hits, n));
+  }
+
+  /**
+   * Orders the hits by descending score, then by id and then by document number, returning the first n
+   */
+  ScoreDoc[] rank(ScoreDoc[] hits, int n) throws IOException {
+    hits = hits.clone();
+    Arrays.sort(hits, (a, b) -> a.score != b.score ? Float.compare(b.score, a.score) : Integer.compare(a.doc, b.doc));
+
+    // only hits that tie on score need their ids
+    int tied = 0;
+    int[] tiedDocs = new int[hits.length];
+    for (int i = 0; i < hits.length; i++) {
+      if ((i > 0 && hits[i - 1].score == hits[i].score) || (i + 1 < hits.length && hits[i + 1].score == hits[i].score)) {
+        tiedDocs[tied++] = hits[i].doc;
+      }
+    }
+    if (tied > 0) {
+      Map<Integer, byte[]> ids = ids(Arrays.copyOf(tiedDocs, tied));
+      Arrays.sort(hits, (a, b) -> {
+        if (a.score != b.score) return Float.compare(b.score, a.score);
+        int c = compareIds(ids.get(a.doc), ids.get(b.doc));
+        return c != 0 ? c : Integer.compare(a.doc, b.doc);
+      });
+    }
+    return hits.length > n ? Arrays.copyOf(hits, n) : hits;
+  }
+
+  /**
+   * Compares ids as the sort on the id field does: documents without an id first, then by unsigned bytes
+   */
+  static int compareIds(byte[] a, byte[] b) {
+    if (a == null || b == null) return a == null ? (b == null ? 0 : -1) : 1;
+    int length = Math.min(a.length, b.length);
+    for (int i = 0; i < length; i++) {
+      int c = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+      if (c != 0) return c;
+    }
+    return Integer.compare(a.length, b.length);
+  }
+
+  /**
+   * Looks up the UTF-8 ids of the documents, mapping those without an id to null
+   */
+  Map<Integer, byte[]> ids(int[] docs) throws IOException {
+    Map<Integer, byte[]> ids = new HashMap<>();
+    if (docIds != null) {
+      for (int doc : docs) {
+        String id = docIds.get(doc);
+        ids.put(doc, id != null ? id.getBytes(StandardCharsets.UTF_8) : null);
+      }
+      return ids;
+    }
+
+    // doc values are read forward, so visit the documents in order
+    Arrays.sort(docs);
+    List<LeafReaderContext> leaves = reader.leaves();
+    int leaf = -1;
+    LeafReaderContext context = null;
+    SortedDocValues values = null;
+    for (int doc : docs) {
+      while (context == null || doc >= context.docBase + context.reader().maxDoc()) {
+        context = leaves.get(++leaf);
+        values = context.reader().getSortedDocValues(idField);
+      }
+      if (values != null && values.advanceExact(doc - context.docBase)) {
+        BytesRef id = values.binaryValue();
+        ids.put(doc, Arrays.copyOfRange(id.bytes, id.offset, id.offset + id.length));
+      } else {
+        ids.put(doc, null);
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Collects the documents scoring exactly the cutoff, letting the scorer skip documents that score less
+   */
+  static class TiesCollectorManager implements CollectorManager<TiesCollector, List<ScoreDoc>> {
+    private final float cutoff;
+
+    TiesCollectorManager(float cutoff) {
+      this.cutoff = cutoff;
+    }
+
+    @Override
+    public TiesCollector newCollector() {
+      return new TiesCollector(cutoff);
+    }
+
+    @Override
+    public List<ScoreDoc> reduce(Collection<TiesCollector> collectors) {
+      List<ScoreDoc> ties = new ArrayList<>();
+      for (TiesCollector collector : collectors) {
+        ties.addAll(collector.ties);
+      }
+      return ties;
+    }
+  }
+
+  static class TiesCollector extends SimpleCollector {
+    private final float cutoff;
+    final List<ScoreDoc> ties = new ArrayList<>();
+    private Scorable scorer;
+    private int docBase;
+
+    TiesCollector(float cutoff) {
+      this.cutoff = cutoff;
+    }
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) {
+      docBase = context.docBase;
+    }
+
+    @Override
+    public void setScorer(Scorable scorer) throws IOException {
+      this.scorer = scorer;
+      scorer.setMinCompetitiveScore(cutoff);
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+      float score = scorer.score();
+      if (score == cutoff) {
+        ties.add(new ScoreDoc(docBase + doc, score));
+      }
+    }
+
+    @Override
+    public ScoreMode scoreMode() {
+      return ScoreMode.TOP_SCORES;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link BlockSizePolicy} that tunes the block size of each extension from the reads observed so far. Extensions
+ * whose reads keep spanning several blocks get larger blocks, while extensions that fetch far more bytes than
+ * they read get smaller ones. Since a file keeps its block size once assigned, what is learned applies to files
+ * opened afterwards, e.g. other segments; the learned sizes are also logged so they can be pinned with
+ * {@code S3_BLOCK_SIZES}.
+ */
+public class AdaptiveBlockSizePolicy extends BlockSizePolicy {
+  private static final Logger LOG = LogManager.getLogger(AdaptiveBlockSizePolicy.class);
+
+  /**
+   * The number of reads of an extension observed before its block size is adjusted
+   */
+  static final long MIN_SAMPLES = 64;
+  /**
+   * Grow the block size if more than this fraction of reads span multiple blocks
+   */
+  static final double MULTI_BLOCK_THRESHOLD = 0.25;
+  /**
+   * Shrink the block size if more than this many bytes are fetched for every byte read
+   */
+  static final double AMPLIFICATION_THRESHOLD = 64;
+
+  private static class ExtensionStats {
+    final LongAdder reads = new LongAdder();
+    final LongAdder multiBlockReads = new LongAdder();
+    final LongAdder bytesRead = new LongAdder();
+    final LongAdder bytesFetched = new LongAdder();
+  }
+
+  private final Map<String, ExtensionStats> stats = new ConcurrentHashMap<>();
+  private final Map<String, Integer> learned = new ConcurrentHashMap<>();
+
+  AdaptiveBlockSizePolicy(Map<String, Integer> extensionSizes, int wholeFileSize) {
+    super(extensionSizes, wholeFileSize);
+  }
+
+  @Override
+  protected int extensionBlockSize(String extension) {
+    int current = learned.getOrDefault(extension, super.extensionBlockSize(extension));
+    ExtensionStats s = stats.get(extension);
+    if (s == null || s.reads.sum() < MIN_SAMPLES) {
+      return current;
+    }
+
+    long reads = s.reads.sum();
+    double multiBlockFraction = (double) s.multiBlockReads.sum() / reads;
+    double amplification = (double) s.bytesFetched.sum() / Math.max(1, s.bytesRead.sum());
+    int next = current;
+    if (multiBlockFraction > MULTI_BLOCK_THRESHOLD) {
+      next = Math.min(MAX_BLOCK_SIZE, current * 2);
+    } else if (amplification > AMPLIFICATION_THRESHOLD) {
+      long averageRead = s.bytesRead.sum() / reads;
+      int target = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE / 2, Math.max(1, averageRead * 16)));
+      next = Math.max(MIN_BLOCK_SIZE, Math.max(target, current / 2));
+    }
+    if (next != current) {
+      LOG.info("Adjusted block size of ." + extension + " files from " + current + " to " + next
+          + " (reads=" + reads + ", multiBlock=" + String.format("%.2f", multiBlockFraction)
+          + ", amplification=" + String.format("%.1f", amplification) + ")");
+      learned.put(extension, next);
+      // start over so the next adjustment is judged on reads made with the new size
+      stats.remove(extension);
+    }
+    return next;
+  }
+
+  @Override
+  public void recordRead(S3ObjectSummary summary, int length, int blocks, long missedBytes) {
+    ExtensionStats s = stats.computeIfAbsent(extension(summary.getKey()), ext -> new ExtensionStats());
+    s.reads.increment();
+    s.bytesRead.add(length);
+    s.bytesFetched.add(missedBytes);
+    if (blocks > 1) {
+      s.multiBlockReads.increment();
+    }
+  }
+
+  @Override
+  public void logStats() {
+    if (!LOG.isTraceEnabled()) return;
+    LOG.trace("Learned block sizes: " + learned);
+  }
+}
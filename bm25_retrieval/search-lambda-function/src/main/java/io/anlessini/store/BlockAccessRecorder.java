@@ -0,0 +1,52 @@
+package io.anlessini.store;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how often each {@link S3FileBlock} is read while recording is active, to build a {@link PrewarmManifest}
+ * from a replayed query log. Recording is off unless {@link #start()} was called, so the read path only pays for a
+ * volatile read.
+ */
+public class BlockAccessRecorder {
+  private static volatile BlockAccessRecorder active;
+
+  private final Map<PrewarmManifest.Entry, AtomicLong> counts = new ConcurrentHashMap<>();
+
+  public static synchronized BlockAccessRecorder start() {
+    active = new BlockAccessRecorder();
+    return active;
+  }
+
+  public static synchronized void stop() {
+    active = null;
+  }
+
+  static void record(S3FileBlock fileBlock) {
+    BlockAccessRecorder recorder = active;
+    if (recorder != null) {
+      String key = fileBlock.summary.getKey();
+      PrewarmManifest.Entry entry = new PrewarmManifest.Entry(key.substring(key.lastIndexOf('/') + 1),
+          fileBlock.offset, fileBlock.length());
+      recorder.counts.computeIfAbsent(entry, e -> new AtomicLong()).incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the recorded blocks, most frequently read first
+   */
+  public PrewarmManifest toManifest() {
+    PrewarmManifest manifest = new PrewarmManifest();
+    for (Map.Entry<PrewarmManifest.Entry, AtomicLong> e : counts.entrySet()) {
+      PrewarmManifest.Entry entry = new PrewarmManifest.Entry(e.getKey().file, e.getKey().offset, e.getKey().length);
+      entry.count = e.getValue().get();
+      manifest.entries.add(entry);
+    }
+    manifest.entries.sort(Comparator.comparingLong((PrewarmManifest.Entry entry) -> entry.count).reversed()
+        .thenComparing(entry -> entry.file)
+        .thenComparingLong(entry -> entry.offset));
+    return manifest;
+  }
+}
@@ -0,0 +1,86 @@
+package io.anlessini.store;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+
+/**
+ * Allocates the memory backing cached blocks, either on the JVM heap or off-heap in direct buffers
+ */
+public abstract class BlockAllocator {
+  public abstract ByteBuffer allocate(int size);
+
+  /**
+   * Returns the memory of a buffer no longer referenced by the cache or any reader
+   */
+  public abstract void free(ByteBuffer buffer);
+
+  public abstract boolean isOffHeap();
+
+  public static final BlockAllocator HEAP = new BlockAllocator() {
+    @Override
+    public ByteBuffer allocate(int size) {
+      return ByteBuffer.allocate(size);
+    }
+
+    @Override
+    public void free(ByteBuffer buffer) {
+      // reclaimed by GC
+    }
+
+    @Override
+    public boolean isOffHeap() {
+      return false;
+    }
+  };
+
+  /**
+   * Direct buffers are released explicitly through {@code sun.misc.Unsafe#invokeCleaner} as soon as they are freed,
+   * so off-heap memory tracks the cache size instead of waiting for a GC to notice the buffer is unreachable.
+   * The total is bounded by {@code -XX:MaxDirectMemorySize}.
+   */
+  public static final BlockAllocator DIRECT = new BlockAllocator() {
+    private final Logger LOG = LogManager.getLogger(BlockAllocator.class);
+    private final MethodHandle invokeCleaner = lookupInvokeCleaner();
+
+    private MethodHandle lookupInvokeCleaner() {
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Field f = unsafeClass.getDeclaredField("theUnsafe");
+        f.setAccessible(true);
+        Object unsafe = f.get(null);
+        return MethodHandles.lookup()
+            .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+            .bindTo(unsafe);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        LOG.warn("Unable to release direct buffers explicitly, falling back to GC: " + e);
+        return null;
+      }
+    }
+
+    @Override
+    public ByteBuffer allocate(int size) {
+      return ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    public void free(ByteBuffer buffer) {
+      if (invokeCleaner == null) return;
+      try {
+        invokeCleaner.invokeExact(buffer);
+      } catch (Throwable t) {
+        LOG.warn("Failed to release direct buffer: " + t);
+      }
+    }
+
+    @Override
+    public boolean isOffHeap() {
+      return true;
+    }
+  };
+}
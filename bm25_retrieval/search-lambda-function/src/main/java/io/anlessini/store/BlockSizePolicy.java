@@ -0,0 +1,127 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the {@link S3FileBlock} size of each file from its extension and size. Random-access files such as the
+ * terms dictionary get small blocks so that a cold term lookup does not download 64 MB, while postings, which are
+ * read in long runs, get large ones. The size is fixed the first time a file is read.
+ */
+public class BlockSizePolicy {
+  private static final Logger LOG = LogManager.getLogger(BlockSizePolicy.class);
+
+  /**
+   * Files up to 1 MB are fetched as a single block regardless of their extension
+   */
+  static final int DEFAULT_WHOLE_FILE_SIZE = 1024 * 1024;
+  static final int MIN_BLOCK_SIZE = 1024 * 16;
+  static final int MAX_BLOCK_SIZE = S3FileBlock.DEFAULT_BLOCK_SIZE;
+
+  /**
+   * Default block size per Lucene file extension, anything else uses {@link S3FileBlock#DEFAULT_BLOCK_SIZE}
+   */
+  static final Map<String, Integer> DEFAULT_EXTENSION_SIZES = new HashMap<>();
+
+  static {
+    DEFAULT_EXTENSION_SIZES.put("tim", 1024 * 128);      // terms dictionary, one seek per query term
+    DEFAULT_EXTENSION_SIZES.put("tip", 1024 * 1024 * 4); // terms index, loaded on heap when the segment opens
+    DEFAULT_EXTENSION_SIZES.put("doc", 1024 * 1024 * 8); // postings are scanned in long runs
+    DEFAULT_EXTENSION_SIZES.put("pos", 1024 * 1024 * 8);
+    DEFAULT_EXTENSION_SIZES.put("pay", 1024 * 1024 * 8);
+    DEFAULT_EXTENSION_SIZES.put("fdt", 1024 * 256);      // stored fields, one small block per hit
+    DEFAULT_EXTENSION_SIZES.put("fdx", 1024 * 1024);
+    DEFAULT_EXTENSION_SIZES.put("tvd", 1024 * 256);
+    DEFAULT_EXTENSION_SIZES.put("tvx", 1024 * 1024);
+    DEFAULT_EXTENSION_SIZES.put("dvd", 1024 * 1024);     // doc values, random access per hit
+    DEFAULT_EXTENSION_SIZES.put("nvd", 1024 * 1024);
+    DEFAULT_EXTENSION_SIZES.put("cfs", 1024 * 1024);
+  }
+
+  private final Map<String, Integer> extensionSizes;
+  private final int wholeFileSize;
+  /**
+   * Block size assigned to each file on first use. S3ObjectSummary does not override equals, so this is keyed
+   * on the summary instance held by the directory.
+   */
+  private final Map<S3ObjectSummary, Integer> assigned = new ConcurrentHashMap<>();
+
+  private static BlockSizePolicy instance;
+
+  public static synchronized BlockSizePolicy getInstance() {
+    if (instance == null) {
+      Map<String, Integer> sizes = new HashMap<>(DEFAULT_EXTENSION_SIZES);
+      sizes.putAll(parseExtensionSizes(Settings.getString("S3_BLOCK_SIZES", "")));
+      int wholeFileSize = Math.toIntExact(Settings.getBytes("S3_WHOLE_FILE_SIZE", DEFAULT_WHOLE_FILE_SIZE));
+      if (Settings.getBoolean("S3_ADAPTIVE_BLOCK_SIZE", false)) {
+        instance = new AdaptiveBlockSizePolicy(sizes, wholeFileSize);
+      } else {
+        instance = new BlockSizePolicy(sizes, wholeFileSize);
+      }
+      LOG.info("Using " + instance.getClass().getSimpleName() + " with block sizes " + sizes);
+    }
+    return instance;
+  }
+
+  BlockSizePolicy(Map<String, Integer> extensionSizes, int wholeFileSize) {
+    this.extensionSizes = extensionSizes;
+    this.wholeFileSize = wholeFileSize;
+  }
+
+  /**
+   * Parses a specification such as "tim=64k,doc=16m"
+   */
+  static Map<String, Integer> parseExtensionSizes(String spec) {
+    Map<String, Integer> sizes = new HashMap<>();
+    for (String entry : spec.split(",")) {
+      if (entry.trim().isEmpty()) continue;
+      String[] kv = entry.split("=");
+      if (kv.length != 2) {
+        throw new IllegalArgumentException("Invalid block size entry \"" + entry + "\" in " + spec);
+      }
+      sizes.put(kv[0].trim().toLowerCase(Locale.ROOT), Math.toIntExact(Settings.parseBytes(kv[1])));
+    }
+    return sizes;
+  }
+
+  static String extension(String key) {
+    String name = key.substring(key.lastIndexOf('/') + 1);
+    int dot = name.lastIndexOf('.');
+    return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+  }
+
+  public int blockSize(S3ObjectSummary summary) {
+    return assigned.computeIfAbsent(summary, s -> {
+      int blockSize = chooseBlockSize(s);
+      LOG.trace("Block size of " + s.getKey() + " is " + blockSize);
+      return blockSize;
+    });
+  }
+
+  protected int chooseBlockSize(S3ObjectSummary summary) {
+    if (summary.getSize() <= wholeFileSize) {
+      return Math.max(1, Math.toIntExact(summary.getSize()));
+    }
+    return extensionBlockSize(extension(summary.getKey()));
+  }
+
+  protected int extensionBlockSize(String extension) {
+    return extensionSizes.getOrDefault(extension, S3FileBlock.DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * Observes a read of {@code length} bytes that touched {@code blocks} blocks, of which {@code missedBytes} had to
+   * be fetched. The static policy ignores it.
+   */
+  public void recordRead(S3ObjectSummary summary, int length, int blocks, long missedBytes) {
+  }
+
+  public void logStats() {
+  }
+}
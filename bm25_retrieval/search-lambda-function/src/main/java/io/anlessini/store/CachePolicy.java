@@ -0,0 +1,194 @@
+package io.anlessini.store;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Assigns the blocks of each file to a cache class by extension or file name pattern. A class has a priority, which
+ * decides the order {@link S3BlockCache} evicts from, and optionally a byte budget, beyond which the class only
+ * displaces its own blocks. By default the terms dictionary and index, norms and doc values are pinned, so that a
+ * one-off scan of stored fields, which are of low priority, cannot flush them.
+ * <p>
+ * A policy is a list of rules such as {@code "tip,tim,nvd,dvd=pinned:50%;fdt,tvd=low:64m"}: each rule lists
+ * extensions or glob patterns of file names, followed by a priority and an optional budget in bytes or as a share of
+ * the cache. The first rule that matches a file wins, files matching none are of normal priority without a budget.
+ */
+public class CachePolicy {
+  private static final Logger LOG = LogManager.getLogger(CachePolicy.class);
+
+  static final String DEFAULT_POLICY = "tip,tim,nvd,nvm,dvd,dvm=pinned:50%;fdt,fdx,tvd,tvx=low:10%";
+
+  enum Priority {
+    /**
+     * Evicted before anything else, for files read once per hit such as stored fields
+     */
+    LOW,
+    NORMAL,
+    /**
+     * Only evicted to keep the class within its budget, or if nothing else is left
+     */
+    PINNED
+  }
+
+  static final class CacheClass {
+    /**
+     * The position of the class in {@link #classes()}
+     */
+    final int index;
+    final String name;
+    final Priority priority;
+    /**
+     * The budget in bytes, or a share of the cache if {@link #budgetRatio} is positive, 0 if the class has none
+     */
+    final long budgetBytes;
+    final double budgetRatio;
+
+    CacheClass(int index, String name, Priority priority, long budgetBytes, double budgetRatio) {
+      this.index = index;
+      this.name = name;
+      this.priority = priority;
+      this.budgetBytes = budgetBytes;
+      this.budgetRatio = budgetRatio;
+    }
+
+    /**
+     * Returns the budget of the class in a cache of {@code cacheSize} bytes
+     */
+    long budget(long cacheSize) {
+      if (budgetRatio > 0) return (long) (cacheSize * budgetRatio);
+      return budgetBytes > 0 ? budgetBytes : cacheSize;
+    }
+
+    @Override
+    public String toString() {
+      String budget = budgetRatio > 0 ? (budgetRatio * 100) + "%" : budgetBytes > 0 ? Long.toString(budgetBytes) : "";
+      return name + "=" + priority.name().toLowerCase(Locale.ROOT) + (budget.isEmpty() ? "" : ":" + budget);
+    }
+  }
+
+  private static final class Rule {
+    final List<String> extensions = new ArrayList<>();
+    final List<Pattern> patterns = new ArrayList<>();
+    final CacheClass cacheClass;
+
+    Rule(CacheClass cacheClass) {
+      this.cacheClass = cacheClass;
+    }
+
+    boolean matches(String name, String extension) {
+      if (extensions.contains(extension)) return true;
+      for (Pattern pattern : patterns) {
+        if (pattern.matcher(name).matches()) return true;
+      }
+      return false;
+    }
+  }
+
+  private final List<Rule> rules;
+  private final List<CacheClass> classes;
+  /**
+   * The class of files no rule matches
+   */
+  private final CacheClass defaultClass;
+
+  private static CachePolicy instance;
+
+  public static synchronized CachePolicy getInstance() {
+    if (instance == null) {
+      instance = parse(Settings.getString("S3_CACHE_POLICY", DEFAULT_POLICY));
+      LOG.info("Using cache classes " + instance.classes);
+    }
+    return instance;
+  }
+
+  private CachePolicy(List<Rule> rules) {
+    this.rules = rules;
+    List<CacheClass> classes = new ArrayList<>();
+    for (Rule rule : rules) {
+      classes.add(rule.cacheClass);
+    }
+    this.defaultClass = new CacheClass(classes.size(), "*", Priority.NORMAL, 0, 0);
+    classes.add(defaultClass);
+    this.classes = Collections.unmodifiableList(classes);
+  }
+
+  /**
+   * Parses a policy such as "tip,tim=pinned:50%;fdt=low:64m;_*.dvd=pinned", see the class documentation
+   */
+  static CachePolicy parse(String spec) {
+    List<Rule> rules = new ArrayList<>();
+    for (String entry : spec.split(";")) {
+      if (entry.trim().isEmpty()) continue;
+      String[] kv = entry.split("=");
+      if (kv.length != 2) {
+        throw new IllegalArgumentException("Invalid cache policy entry \"" + entry + "\" in " + spec);
+      }
+      String[] value = kv[1].trim().split(":");
+      if (value.length > 2) {
+        throw new IllegalArgumentException("Invalid cache policy entry \"" + entry + "\" in " + spec);
+      }
+      Priority priority = Priority.valueOf(value[0].trim().toUpperCase(Locale.ROOT));
+      long budgetBytes = 0;
+      double budgetRatio = 0;
+      if (value.length == 2) {
+        String budget = value[1].trim();
+        if (budget.endsWith("%")) {
+          budgetRatio = Double.parseDouble(budget.substring(0, budget.length() - 1)) / 100;
+        } else {
+          budgetBytes = Settings.parseBytes(budget);
+        }
+      }
+      Rule rule = new Rule(new CacheClass(rules.size(), kv[0].trim(), priority, budgetBytes, budgetRatio));
+      for (String name : kv[0].split(",")) {
+        name = name.trim();
+        if (name.isEmpty()) continue;
+        if (name.contains("*") || name.contains("?")) {
+          rule.patterns.add(glob(name));
+        } else {
+          rule.extensions.add(name.toLowerCase(Locale.ROOT));
+        }
+      }
+      rules.add(rule);
+    }
+    return new CachePolicy(rules);
+  }
+
+  private static Pattern glob(String glob) {
+    StringBuilder regex = new StringBuilder();
+    for (String literal : glob.split("((?<=[*?])|(?=[*?]))")) {
+      if (literal.equals("*")) {
+        regex.append(".*");
+      } else if (literal.equals("?")) {
+        regex.append('.');
+      } else if (!literal.isEmpty()) {
+        regex.append(Pattern.quote(literal));
+      }
+    }
+    return Pattern.compile(regex.toString());
+  }
+
+  /**
+   * The classes of the policy, with the default class last
+   */
+  List<CacheClass> classes() {
+    return classes;
+  }
+
+  /**
+   * Returns the class of the blocks of the object {@code key}
+   */
+  CacheClass classOf(String key) {
+    String name = key.substring(key.lastIndexOf('/') + 1);
+    String extension = BlockSizePolicy.extension(name);
+    for (Rule rule : rules) {
+      if (rule.matches(name, extension)) return rule.cacheClass;
+    }
+    return defaultClass;
+  }
+}
@@ -0,0 +1,244 @@
+package io.anlessini.store;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.anlessini.store.S3BlockCache.CacheBlob;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A second cache tier on local disk (the Lambda's ephemeral {@code /tmp}) for blocks evicted from
+ * {@link S3BlockCache}. Evicted blocks are written out in the background, one file per block, and read back by
+ * memory-mapping the file, so a block that falls out of memory costs a page-cache read instead of another S3 request.
+ * The tier has its own size budget, configured by S3_DISK_CACHE_SIZE, and evicts least recently used blocks.
+ */
+public class DiskBlockCache {
+  private static final Logger LOG = LogManager.getLogger(DiskBlockCache.class);
+
+  static final String DEFAULT_DIR = "/tmp/s3-block-cache";
+  /**
+   * Disabled unless S3_DISK_CACHE_SIZE is set
+   */
+  static final long DEFAULT_MAX_SIZE = 0;
+  /**
+   * Evicted blocks waiting to be written are kept in memory, so spills are dropped once this many bytes are pending
+   */
+  static final long DEFAULT_MAX_PENDING_SIZE = 1024 * 1024 * 512;
+
+  private final Path dir;
+  private final long maxSize;
+  private final long maxPendingSize;
+  /**
+   * Blocks on disk in access order, guarded by {@code this}
+   */
+  private final LinkedHashMap<S3FileBlock, Path> blocks = new LinkedHashMap<>(16, 0.75f, true);
+  private final ExecutorService writer;
+  private final AtomicLong fileCount = new AtomicLong();
+
+  /**
+   * Current size of the blocks on disk in bytes, guarded by {@code this}
+   */
+  private long size;
+  /**
+   * Bytes of evicted blocks waiting to be written
+   */
+  private final AtomicLong pendingSize = new AtomicLong();
+
+  public final AtomicLong hits = new AtomicLong();
+  public final AtomicLong misses = new AtomicLong();
+  public final AtomicLong spilled = new AtomicLong();
+  public final AtomicLong dropped = new AtomicLong();
+  public final AtomicLong evicted = new AtomicLong();
+
+  private static DiskBlockCache instance;
+
+  public static synchronized DiskBlockCache getInstance() {
+    if (instance == null) {
+      instance = new DiskBlockCache(
+          Paths.get(Settings.getString("S3_DISK_CACHE_DIR", DEFAULT_DIR)),
+          Settings.getBytes("S3_DISK_CACHE_SIZE", DEFAULT_MAX_SIZE),
+          Settings.getBytes("S3_DISK_CACHE_PENDING_SIZE", DEFAULT_MAX_PENDING_SIZE));
+    }
+    return instance;
+  }
+
+  DiskBlockCache(Path dir, long maxSize, long maxPendingSize) {
+    this.dir = dir;
+    this.maxSize = maxSize;
+    this.maxPendingSize = maxPendingSize;
+    this.writer = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("s3-disk-spill-%d").setDaemon(true).build());
+    if (isEnabled()) {
+      try {
+        // files left by a previous JVM in this sandbox are not in our index
+        if (Files.exists(dir)) {
+          FileUtils.cleanDirectory(dir.toFile());
+        }
+        Files.createDirectories(dir);
+        LOG.info("Spilling evicted blocks to " + dir + ", up to " + maxSize + " bytes");
+      } catch (IOException e) {
+        throw new UncheckedIOException("Unable to use " + dir + " for the disk cache", e);
+      }
+    }
+  }
+
+  public boolean isEnabled() {
+    return maxSize > 0;
+  }
+
+  /**
+   * Returns the block mapped from disk, or null if it is not on disk
+   */
+  public ByteBuffer read(S3FileBlock fileBlock) {
+    if (!isEnabled()) return null;
+    Path path;
+    synchronized (this) {
+      path = blocks.get(fileBlock);
+    }
+    if (path == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() != fileBlock.length()) {
+        throw new IOException("Expected " + fileBlock.length() + " bytes but found " + channel.size());
+      }
+      // the mapping stays valid even if the file is evicted and deleted while the block is in memory
+      MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      hits.incrementAndGet();
+      LOG.trace("Read block " + fileBlock + " from " + path);
+      return data;
+    } catch (NoSuchFileException e) {
+      // evicted after we looked it up
+      misses.incrementAndGet();
+      return null;
+    } catch (IOException e) {
+      LOG.warn("Failed to read " + fileBlock + " from " + path, e);
+      remove(fileBlock, path);
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  public synchronized boolean contains(S3FileBlock fileBlock) {
+    return blocks.containsKey(fileBlock);
+  }
+
+  /**
+   * Writes a block evicted from memory to disk in the background. The block is retained until it has been written.
+   * Blocks already on disk are not written again, and spills are dropped while too many bytes are pending.
+   */
+  void spill(CacheBlob cb) {
+    if (!isEnabled() || cb.size() > maxSize || contains(cb.fileBlock)) return;
+    if (pendingSize.addAndGet(cb.size()) > maxPendingSize || !cb.tryRetain()) {
+      pendingSize.addAndGet(-cb.size());
+      dropped.incrementAndGet();
+      return;
+    }
+    try {
+      writer.execute(() -> {
+        try {
+          write(cb);
+        } finally {
+          pendingSize.addAndGet(-cb.size());
+          cb.release();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      pendingSize.addAndGet(-cb.size());
+      cb.release();
+      dropped.incrementAndGet();
+    }
+  }
+
+  private void write(CacheBlob cb) {
+    if (contains(cb.fileBlock)) return;
+    Path path = dir.resolve("block-" + fileCount.incrementAndGet());
+    Path tmp = dir.resolve(path.getFileName() + ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        ByteBuffer src = cb.duplicate();
+        while (src.hasRemaining()) {
+          channel.write(src);
+        }
+      }
+      Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn("Failed to spill " + cb.fileBlock + " to " + path, e);
+      deleteQuietly(tmp);
+      dropped.incrementAndGet();
+      return;
+    }
+    synchronized (this) {
+      if (blocks.put(cb.fileBlock, path) != null) {
+        throw new IllegalStateException("Block spilled twice: " + cb.fileBlock);
+      }
+      size += cb.size();
+      evict();
+    }
+    spilled.incrementAndGet();
+    LOG.trace("Spilled block " + cb.fileBlock + " to " + path);
+  }
+
+  private synchronized void evict() {
+    Iterator<Map.Entry<S3FileBlock, Path>> it = blocks.entrySet().iterator();
+    while (size > maxSize && it.hasNext()) {
+      Map.Entry<S3FileBlock, Path> entry = it.next();
+      it.remove();
+      size -= entry.getKey().length();
+      deleteQuietly(entry.getValue());
+      evicted.incrementAndGet();
+      LOG.trace("Evicted block " + entry.getKey() + " from disk");
+    }
+  }
+
+  private void remove(S3FileBlock fileBlock, Path path) {
+    synchronized (this) {
+      if (blocks.remove(fileBlock, path)) {
+        size -= fileBlock.length();
+      }
+    }
+    deleteQuietly(path);
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      LOG.warn("Failed to delete " + path, e);
+    }
+  }
+
+  /**
+   * Waits for the spills submitted so far to be written
+   */
+  void awaitSpills() throws InterruptedException, ExecutionException {
+    writer.submit(() -> {
+    }).get();
+  }
+
+  public synchronized long size() {
+    return size;
+  }
+
+  public void logStats() {
+    if (!isEnabled()) return;
+    LOG.trace("Disk cache size=" + size() + ", hits=" + hits.get() + ", misses=" + misses.get()
+        + ", spilled=" + spilled.get() + ", dropped=" + dropped.get() + ", evicted=" + evicted.get());
+  }
+}
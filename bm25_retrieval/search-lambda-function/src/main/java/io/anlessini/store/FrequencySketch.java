@@ -0,0 +1,97 @@
+package io.anlessini.store;
+
+/**
+ * A count-min sketch of 4-bit counters estimating how often each block was requested recently, used by
+ * {@link S3BlockCache} to decide whether a new block is worth evicting an older one for. Counters are halved
+ * periodically so that the estimates favor recent popularity.
+ *
+ * <p>Updates are not synchronized: concurrent increments may occasionally be lost, which only makes the
+ * estimate slightly less accurate.</p>
+ */
+class FrequencySketch {
+  private static final long[] SEED = {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final long ONE_MASK = 0x1111111111111111L;
+  private static final int MAX_TABLE_SIZE = 1 << 20;
+
+  /**
+   * Each long holds sixteen 4-bit counters
+   */
+  private final long[] table;
+  private final int tableMask;
+  /**
+   * The number of increments after which all counters are halved
+   */
+  private final int sampleSize;
+  private int size;
+
+  FrequencySketch(long expectedEntries) {
+    int tableSize = (int) Math.min(MAX_TABLE_SIZE, Math.max(64, expectedEntries));
+    tableSize = Integer.highestOneBit(tableSize - 1) << 1;
+    this.table = new long[tableSize];
+    this.tableMask = tableSize - 1;
+    this.sampleSize = 10 * tableSize;
+  }
+
+  /**
+   * Returns the estimated number of recent requests for the item, at most 15
+   */
+  int frequency(Object item) {
+    int hash = spread(item.hashCode());
+    int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+    for (int i = 0; i < 4; i++) {
+      int index = indexOf(hash, i);
+      int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  void increment(Object item) {
+    int hash = spread(item.hashCode());
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      added |= incrementAt(indexOf(hash, i), start + i);
+    }
+    if (added && ++size >= sampleSize) {
+      reset();
+    }
+  }
+
+  private boolean incrementAt(int index, int counter) {
+    int offset = counter << 2;
+    long mask = 0xfL << offset;
+    if ((table[index] & mask) != mask) {
+      table[index] += 1L << offset;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Halves every counter, forgetting old popularity
+   */
+  private void reset() {
+    int odd = 0;
+    for (int i = 0; i < table.length; i++) {
+      odd += Long.bitCount(table[i] & ONE_MASK);
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    size = (size >>> 1) - (odd >>> 2);
+  }
+
+  private int indexOf(int hash, int i) {
+    long h = (hash + SEED[i]) * SEED[i];
+    h += h >>> 32;
+    return ((int) h) & tableMask;
+  }
+
+  static int spread(int x) {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+}
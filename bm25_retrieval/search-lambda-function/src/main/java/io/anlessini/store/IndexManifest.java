@@ -0,0 +1,166 @@
+package io.anlessini.store;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * The files of an index with their sizes and ETags, stored as JSON next to the index files so that {@link S3Directory}
+ * can open the index with a single GET instead of listing the prefix. Small files such as the segments file and the
+ * segment infos can be inlined, so that opening the index does not have to fetch them either.
+ */
+public class IndexManifest {
+  public static final String NAME = "manifest.json";
+
+  /**
+   * The part size the AWS CLI uploads large files with, which determines their ETags, 8 MB
+   */
+  static final long DEFAULT_PART_SIZE = 1024 * 1024 * 8;
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  public int version = 1;
+  public List<Entry> files = new ArrayList<>();
+  /**
+   * In a {@link PackedIndex}, the number of bytes at the start of the data holding the small files read on open
+   */
+  @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+  public long headSize;
+
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public static class Entry {
+    /**
+     * The file name within the index
+     */
+    public String name;
+    public long size;
+    /**
+     * The ETag S3 assigns the file when it is uploaded with the AWS CLI
+     */
+    public String etag;
+    /**
+     * The contents of the file if it was inlined, serialized as base64
+     */
+    public byte[] data;
+    /**
+     * In a {@link PackedIndex}, the position of the file in the data following the header
+     */
+    public Long offset;
+    /**
+     * In a {@link PackedIndex}, the uncompressed size of the chunks the file is compressed in, or null if it is stored
+     * as is
+     */
+    public Integer chunkSize;
+    /**
+     * The start of each compressed chunk relative to {@link #offset}, followed by the end of the last one
+     */
+    public long[] chunks;
+
+    public Entry() {
+    }
+
+    public Entry(String name, long size) {
+      this.name = name;
+      this.size = size;
+    }
+
+    /**
+     * The number of bytes the file takes in a {@link PackedIndex}
+     */
+    long storedSize() {
+      return chunks != null ? chunks[chunks.length - 1] : size;
+    }
+
+    @Override
+    public String toString() {
+      return name + ":" + size + (data != null ? " (inlined)" : "") + (chunks != null ? " (compressed)" : "");
+    }
+  }
+
+  public static IndexManifest read(InputStream in) throws IOException {
+    return MAPPER.readValue(in, IndexManifest.class);
+  }
+
+  public void write(OutputStream out) throws IOException {
+    MAPPER.writeValue(out, this);
+  }
+
+  /**
+   * Builds the manifest of a local index directory, inlining files of up to {@code maxInlineSize} bytes
+   */
+  public static IndexManifest fromDirectory(Path dir, int maxInlineSize) throws IOException {
+    IndexManifest manifest = new IndexManifest();
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+        String name = file.getFileName().toString();
+        if (!Files.isRegularFile(file) || name.equals(NAME)) continue;
+        Entry entry = new Entry(name, Files.size(file));
+        entry.etag = etag(file, DEFAULT_PART_SIZE);
+        if (entry.size <= maxInlineSize) {
+          entry.data = Files.readAllBytes(file);
+        }
+        manifest.files.add(entry);
+      }
+    }
+    return manifest;
+  }
+
+  /**
+   * Computes the ETag of a file uploaded in parts of {@code partSize}: the MD5 of the contents if it is smaller than a
+   * part, otherwise the MD5 of the concatenated part MD5s followed by the number of parts
+   */
+  static String etag(Path file, long partSize) throws IOException {
+    MessageDigest total = md5();
+    MessageDigest part = md5();
+    byte[] buffer = new byte[1024 * 64];
+    long partBytes = 0;
+    int parts = 0;
+    try (InputStream in = Files.newInputStream(file)) {
+      int n;
+      while ((n = in.read(buffer, 0, (int) Math.min(buffer.length, partSize - partBytes))) > 0) {
+        part.update(buffer, 0, n);
+        partBytes += n;
+        if (partBytes == partSize) {
+          total.update(part.digest());
+          parts++;
+          partBytes = 0;
+        }
+      }
+    }
+    if (parts == 0) {
+      // files smaller than a part are uploaded in a single request
+      return hex(part.digest());
+    }
+    if (partBytes > 0) {
+      total.update(part.digest());
+      parts++;
+    }
+    return hex(total.digest()) + "-" + parts;
+  }
+
+  private static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,351 @@
+package io.anlessini.store;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.AtomicLongMap;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the S3 read path and of query processing, emitted once per invocation as a
+ * single JSON line in the CloudWatch embedded metric format, so that they can be aggregated without TRACE logging.
+ * Unlike {@link S3IndexInput#stats} and the cache statistics, the metrics are reset every time they are emitted.
+ * <p>
+ * Besides the count, percentiles and maximum of each histogram, which CloudWatch turns into metrics, the line carries
+ * the histogram buckets, which can be summed across invocations to compute exact percentiles offline.
+ */
+public class Metrics {
+  /**
+   * Duration of each ranged GET until its last byte arrived, in microseconds
+   */
+  public static final String S3_GET_LATENCY = "S3GetLatency";
+  /**
+   * Size of each ranged GET in bytes as downloaded, compressed for compressed files
+   */
+  public static final String S3_GET_BYTES = "S3GetBytes";
+  /**
+   * Time each ranged GET waited in the fetch queue before it was sent, in microseconds
+   */
+  public static final String S3_QUEUE_LATENCY = "S3QueueLatency";
+  public static final String S3_REQUESTS = "S3Requests";
+  /**
+   * Requests that S3 throttled with 503 SlowDown and that were retried
+   */
+  public static final String S3_THROTTLED = "S3Throttled";
+  /**
+   * Requests duplicated because they were slow to respond, and the duplicates that responded first
+   */
+  public static final String S3_HEDGED = "S3Hedged";
+  public static final String S3_HEDGE_WINS = "S3HedgeWins";
+  /**
+   * Bytes downloaded from S3, counting compressed chunks by their compressed size
+   */
+  public static final String S3_BYTES = "S3Bytes";
+  /**
+   * Bytes Lucene read through {@link S3Directory}, which {@link #S3_BYTES} is compared to as the read amplification
+   */
+  public static final String BYTES_READ = "BytesRead";
+  public static final String CACHE_HITS = "CacheHits";
+  public static final String CACHE_MISSES = "CacheMisses";
+  public static final String CACHE_EVICTIONS = "CacheEvictions";
+  /**
+   * Queries answered from the result cache, including those that waited for an identical query in flight, and the
+   * estimated size of the cached results
+   */
+  public static final String RESULT_CACHE_HITS = "ResultCacheHits";
+  public static final String RESULT_CACHE_MISSES = "ResultCacheMisses";
+  public static final String RESULT_CACHE_EVICTIONS = "ResultCacheEvictions";
+  public static final String RESULT_CACHE_BYTES = "ResultCacheBytes";
+  public static final String RESULT_CACHE_ENTRIES = "ResultCacheEntries";
+  /**
+   * Postings the impact-ordered index processed before the queries terminated
+   */
+  public static final String IMPACT_POSTINGS = "ImpactPostings";
+
+  /**
+   * Query phases in microseconds: building the query from the analyzed text, ranking, and looking up the hits' ids,
+   * followed by the whole query
+   */
+  public static final String QUERY_ANALYZE_LATENCY = "QueryAnalyzeLatency";
+  public static final String QUERY_SEARCH_LATENCY = "QuerySearchLatency";
+  public static final String QUERY_FETCH_LATENCY = "QueryFetchLatency";
+  public static final String QUERY_LATENCY = "QueryLatency";
+
+  static final String DEFAULT_NAMESPACE = "Anlessini";
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final AtomicLongMap<String> counters = AtomicLongMap.create();
+  /**
+   * Cache hits and misses by file extension
+   */
+  private final AtomicLongMap<String> hitsByExtension = AtomicLongMap.create();
+  private final AtomicLongMap<String> missesByExtension = AtomicLongMap.create();
+  private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+  /**
+   * The last value of each gauge
+   */
+  private final Map<String, Long> gauges = new ConcurrentHashMap<>();
+  private final String namespace;
+  private final boolean enabled;
+
+  private static Metrics instance;
+
+  public static synchronized Metrics getInstance() {
+    if (instance == null) {
+      instance = new Metrics(Settings.getString("METRICS_NAMESPACE", DEFAULT_NAMESPACE),
+          Settings.getBoolean("METRICS_ENABLED", true));
+    }
+    return instance;
+  }
+
+  Metrics(String namespace, boolean enabled) {
+    this.namespace = namespace;
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void count(String name, long delta) {
+    if (enabled) counters.addAndGet(name, delta);
+  }
+
+  public void record(String name, long value) {
+    if (enabled) histogram(name).record(value);
+  }
+
+  /**
+   * Sets a value that is reported as it was last set, such as the size of a cache
+   */
+  public void gauge(String name, long value) {
+    if (enabled) gauges.put(name, value);
+  }
+
+  /**
+   * Records a duration measured with {@link System#nanoTime()} in microseconds
+   */
+  public void recordNanos(String name, long startNanos) {
+    record(name, (System.nanoTime() - startNanos) / 1000);
+  }
+
+  void cacheAccess(String key, boolean hit) {
+    if (!enabled) return;
+    String extension = BlockSizePolicy.extension(key);
+    if (hit) {
+      counters.incrementAndGet(CACHE_HITS);
+      hitsByExtension.incrementAndGet(extension);
+    } else {
+      counters.incrementAndGet(CACHE_MISSES);
+      missesByExtension.incrementAndGet(extension);
+    }
+  }
+
+  Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, n -> new Histogram());
+  }
+
+  long counter(String name) {
+    return counters.get(name);
+  }
+
+  /**
+   * Writes the metrics recorded since the last call as an embedded metric format line and resets them. Each dimension
+   * is attached to all metrics, such as the function name.
+   */
+  public void emit(PrintStream out, Map<String, String> dimensions) {
+    if (!enabled) return;
+    try {
+      out.println(MAPPER.writeValueAsString(snapshot(dimensions, System.currentTimeMillis())));
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  Map<String, Object> snapshot(Map<String, String> dimensions, long timestamp) {
+    Map<String, Object> root = new LinkedHashMap<>();
+    List<Map<String, String>> metrics = new ArrayList<>();
+    root.putAll(dimensions);
+
+    for (Map.Entry<String, Long> counter : new TreeMap<>(counters.asMap()).entrySet()) {
+      String unit = counter.getKey().endsWith("Bytes") || counter.getKey().equals(BYTES_READ) ? "Bytes" : "Count";
+      putMetric(root, metrics, counter.getKey(), counter.getValue(), unit);
+    }
+    for (Map.Entry<String, Long> gauge : new TreeMap<>(gauges).entrySet()) {
+      putMetric(root, metrics, gauge.getKey(), gauge.getValue(), gauge.getKey().endsWith("Bytes") ? "Bytes" : "Count");
+    }
+    long hits = counters.get(CACHE_HITS), misses = counters.get(CACHE_MISSES);
+    if (hits + misses > 0) {
+      putMetric(root, metrics, "CacheHitRatio", (double) hits / (hits + misses), "None");
+    }
+    long resultHits = counters.get(RESULT_CACHE_HITS), resultMisses = counters.get(RESULT_CACHE_MISSES);
+    if (resultHits + resultMisses > 0) {
+      putMetric(root, metrics, "ResultCacheHitRatio", (double) resultHits / (resultHits + resultMisses), "None");
+    }
+    long requests = counters.get(S3_REQUESTS);
+    if (requests > 0 && counters.get(S3_HEDGED) > 0) {
+      putMetric(root, metrics, "S3HedgeRate", (double) counters.get(S3_HEDGED) / requests, "None");
+    }
+    long bytesRead = counters.get(BYTES_READ);
+    if (bytesRead > 0) {
+      putMetric(root, metrics, "ReadAmplification", (double) counters.get(S3_BYTES) / bytesRead, "None");
+    }
+
+    // per file type hit ratios are kept as properties, as a dimension per extension would multiply the metrics
+    Map<String, Double> hitRatios = new TreeMap<>();
+    for (String extension : union(hitsByExtension, missesByExtension)) {
+      long extensionHits = hitsByExtension.get(extension);
+      hitRatios.put(extension.isEmpty() ? "none" : extension,
+          (double) extensionHits / (extensionHits + missesByExtension.get(extension)));
+    }
+    if (!hitRatios.isEmpty()) {
+      root.put("CacheHitRatioByExtension", hitRatios);
+    }
+
+    for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+      Histogram histogram = entry.getValue();
+      if (histogram.count() == 0) continue;
+      String name = entry.getKey();
+      String unit = name.endsWith("Bytes") ? "Bytes" : "Microseconds";
+      putMetric(root, metrics, name + "P50", histogram.valueAtPercentile(50), unit);
+      putMetric(root, metrics, name + "P99", histogram.valueAtPercentile(99), unit);
+      putMetric(root, metrics, name + "Max", histogram.max(), unit);
+      root.put(name, histogram.toMap());
+    }
+
+    Map<String, Object> directive = new LinkedHashMap<>();
+    directive.put("Namespace", namespace);
+    directive.put("Dimensions", new Object[]{dimensions.keySet().toArray(new String[0])});
+    directive.put("Metrics", metrics);
+    Map<String, Object> aws = new LinkedHashMap<>();
+    aws.put("Timestamp", timestamp);
+    aws.put("CloudWatchMetrics", new Object[]{directive});
+    root.put("_aws", aws);
+
+    clear();
+    return root;
+  }
+
+  private static void putMetric(Map<String, Object> root, List<Map<String, String>> metrics, String name,
+                                Object value, String unit) {
+    Map<String, String> definition = new LinkedHashMap<>();
+    definition.put("Name", name);
+    definition.put("Unit", unit);
+    metrics.add(definition);
+    root.put(name, value);
+  }
+
+  private static List<String> union(AtomicLongMap<String> a, AtomicLongMap<String> b) {
+    TreeMap<String, Boolean> keys = new TreeMap<>();
+    a.asMap().keySet().forEach(key -> keys.put(key, true));
+    b.asMap().keySet().forEach(key -> keys.put(key, true));
+    return new ArrayList<>(keys.keySet());
+  }
+
+  public void clear() {
+    counters.clear();
+    hitsByExtension.clear();
+    missesByExtension.clear();
+    gauges.clear();
+    histograms.values().forEach(Histogram::clear);
+  }
+
+  /**
+   * A histogram of non-negative values in logarithmic buckets, each power of two split into {@value #SUB_BUCKETS}
+   * linear sub-buckets, so that any recorded value is reported within 1/{@value #SUB_BUCKETS} of its true value, in
+   * the manner of HdrHistogram. Recording is lock free.
+   */
+  static class Histogram {
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Values below {@link #SUB_BUCKETS} get a bucket each, every power of two above them up to 2^63 gets SUB_BUCKETS
+     */
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucketOf(long value) {
+      if (value < SUB_BUCKETS) return (int) value;
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int shift = exponent - SUB_BUCKET_BITS;
+      return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * The smallest value that falls into the bucket
+     */
+    static long lowerBound(int bucket) {
+      if (bucket < SUB_BUCKETS) return bucket;
+      int shift = bucket / SUB_BUCKETS - 1;
+      return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    void record(long value) {
+      value = Math.max(0, value);
+      counts.incrementAndGet(bucketOf(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      max.accumulateAndGet(value, Math::max);
+    }
+
+    long count() {
+      return count.get();
+    }
+
+    long max() {
+      return max.get();
+    }
+
+    /**
+     * Returns the lower bound of the bucket holding the value at the given percentile, or the maximum for the top one
+     */
+    long valueAtPercentile(double percentile) {
+      long total = count.get();
+      if (total == 0) return 0;
+      long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+      long seen = 0;
+      for (int i = 0; i < counts.length(); i++) {
+        seen += counts.get(i);
+        if (seen >= total) return max.get();
+        if (seen >= rank) return lowerBound(i);
+      }
+      return max.get();
+    }
+
+    Map<String, Object> toMap() {
+      Map<String, Object> map = new LinkedHashMap<>();
+      map.put("Count", count.get());
+      map.put("Sum", sum.get());
+      map.put("Max", max.get());
+      List<long[]> buckets = new ArrayList<>();
+      for (int i = 0; i < counts.length(); i++) {
+        long n = counts.get(i);
+        if (n > 0) buckets.add(new long[]{lowerBound(i), n});
+      }
+      map.put("Buckets", buckets);
+      return map;
+    }
+
+    void clear() {
+      for (int i = 0; i < counts.length(); i++) {
+        counts.set(i, 0);
+      }
+      count.set(0);
+      sum.set(0);
+      max.set(0);
+    }
+  }
+}
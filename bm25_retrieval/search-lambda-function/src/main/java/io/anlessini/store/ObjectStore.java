@@ -0,0 +1,45 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * The blob store that {@link S3Directory} and {@link S3IndexInput} read index files from.
+ * Implementations must be thread-safe.
+ */
+public interface ObjectStore extends Closeable {
+  /**
+   * Lists every object under the given prefix, following pagination as needed
+   */
+  List<S3ObjectSummary> listObjects(String bucket, String prefix) throws IOException;
+
+  /**
+   * Opens a stream over the bytes [offset, offset + length) of an object, or up to its end if it is shorter, throwing
+   * {@link java.nio.file.NoSuchFileException} if it does not exist.
+   * Throttled requests surface as an {@link com.amazonaws.services.s3.model.AmazonS3Exception} with status 503.
+   */
+  InputStream getObject(String bucket, String key, long offset, long length) throws IOException;
+
+  /**
+   * Opens a stream over an entire object, throwing {@link java.nio.file.NoSuchFileException} if it does not exist
+   */
+  InputStream getObject(String bucket, String key) throws IOException;
+
+  @Override
+  void close();
+
+  /**
+   * A stream decoded from a different number of bytes than it returns, such as one decompressing chunks as they are
+   * downloaded
+   */
+  interface EncodedStream {
+    /**
+     * The number of bytes downloaded to produce the whole stream
+     */
+    long encodedLength();
+  }
+}
@@ -0,0 +1,403 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Compressor;
+import org.apache.lucene.codecs.compressing.Decompressor;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * An index stored as a single object, so that opening it does not pay a request per file. The object starts with a
+ * magic number and the length of a JSON {@link IndexManifest} holding the offset of every file, followed by the
+ * manifest and the file data. The small files read when the index is opened come first in the data, most frequently
+ * read first, so that one ranged GET of the start of the object covers everything needed to open a reader.
+ *
+ * <p>Files that compress well, such as positions, term vectors and stored fields, can be stored as LZ4 compressed
+ * chunks of the block size they are read in, so that a cold reader downloads fewer bytes. Chunks are decompressed as
+ * they are downloaded, so the cache only ever sees whole uncompressed blocks.</p>
+ *
+ * <pre>
+ * | "ANLSPACK" | header length (int) | header (JSON) | head: small files | other files |
+ * </pre>
+ */
+public class PackedIndex {
+  public static final String NAME = "index.pack";
+
+  static final byte[] MAGIC = "ANLSPACK".getBytes(StandardCharsets.US_ASCII);
+  static final int PREAMBLE_SIZE = MAGIC.length + Integer.BYTES;
+  /**
+   * Files up to this size are packed at the front, 64 KB
+   */
+  public static final int DEFAULT_MAX_HEAD_FILE_SIZE = 1024 * 64;
+  /**
+   * The number of bytes fetched by the first GET of a pack, which should cover the header and the head, 1 MB
+   */
+  static final int DEFAULT_HEAD_FETCH_SIZE = 1024 * 1024;
+  /**
+   * Compressed files are stored as is unless compression saves at least this share of their size
+   */
+  static final double MIN_COMPRESSION_SAVINGS = 0.1;
+  private static final CompressionMode COMPRESSION_MODE = CompressionMode.FAST;
+  /**
+   * The files packed at the front when there are no access counts to order them by, in the order Lucene opens them
+   */
+  private static final List<String> OPEN_ORDER = Arrays.asList("segments", "si", "cfe", "fnm", "nvm", "dvm", "fdx",
+      "tvx", "tip");
+
+  public final IndexManifest manifest;
+  private final String packKey;
+  /**
+   * The position of the file data in the object, following the header
+   */
+  private final long dataOffset;
+  /**
+   * The start of the file data holding the small files
+   */
+  private final ByteBuffer head;
+  private final Map<String, IndexManifest.Entry> entries = new HashMap<>();
+
+  private PackedIndex(IndexManifest manifest, String packKey, long dataOffset, ByteBuffer head) {
+    this.manifest = manifest;
+    this.packKey = packKey;
+    this.dataOffset = dataOffset;
+    this.head = head;
+    for (IndexManifest.Entry entry : manifest.files) {
+      entries.put(entry.name, entry);
+    }
+  }
+
+  /**
+   * Reads the header and the head of a pack, with a single GET if they fit in {@code headFetchSize}. Throws
+   * {@link NoSuchFileException} if there is no pack.
+   */
+  public static PackedIndex open(ObjectStore store, String bucket, String packKey, int headFetchSize)
+      throws IOException {
+    ByteArrayOutputStream prefix = new ByteArrayOutputStream(headFetchSize);
+    readRange(store, bucket, packKey, 0, Math.max(headFetchSize, PREAMBLE_SIZE), prefix);
+    byte[] bytes = prefix.toByteArray();
+    if (bytes.length < PREAMBLE_SIZE || !Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC)) {
+      throw new IOException("Not a packed index: " + bucket + "/" + packKey);
+    }
+    final int headerLength = ByteBuffer.wrap(bytes, MAGIC.length, Integer.BYTES).getInt();
+    final int dataOffset = PREAMBLE_SIZE + headerLength;
+    if (bytes.length < dataOffset) {
+      readRange(store, bucket, packKey, bytes.length, dataOffset - bytes.length, prefix);
+      bytes = prefix.toByteArray();
+    }
+    IndexManifest manifest = IndexManifest.read(new ByteArrayInputStream(bytes, PREAMBLE_SIZE, headerLength));
+
+    final int headEnd = Math.toIntExact(dataOffset + manifest.headSize);
+    if (bytes.length < headEnd) {
+      readRange(store, bucket, packKey, bytes.length, headEnd - bytes.length, prefix);
+      bytes = prefix.toByteArray();
+    }
+    ByteBuffer head = ByteBuffer.wrap(bytes, dataOffset, Math.toIntExact(manifest.headSize)).slice();
+    return new PackedIndex(manifest, packKey, dataOffset, head);
+  }
+
+  private static void readRange(ObjectStore store, String bucket, String key, long offset, int length,
+                                ByteArrayOutputStream out) throws IOException {
+    try (InputStream in = store.getObject(bucket, key, offset, length)) {
+      byte[] buffer = new byte[1024 * 64];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+      }
+    }
+  }
+
+  /**
+   * Returns the contents of a file packed at the front, or null if it has to be read from the object
+   */
+  public ByteBuffer headFile(String name) {
+    IndexManifest.Entry entry = entries.get(name);
+    if (entry == null || entry.offset + entry.size > manifest.headSize) return null;
+    ByteBuffer file = head.duplicate();
+    file.position(Math.toIntExact(entry.offset));
+    file.limit(Math.toIntExact(entry.offset + entry.size));
+    return file.slice();
+  }
+
+  /**
+   * Returns a store that serves the packed files as objects {@code prefix/<name>}, reading them as ranges of the pack
+   * from {@code delegate}
+   */
+  public ObjectStore store(ObjectStore delegate, String prefix) {
+    return new PackedObjectStore(delegate, prefix);
+  }
+
+  private class PackedObjectStore implements ObjectStore {
+    private final ObjectStore delegate;
+    private final String prefix;
+
+    PackedObjectStore(ObjectStore delegate, String prefix) {
+      this.delegate = delegate;
+      this.prefix = prefix;
+    }
+
+    private IndexManifest.Entry entry(String bucket, String key) throws NoSuchFileException {
+      IndexManifest.Entry entry = key.startsWith(prefix) ? entries.get(key.substring(prefix.length())) : null;
+      if (entry == null) {
+        throw new NoSuchFileException(bucket + "/" + key);
+      }
+      return entry;
+    }
+
+    @Override
+    public List<S3ObjectSummary> listObjects(String bucket, String listPrefix) {
+      List<S3ObjectSummary> summaries = new ArrayList<>();
+      for (IndexManifest.Entry entry : manifest.files) {
+        String key = prefix + entry.name;
+        if (!key.startsWith(listPrefix)) continue;
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName(bucket);
+        summary.setKey(key);
+        summary.setSize(entry.size);
+        summaries.add(summary);
+      }
+      return summaries;
+    }
+
+    @Override
+    public InputStream getObject(String bucket, String key, long offset, long length) throws IOException {
+      IndexManifest.Entry entry = entry(bucket, key);
+      if (offset < 0 || length < 0 || (offset >= entry.size && length > 0)) {
+        throw new EOFException("Range " + offset + ":" + length + " out of bounds for " + bucket + "/" + key
+            + " with size " + entry.size);
+      }
+      length = Math.min(length, entry.size - offset);
+      if (entry.chunks == null || length == 0) {
+        return delegate.getObject(bucket, packKey, dataOffset + entry.offset + offset, length);
+      }
+      final int first = Math.toIntExact(offset / entry.chunkSize);
+      final int last = Math.toIntExact((offset + length - 1) / entry.chunkSize);
+      final long from = entry.chunks[first];
+      final long to = entry.chunks[last + 1];
+      S3IndexInput.stats.readCompressed.addAndGet(to - from);
+      InputStream compressed = delegate.getObject(bucket, packKey, dataOffset + entry.offset + from, to - from);
+      return new DecompressingInputStream(compressed, to - from, entry, first, offset, offset + length);
+    }
+
+    @Override
+    public InputStream getObject(String bucket, String key) throws IOException {
+      return getObject(bucket, key, 0, entry(bucket, key).size);
+    }
+
+    @Override
+    public void close() {
+      delegate.close();
+    }
+  }
+
+  /**
+   * Decompresses the chunks of a file covering the range {@code [start, end)} as they are read from the stream of the
+   * compressed chunks
+   */
+  private static class DecompressingInputStream extends InputStream implements ObjectStore.EncodedStream {
+    private final InputStream in;
+    private final long compressedLength;
+    private final IndexManifest.Entry entry;
+    private final long start;
+    private final long end;
+    private final Decompressor decompressor = COMPRESSION_MODE.newDecompressor();
+    private final BytesRef chunk = new BytesRef();
+    /**
+     * The next chunk to decompress
+     */
+    private int next;
+    private int pos;
+    private int limit;
+
+    DecompressingInputStream(InputStream in, long compressedLength, IndexManifest.Entry entry, int first, long start,
+                             long end) {
+      this.in = in;
+      this.compressedLength = compressedLength;
+      this.entry = entry;
+      this.next = first;
+      this.start = start;
+      this.end = end;
+    }
+
+    private boolean nextChunk() throws IOException {
+      final long chunkStart = (long) next * entry.chunkSize;
+      if (chunkStart >= end) return false;
+      byte[] compressed = new byte[Math.toIntExact(entry.chunks[next + 1] - entry.chunks[next])];
+      IOUtils.readFully(in, compressed);
+      final int chunkLength = (int) Math.min(entry.chunkSize, entry.size - chunkStart);
+      final int from = (int) (Math.max(start, chunkStart) - chunkStart);
+      final int to = (int) (Math.min(end, chunkStart + chunkLength) - chunkStart);
+      decompressor.decompress(new ByteArrayDataInput(compressed), chunkLength, from, to - from, chunk);
+      pos = chunk.offset;
+      limit = chunk.offset + chunk.length;
+      next++;
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      while (pos >= limit) {
+        if (!nextChunk()) return -1;
+      }
+      int n = Math.min(len, limit - pos);
+      System.arraycopy(chunk.bytes, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public long encodedLength() {
+      return compressedLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Packs the files of a local index directory into {@code out}. Files up to {@code maxHeadFileSize} go at the front,
+   * ordered by how often they were read according to the directory's {@link PrewarmManifest} if there is one.
+   */
+  public static IndexManifest write(Path dir, OutputStream out, int maxHeadFileSize) throws IOException {
+    return write(dir, out, maxHeadFileSize, Collections.emptySet());
+  }
+
+  /**
+   * Same as {@link #write(Path, OutputStream, int)}, storing the files with the given extensions compressed in chunks
+   * of the block size they are read in, if that makes them smaller
+   */
+  public static IndexManifest write(Path dir, OutputStream out, int maxHeadFileSize, Set<String> compressExtensions)
+      throws IOException {
+    final Map<String, Long> accessCounts = new HashMap<>();
+    Path prewarm = dir.resolve(PrewarmManifest.NAME);
+    if (Files.exists(prewarm)) {
+      try (InputStream in = Files.newInputStream(prewarm)) {
+        for (PrewarmManifest.Entry entry : PrewarmManifest.read(in).entries) {
+          accessCounts.merge(entry.file, entry.count, Long::sum);
+        }
+      }
+    }
+
+    final List<IndexManifest.Entry> head = new ArrayList<>();
+    final List<IndexManifest.Entry> rest = new ArrayList<>();
+    final Map<String, Path> compressed = new HashMap<>();
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+        String name = file.getFileName().toString();
+        if (!Files.isRegularFile(file) || name.equals(NAME) || name.equals(IndexManifest.NAME)) continue;
+        IndexManifest.Entry entry = new IndexManifest.Entry(name, Files.size(file));
+        if (entry.size <= maxHeadFileSize) {
+          head.add(entry);
+          continue;
+        }
+        if (compressExtensions.contains(extension(name))) {
+          Path chunks = compress(file, entry);
+          if (chunks != null) {
+            compressed.put(name, chunks);
+          }
+        }
+        rest.add(entry);
+      }
+    }
+    head.sort(Comparator.<IndexManifest.Entry>comparingLong(entry -> -accessCounts.getOrDefault(entry.name, 0L))
+        .thenComparingInt(entry -> openOrder(entry.name))
+        .thenComparing(entry -> entry.name));
+
+    IndexManifest manifest = new IndexManifest();
+    long offset = 0;
+    for (IndexManifest.Entry entry : head) {
+      entry.offset = offset;
+      offset += entry.size;
+      manifest.files.add(entry);
+    }
+    manifest.headSize = offset;
+    for (IndexManifest.Entry entry : rest) {
+      entry.offset = offset;
+      offset += entry.storedSize();
+      manifest.files.add(entry);
+    }
+
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    manifest.write(header);
+    DataOutputStream data = new DataOutputStream(out);
+    data.write(MAGIC);
+    data.writeInt(header.size());
+    header.writeTo(data);
+    try {
+      for (IndexManifest.Entry entry : manifest.files) {
+        Files.copy(compressed.getOrDefault(entry.name, dir.resolve(entry.name)), data);
+      }
+      data.flush();
+    } finally {
+      for (Path chunks : compressed.values()) {
+        Files.deleteIfExists(chunks);
+      }
+    }
+    return manifest;
+  }
+
+  /**
+   * Compresses a file into a temporary file of chunks, filling in the chunk index of its entry. Returns null, leaving
+   * the entry as is, if compression does not pay off.
+   */
+  private static Path compress(Path file, IndexManifest.Entry entry) throws IOException {
+    final int chunkSize = BlockSizePolicy.DEFAULT_EXTENSION_SIZES.getOrDefault(extension(entry.name),
+        S3FileBlock.DEFAULT_BLOCK_SIZE);
+    final int chunkCount = Math.toIntExact((entry.size + chunkSize - 1) / chunkSize);
+    final long[] chunks = new long[chunkCount + 1];
+    final Path output = Files.createTempFile(entry.name, ".lz4");
+    final Compressor compressor = COMPRESSION_MODE.newCompressor();
+    final byte[] buffer = new byte[chunkSize];
+    final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+    try (InputStream in = Files.newInputStream(file);
+         OutputStream out = new BufferedOutputStream(Files.newOutputStream(output))) {
+      for (int i = 0; i < chunkCount; i++) {
+        int length = (int) Math.min(chunkSize, entry.size - (long) i * chunkSize);
+        IOUtils.readFully(in, buffer, 0, length);
+        chunk.reset();
+        compressor.compress(buffer, 0, length, new OutputStreamDataOutput(chunk));
+        chunk.writeTo(out);
+        chunks[i + 1] = chunks[i] + chunk.size();
+      }
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(output);
+      throw e;
+    }
+    if (chunks[chunkCount] > entry.size * (1 - MIN_COMPRESSION_SAVINGS)) {
+      Files.deleteIfExists(output);
+      return null;
+    }
+    entry.chunkSize = chunkSize;
+    entry.chunks = chunks;
+    return output;
+  }
+
+  private static String extension(String name) {
+    return name.startsWith("segments") ? "segments" : name.substring(name.lastIndexOf('.') + 1);
+  }
+
+  private static int openOrder(String name) {
+    int order = OPEN_ORDER.indexOf(extension(name));
+    return order < 0 ? OPEN_ORDER.size() : order;
+  }
+}
@@ -0,0 +1,76 @@
+package io.anlessini.store;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The byte ranges of index files that a query log touched, most frequently read first. Stored as JSON next to the
+ * index files so that {@link Prewarmer} can load them into the cache while the Lambda initializes.
+ */
+public class PrewarmManifest {
+  public static final String NAME = "prewarm.json";
+
+  private static final ObjectMapper MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+  public int version = 1;
+  /**
+   * The number of queries replayed to produce the manifest
+   */
+  public long queries;
+  public List<Entry> entries = new ArrayList<>();
+
+  public static class Entry {
+    /**
+     * The file name within the index
+     */
+    public String file;
+    public long offset;
+    public int length;
+    /**
+     * The number of reads that touched the range
+     */
+    public long count;
+
+    public Entry() {
+    }
+
+    public Entry(String file, long offset, int length) {
+      this.file = file;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Entry that = (Entry) o;
+      return offset == that.offset && length == that.length && file.equals(that.file);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(file, offset, length);
+    }
+
+    @Override
+    public String toString() {
+      return file + "@" + offset + ":" + length + "x" + count;
+    }
+  }
+
+  public static PrewarmManifest read(InputStream in) throws IOException {
+    return MAPPER.readValue(in, PrewarmManifest.class);
+  }
+
+  public void write(OutputStream out) throws IOException {
+    MAPPER.writeValue(out, this);
+  }
+}
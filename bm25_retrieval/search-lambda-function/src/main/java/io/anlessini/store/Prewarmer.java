@@ -0,0 +1,140 @@
+package io.anlessini.store;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the blocks listed in a {@link PrewarmManifest} into the cache, most frequently read first, so that the first
+ * queries after a cold start do not pay for downloading the term dictionaries and popular postings. Loading stops at
+ * a byte budget (S3_PREWARM_SIZE) and a time budget (S3_PREWARM_TIMEOUT), whichever comes first.
+ */
+public class Prewarmer {
+  private static final Logger LOG = LogManager.getLogger(Prewarmer.class);
+
+  /**
+   * The default number of bytes to prewarm, 1 GB
+   */
+  static final long DEFAULT_MAX_SIZE = 1024 * 1024 * 1024;
+  /**
+   * The default time to spend prewarming, leaving headroom in the 10 second Lambda init phase
+   */
+  static final long DEFAULT_TIMEOUT_MILLIS = 6000;
+  /**
+   * The default number of files loaded concurrently, each of which downloads its blocks in parallel
+   */
+  static final int DEFAULT_PARALLELISM = 8;
+
+  private final long maxSize;
+  private final long timeoutMillis;
+  private final int parallelism;
+
+  public static Prewarmer fromSettings() {
+    return new Prewarmer(
+        Settings.getBytes("S3_PREWARM_SIZE", DEFAULT_MAX_SIZE),
+        Settings.getInt("S3_PREWARM_TIMEOUT", (int) DEFAULT_TIMEOUT_MILLIS),
+        Settings.getInt("S3_PREWARM_PARALLELISM", DEFAULT_PARALLELISM));
+  }
+
+  public Prewarmer(long maxSize, long timeoutMillis, int parallelism) {
+    this.maxSize = maxSize;
+    this.timeoutMillis = timeoutMillis;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Reads the manifest stored with the index, or returns null if there is none
+   */
+  public static PrewarmManifest readManifest(S3Directory directory) throws IOException {
+    if (!Arrays.asList(directory.listAll()).contains(PrewarmManifest.NAME)) {
+      return null;
+    }
+    try (IndexInput in = directory.openInput(PrewarmManifest.NAME, IOContext.READONCE)) {
+      byte[] data = new byte[Math.toIntExact(in.length())];
+      in.readBytes(data, 0, data.length);
+      return PrewarmManifest.read(new ByteArrayInputStream(data));
+    }
+  }
+
+  /**
+   * Prewarms the directory from its manifest if it has one, returning the number of bytes loaded
+   */
+  public long prewarm(S3Directory directory) throws IOException {
+    if (maxSize <= 0 || timeoutMillis <= 0) return 0;
+    PrewarmManifest manifest = readManifest(directory);
+    if (manifest == null) {
+      LOG.info("No " + PrewarmManifest.NAME + " found, skipping prewarm");
+      return 0;
+    }
+    return prewarm(directory, manifest);
+  }
+
+  public long prewarm(S3Directory directory, PrewarmManifest manifest) throws IOException {
+    final long start = System.currentTimeMillis();
+    final long deadline = start + timeoutMillis;
+    final Set<String> files = new HashSet<>(Arrays.asList(directory.listAll()));
+
+    // the most frequently read ranges within the byte budget, grouped by file so each file is loaded in one batch
+    final Map<String, List<PrewarmManifest.Entry>> selected = new LinkedHashMap<>();
+    long selectedBytes = 0;
+    for (PrewarmManifest.Entry entry : manifest.entries) {
+      if (!files.contains(entry.file)) {
+        LOG.warn("Skipping prewarm of " + entry + ", not in the index");
+        continue;
+      }
+      if (selectedBytes + entry.length > maxSize) break;
+      selected.computeIfAbsent(entry.file, f -> new ArrayList<>()).add(entry);
+      selectedBytes += entry.length;
+    }
+
+    final AtomicLong loadedBytes = new AtomicLong();
+    final ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+        new ThreadFactoryBuilder().setNameFormat("s3-prewarm-%d").setDaemon(true).build());
+    try {
+      for (Map.Entry<String, List<PrewarmManifest.Entry>> file : selected.entrySet()) {
+        executor.execute(() -> {
+          if (System.currentTimeMillis() >= deadline) return;
+          try {
+            S3File in = directory.file(file.getKey());
+            // the blocks of all the file's ranges are requested at once, so they download in parallel
+            Set<S3FileBlock> blocks = new TreeSet<>();
+            long bytes = 0;
+            for (PrewarmManifest.Entry entry : file.getValue()) {
+              int length = (int) Math.min(entry.length, in.length() - entry.offset);
+              if (entry.offset < 0 || length <= 0) continue;
+              blocks.addAll(S3FileBlock.of(in.summary, in.blockSize, entry.offset, length));
+              bytes += entry.length;
+            }
+            if (blocks.isEmpty()) return;
+            in.prefetch(blocks);
+            loadedBytes.addAndGet(bytes);
+          } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to prewarm " + file.getKey(), e);
+          }
+        });
+      }
+      executor.shutdown();
+      if (!executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+        LOG.info("Prewarm timed out after " + timeoutMillis + " ms");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      // loads already in flight complete in the background and stay cached
+      executor.shutdownNow();
+    }
+    LOG.info("Prewarmed " + loadedBytes.get() + " of " + selectedBytes + " bytes from " + selected.size()
+        + " files in " + (System.currentTimeMillis() - start) + " ms");
+    return loadedBytes.get();
+  }
+}
@@ -0,0 +1,190 @@
+package io.anlessini.store;
+
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The time a query spent in each phase and the blocks it touched, collected for the thread that started the trace and
+ * for the tasks it hands to other threads through {@link #wrap(Runnable)}, such as the slices of a concurrent search.
+ * Tracing is off unless a query asks for it, in which case {@link S3File} records every block it hands to a reader
+ * of this thread: whether it was cached, waited on another reader's download, read from the disk tier or downloaded,
+ * and how long the download took. When no trace is active the only cost is a thread-local lookup per block access.
+ */
+public class QueryTrace implements Serializable {
+  private static final ThreadLocal<QueryTrace> CURRENT = new ThreadLocal<>();
+
+  /**
+   * Where the block came from the first time the query touched it
+   */
+  public enum Source {
+    CACHE,
+    /**
+     * Downloaded by another reader, which the query waited on
+     */
+    INFLIGHT,
+    DISK,
+    S3
+  }
+
+  public static class BlockAccess implements Serializable {
+    public final String file;
+    public final long offset;
+    public final int length;
+    public final Source source;
+    /**
+     * The number of reads that touched the block
+     */
+    public int accesses = 1;
+    /**
+     * The time the download of the block took, -1 if it was not downloaded by this query or has not completed yet
+     */
+    public volatile double fetchMillis = -1;
+
+    BlockAccess(S3FileBlock fileBlock, Source source) {
+      this.file = fileBlock.summary.getKey();
+      this.offset = fileBlock.offset;
+      this.length = fileBlock.length();
+      this.source = source;
+    }
+
+    @Override
+    public String toString() {
+      return file + "@" + offset + ":" + length + " " + source + (fetchMillis >= 0 ? " " + fetchMillis + " ms" : "")
+          + (accesses > 1 ? " x" + accesses : "");
+    }
+  }
+
+  /**
+   * Milliseconds spent in each phase, in the order they ran
+   */
+  public final Map<String, Double> phases = new LinkedHashMap<>();
+  /**
+   * The blocks the query touched, in the order it first touched them
+   */
+  public final List<BlockAccess> blocks = new ArrayList<>();
+  private final transient Map<S3FileBlock, BlockAccess> index = new HashMap<>();
+  /**
+   * Downloads of blocks the query touched that may still be running, which time their blocks when they complete
+   */
+  private final transient List<CompletableFuture<?>> fetches = new ArrayList<>();
+
+  /**
+   * Starts tracing the queries of the current thread, replacing any trace still active
+   */
+  public static QueryTrace start() {
+    QueryTrace trace = new QueryTrace();
+    CURRENT.set(trace);
+    return trace;
+  }
+
+  /**
+   * Returns the trace of the current thread, or null if it is not tracing
+   */
+  public static QueryTrace current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Returns a task that runs with the trace of the current thread, or the task itself if the thread is not tracing
+   */
+  public static Runnable wrap(Runnable task) {
+    QueryTrace trace = CURRENT.get();
+    if (trace == null) return task;
+    return () -> {
+      QueryTrace previous = CURRENT.get();
+      CURRENT.set(trace);
+      try {
+        task.run();
+      } finally {
+        if (previous != null) {
+          CURRENT.set(previous);
+        } else {
+          CURRENT.remove();
+        }
+      }
+    };
+  }
+
+  /**
+   * Stops tracing the current thread
+   */
+  public void stop() {
+    if (CURRENT.get() == this) {
+      CURRENT.remove();
+    }
+  }
+
+  /**
+   * Records a phase that started at {@code startNanos}, as measured by {@link System#nanoTime()}, and ends now
+   */
+  public synchronized void phase(String name, long startNanos) {
+    phases.merge(name, (System.nanoTime() - startNanos) / 1e6, Double::sum);
+  }
+
+  /**
+   * Records that the query touched a block, returning the access if this is the first time
+   */
+  synchronized BlockAccess record(S3FileBlock fileBlock, Source source) {
+    BlockAccess access = index.get(fileBlock);
+    if (access != null) {
+      access.accesses++;
+      return null;
+    }
+    access = new BlockAccess(fileBlock, source);
+    index.put(fileBlock, access);
+    blocks.add(access);
+    return access;
+  }
+
+  /**
+   * Registers the download of blocks the query touched, which sets their fetch time once it completes
+   */
+  synchronized void fetching(CompletableFuture<?> fetch) {
+    fetches.add(fetch);
+  }
+
+  /**
+   * Waits for the downloads of the blocks the query touched to complete, so that each of them has its fetch time. A
+   * reader only waits for the bytes it reads, so a query can finish before the rest of a block has arrived.
+   */
+  public void awaitFetches() throws InterruptedIOException {
+    List<CompletableFuture<?>> pending;
+    synchronized (this) {
+      pending = new ArrayList<>(fetches);
+      fetches.clear();
+    }
+    for (CompletableFuture<?> fetch : pending) {
+      try {
+        fetch.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the downloads of a traced query");
+      } catch (ExecutionException e) {
+        // a failed download is timed as well
+      }
+    }
+  }
+
+  /**
+   * The number of bytes of the blocks the query touched that came from the given source
+   */
+  public synchronized long bytes(Source source) {
+    long bytes = 0;
+    for (BlockAccess access : blocks) {
+      if (access.source == source) bytes += access.length;
+    }
+    return bytes;
+  }
+
+  @Override
+  public String toString() {
+    return "QueryTrace{phases=" + phases + ", blocks=" + blocks.size() + ", fromS3=" + bytes(Source.S3) + " bytes}";
+  }
+}
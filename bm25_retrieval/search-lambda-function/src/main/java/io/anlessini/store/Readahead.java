@@ -0,0 +1,141 @@
+package io.anlessini.store;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects sequential access on one input and decides which blocks to prefetch ahead of the reader. Once consecutive
+ * reads continue where the previous one ended, the blocks after the current one are loaded in the background, with a
+ * window that doubles on every prefetch up to S3_READAHEAD_SIZE bytes and halves whenever the reader jumps elsewhere.
+ *
+ * <p>Instances are not thread-safe, each input (and each clone) has its own.</p>
+ */
+class Readahead {
+  private static final Logger LOG = LogManager.getLogger(Readahead.class);
+
+  /**
+   * The default maximum window, 32 MB
+   */
+  static final long DEFAULT_MAX_WINDOW_SIZE = 1024 * 1024 * 32;
+  static final int DEFAULT_PARALLELISM = 4;
+  /**
+   * The number of consecutive sequential reads before we start prefetching
+   */
+  static final int SEQUENTIAL_THRESHOLD = 2;
+
+  private static final long MAX_WINDOW_SIZE = Settings.getBytes("S3_READAHEAD_SIZE", DEFAULT_MAX_WINDOW_SIZE);
+  /**
+   * Prefetches are skipped while this many bytes are still being loaded, so readahead never queues up behind itself
+   */
+  private static final long MAX_PENDING_SIZE = MAX_WINDOW_SIZE * 4;
+  private static final AtomicLong pendingSize = new AtomicLong();
+  private static ExecutorService executor;
+
+  private final int blockSize;
+  private final int maxWindow;
+
+  /**
+   * The end offset of the previous read
+   */
+  private long lastEnd = -1;
+  private int sequentialReads;
+  /**
+   * The number of blocks to keep loaded ahead of the reader
+   */
+  private int window;
+  /**
+   * The block index up to which prefetches have been issued, exclusive
+   */
+  private long prefetchedUntil;
+  /**
+   * The first block of the range returned by the last call to {@link #onRead}
+   */
+  private long start;
+
+  Readahead(int blockSize) {
+    this(blockSize, MAX_WINDOW_SIZE);
+  }
+
+  Readahead(int blockSize, long maxWindowSize) {
+    this.blockSize = blockSize;
+    this.maxWindow = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxWindowSize / blockSize));
+  }
+
+  static boolean isEnabled() {
+    return MAX_WINDOW_SIZE > 0;
+  }
+
+  /**
+   * Records a read of {@code [startPos, endPos)} and returns the number of blocks to prefetch starting at block
+   * {@link #start()}, or 0 if nothing should be prefetched
+   */
+  int onRead(long startPos, long endPos) {
+    boolean sequential = lastEnd >= 0 && startPos >= lastEnd && startPos - lastEnd <= blockSize;
+    lastEnd = endPos;
+    if (!sequential) {
+      sequentialReads = 0;
+      window /= 2;
+      prefetchedUntil = 0;
+      return 0;
+    }
+    if (++sequentialReads < SEQUENTIAL_THRESHOLD) return 0;
+
+    window = Math.max(window, 1);
+    long lastBlock = (endPos - 1) / blockSize;
+    long from = Math.max(lastBlock + 1, prefetchedUntil);
+    long to = lastBlock + 1 + window;
+    // batch small increments once the window is large so every prefetch is worth a request
+    if (to - from < Math.max(1, window / 2)) return 0;
+    start = from;
+    prefetchedUntil = to;
+    window = Math.min(window * 2, maxWindow);
+    return Math.toIntExact(to - from);
+  }
+
+  long start() {
+    return start;
+  }
+
+  int window() {
+    return window;
+  }
+
+  /**
+   * Runs a prefetch of {@code size} bytes in the background, or drops it if too many prefetches are pending
+   */
+  static boolean submit(long size, Runnable prefetch) {
+    if (pendingSize.addAndGet(size) > MAX_PENDING_SIZE) {
+      pendingSize.addAndGet(-size);
+      return false;
+    }
+    try {
+      executor().execute(() -> {
+        try {
+          prefetch.run();
+        } catch (RuntimeException e) {
+          LOG.warn("Readahead failed", e);
+        } finally {
+          pendingSize.addAndGet(-size);
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException e) {
+      pendingSize.addAndGet(-size);
+      return false;
+    }
+  }
+
+  private static synchronized ExecutorService executor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(Settings.getInt("S3_READAHEAD_PARALLELISM", DEFAULT_PARALLELISM),
+          new ThreadFactoryBuilder().setNameFormat("s3-readahead-%d").setDaemon(true).build());
+    }
+    return executor;
+  }
+}
@@ -1,13 +1,22 @@
 package io.anlessini.store;
 
 import com.google.common.util.concurrent.AtomicLongMap;
+import io.anlessini.store.CachePolicy.CacheClass;
+import io.anlessini.store.CachePolicy.Priority;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 public class S3BlockCache {
   private static final Logger LOG = LogManager.getLogger(S3BlockCache.class);
@@ -16,23 +25,69 @@ public class S3BlockCache {
   static final float DEFAULT_LOAD_FACTOR = 0.75f;
   static final int DEFAULT_CONCURRENCY_LEVEL = 16;
   /**
-   * A block from a file is evictable if the file is at least 32 MB
+   * The default cache size, if we exceed 1792 MB in cache size we run eviction
    */
-  static final int MIN_EVICTABLE_SIZE = 1024 * 1024 * 32;
+  static final long DEFAULT_MAX_SIZE = 1024 * 1024 * 1792;
   /**
-   * The eviction threshold, if we exceed 1792 MB in heap size we run eviction
+   * The share of the cache reserved for blocks that were hit at least once after being cached
    */
-  static final long MAX_HEAP_SIZE = 1024 * 1024 * 1792;
+  static final float PROTECTED_RATIO = 0.8f;
 
   private final Map<S3FileBlock, CacheBlob> cache;
+  /**
+   * Downloads in flight, so that concurrent misses on the same block share a single download
+   */
+  private final Map<S3FileBlock, CompletableFuture<CacheBlob>> inflight = new ConcurrentHashMap<>();
+  /**
+   * Allocates block memory on heap, or off-heap if S3_CACHE_OFF_HEAP is set
+   */
+  private final BlockAllocator allocator;
+  /**
+   * Evicted blocks are spilled to the disk tier if it is enabled, may be null
+   */
+  private final DiskBlockCache diskCache;
+  /**
+   * The eviction threshold in bytes, configured by S3_CACHE_SIZE
+   */
+  private final long maxSize;
+  /**
+   * The size of the protected segment above which its least recently used blocks are demoted to probation
+   */
+  private final long maxProtectedSize;
+  /**
+   * Assigns blocks to cache classes, which decide the order of eviction, configured by S3_CACHE_POLICY
+   */
+  private final CachePolicy policy;
+  /**
+   * The budget of each cache class in bytes, by class index
+   */
+  private final long[] budgets;
+  /**
+   * Blocks are partitioned by hash into shards, each ordering its blocks under its own lock, configured by
+   * S3_CACHE_SHARDS
+   */
+  private final Shard[] shards;
+  /**
+   * Estimates how often each block was requested recently, to decide whether a new block may displace an old one
+   */
+  private final FrequencySketch sketch;
   /**
    * Current size of cache in bytes
    */
   private final AtomicLong size = new AtomicLong();
   /**
-   * Cache access count (sequential ID)
+   * Bytes of evicted blocks that readers still retain, which stay in memory until released and so count against the
+   * cache size
+   */
+  private final AtomicLong pinnedSize = new AtomicLong();
+  /**
+   * Current size of the protected segment in bytes
    */
-  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong protectedSize = new AtomicLong();
+  /**
+   * Current size of each cache class in bytes, by class index
+   */
+  private final AtomicLong[] classSizes;
   /**
    * Current number of cached elements
    */
@@ -49,85 +104,438 @@ public class S3BlockCache {
    * The number of cache block eviction
    */
   private final AtomicLongMap<String> evictCount = AtomicLongMap.create();
+  /**
+   * The number of downloaded blocks evicted right away because they were requested less often than the block they
+   * would have displaced
+   */
+  private final AtomicLongMap<String> rejectCount = AtomicLongMap.create();
+  /**
+   * The number of cache misses that waited on a download already in flight instead of starting their own
+   */
+  private final AtomicLongMap<String> coalescedCount = AtomicLongMap.create();
 
-  private volatile boolean evictionInProgress = false;
-  private final ReentrantLock evictionLock = new ReentrantLock(true);
-
-  private final Comparator<CacheBlob> lruCacheBlockComparator = Comparator.comparingLong(CacheBlob::getAccessTime);
+  private final ReentrantLock evictionLock = new ReentrantLock();
+  /**
+   * The shard the next victim is taken from, guarded by the eviction lock
+   */
+  private int victimShard;
+  private final Metrics metrics = Metrics.getInstance();
 
   private static S3BlockCache instance;
 
   public static synchronized S3BlockCache getInstance() {
     if (instance == null) {
-      instance = new S3BlockCache();
+      instance = new S3BlockCache(
+          Settings.getBytes("S3_CACHE_SIZE", DEFAULT_MAX_SIZE),
+          Settings.getInt("S3_CACHE_SHARDS", DEFAULT_CONCURRENCY_LEVEL),
+          Settings.getBoolean("S3_CACHE_OFF_HEAP", false) ? BlockAllocator.DIRECT : BlockAllocator.HEAP,
+          DiskBlockCache.getInstance(),
+          CachePolicy.getInstance());
     }
     return instance;
   }
 
-  private S3BlockCache() {
-    cache = new ConcurrentHashMap<>(DEFAULT_INITIAL_CACHE_SIZE, DEFAULT_LOAD_FACTOR, DEFAULT_CONCURRENCY_LEVEL);
+  S3BlockCache(long maxSize, int shardCount, BlockAllocator allocator) {
+    this(maxSize, shardCount, allocator, null);
   }
 
-  protected void cacheBlock(S3FileBlock fileBlock, byte[] data) {
-    CacheBlob cb = cache.get(fileBlock);
-    if (cb != null) {
+  S3BlockCache(long maxSize, int shardCount, BlockAllocator allocator, DiskBlockCache diskCache) {
+    this(maxSize, shardCount, allocator, diskCache, CachePolicy.getInstance());
+  }
+
+  S3BlockCache(long maxSize, int shardCount, BlockAllocator allocator, DiskBlockCache diskCache,
+               CachePolicy policy) {
+    int classCount = policy.classes().size();
+    int n = 1;
+    while (n < shardCount) {
+      n <<= 1;
+    }
+    this.shards = new Shard[n];
+    for (int i = 0; i < n; i++) {
+      shards[i] = new Shard(classCount);
+    }
+    this.cache = new ConcurrentHashMap<>(DEFAULT_INITIAL_CACHE_SIZE, DEFAULT_LOAD_FACTOR, n);
+    this.allocator = allocator;
+    this.diskCache = diskCache;
+    this.maxSize = maxSize;
+    this.maxProtectedSize = (long) (maxSize * PROTECTED_RATIO);
+    this.policy = policy;
+    this.budgets = new long[classCount];
+    this.classSizes = new AtomicLong[classCount];
+    for (CacheClass cacheClass : policy.classes()) {
+      budgets[cacheClass.index] = cacheClass.budget(maxSize);
+      classSizes[cacheClass.index] = new AtomicLong();
+    }
+    this.sketch = new FrequencySketch(maxSize / BlockSizePolicy.MIN_BLOCK_SIZE);
+    LOG.info("Caching up to " + maxSize + " bytes " + (allocator.isOffHeap() ? "off-heap" : "on heap")
+        + " in " + n + " shards");
+  }
+
+  public BlockAllocator allocator() {
+    return allocator;
+  }
+
+  private Shard shardOf(S3FileBlock fileBlock) {
+    return shards[FrequencySketch.spread(fileBlock.hashCode()) & (shards.length - 1)];
+  }
+
+  /**
+   * Caches a downloaded block, returning it retained once on behalf of the caller. The data is released through
+   * {@code allocator} once the block is evicted and no longer read.
+   */
+  protected CacheBlob cacheBlock(S3FileBlock fileBlock, ByteBuffer data, BlockAllocator allocator) {
+    return cacheBlock(fileBlock, data, allocator, false);
+  }
+
+  private CacheBlob cacheBlock(S3FileBlock fileBlock, ByteBuffer data, BlockAllocator allocator, boolean readahead) {
+    // one reference held by the cache and one by the caller
+    CacheBlob cb = new CacheBlob(fileBlock, data, allocator, 2, data.capacity(), readahead);
+    admit(cb);
+    return cb;
+  }
+
+  /**
+   * Adds a complete block to the cache, which takes over one reference to it
+   */
+  private void admit(CacheBlob cb) {
+    final S3FileBlock fileBlock = cb.fileBlock;
+    CacheBlob existing = cache.putIfAbsent(fileBlock, cb);
+    if (existing != null) {
       LOG.warn("Cache block already in memory: " + fileBlock);
+      cb.release();
       return;
     }
-    long accessTime = count.incrementAndGet();
-    cb = new CacheBlob(fileBlock, data, accessTime);
-    long newSize = size.addAndGet(cb.size());
-    cache.put(fileBlock, cb);
+    CacheClass cacheClass = policy.classOf(fileBlock.summary.getKey());
+    size.addAndGet(cb.size());
+    long classSize = classSizes[cacheClass.index].addAndGet(cb.size());
     elements.incrementAndGet();
-    LOG.trace("Cached block " + fileBlock + " with " + data.length + " bytes at " + accessTime);
-    if (newSize > MAX_HEAP_SIZE && !evictionInProgress) {
-      evict();
+
+    Shard shard = shardOf(fileBlock);
+    shard.lock.lock();
+    try {
+      cb.accessTime = System.nanoTime();
+      cb.cacheClass = cacheClass;
+      cb.segment = Segment.PROBATION;
+      shard.probation[cacheClass.index].addLast(cb);
+    } finally {
+      shard.lock.unlock();
+    }
+    LOG.trace("Cached block " + fileBlock + " with " + cb.size() + " bytes in class " + cacheClass.name);
+    if (usedSize() > maxSize || classSize > budgets[cacheClass.index]) {
+      evict(cb);
+    }
+  }
+
+  /**
+   * Claims the download of a missing block. Returns null if the caller now owns the download and must
+   * finish it with {@link #completeLoad}, {@link #beginFill} or {@link #failLoad}, otherwise returns a future
+   * of the block contents to wait on with {@link #awaitLoad}.
+   */
+  protected CompletableFuture<CacheBlob> beginLoad(S3FileBlock fileBlock) {
+    CompletableFuture<CacheBlob> future = new CompletableFuture<>();
+    CompletableFuture<CacheBlob> existing = inflight.putIfAbsent(fileBlock, future);
+    if (existing != null) {
+      LOG.trace("Waiting on in-flight block " + fileBlock);
+      coalescedCount.incrementAndGet(fileBlock.summary.getKey());
+      return existing;
+    }
+    // the previous owner may have finished between our cache miss and registering
+    CacheBlob cb = cache.get(fileBlock);
+    if (cb != null) {
+      inflight.remove(fileBlock, future);
+      future.complete(cb);
+      return future;
+    }
+    return null;
+  }
+
+  /**
+   * Caches a block downloaded by the owner of its load and hands it to any waiters. The returned block is
+   * retained on behalf of the owner.
+   */
+  protected CacheBlob completeLoad(S3FileBlock fileBlock, ByteBuffer data) {
+    return completeLoad(fileBlock, data, allocator);
+  }
+
+  /**
+   * Same as {@link #completeLoad(S3FileBlock, ByteBuffer)} for data not allocated by {@link #allocator()}, such as a
+   * block mapped from the disk tier
+   */
+  protected CacheBlob completeLoad(S3FileBlock fileBlock, ByteBuffer data, BlockAllocator allocator) {
+    return completeLoad(fileBlock, data, allocator, false);
+  }
+
+  /**
+   * Same as {@link #completeLoad(S3FileBlock, ByteBuffer, BlockAllocator)}, admitting the block without the frequency
+   * check if it was loaded as readahead
+   */
+  protected CacheBlob completeLoad(S3FileBlock fileBlock, ByteBuffer data, BlockAllocator allocator,
+                                   boolean readahead) {
+    CacheBlob cb = cacheBlock(fileBlock, data, allocator, readahead);
+    CompletableFuture<CacheBlob> future = inflight.remove(fileBlock);
+    if (future != null) {
+      future.complete(cb);
+    }
+    return cb;
+  }
+
+  /**
+   * Publishes a block whose download the caller owns before its contents have arrived, handing it to any waiters
+   * right away. The downloader reports progress with {@link CacheBlob#fill} and finishes with {@link #finishFill} or
+   * {@link #abortFill}; readers wait for the bytes they need with {@link CacheBlob#awaitFilled}. The returned block is
+   * retained on behalf of the owner, apart from the reference held by the download itself.
+   */
+  protected CacheBlob beginFill(S3FileBlock fileBlock, ByteBuffer data) {
+    return beginFill(fileBlock, data, false);
+  }
+
+  /**
+   * Same as {@link #beginFill(S3FileBlock, ByteBuffer)}, admitting the block without the frequency check if it is
+   * loaded as readahead
+   */
+  protected CacheBlob beginFill(S3FileBlock fileBlock, ByteBuffer data, boolean readahead) {
+    // one reference held by the download, handed to the cache once the block is complete, and one by the caller
+    CacheBlob cb = new CacheBlob(fileBlock, data, allocator, 2, 0, readahead);
+    CompletableFuture<CacheBlob> future = inflight.get(fileBlock);
+    if (future != null) {
+      future.complete(cb);
     }
+    return cb;
   }
 
-  protected void evict() {
-    if (!evictionLock.tryLock()) return;
+  /**
+   * Caches a block once its download has filled it, which is only then subject to eviction
+   */
+  protected void finishFill(CacheBlob cb) {
+    admit(cb);
+    inflight.remove(cb.fileBlock);
+  }
 
+  /**
+   * Fails a block whose download did not complete. Readers waiting on it fail, and the next reader downloads it again.
+   */
+  protected void abortFill(CacheBlob cb, Throwable t) {
+    cb.fail(t);
+    inflight.remove(cb.fileBlock);
+    cb.release();
+  }
+
+  protected void failLoad(S3FileBlock fileBlock, Throwable t) {
+    CompletableFuture<CacheBlob> future = inflight.remove(fileBlock);
+    if (future != null) {
+      future.completeExceptionally(t);
+    }
+  }
+
+  /**
+   * Waits for a block being downloaded by another reader and returns it retained, or null if it was already
+   * evicted and released by the time we got to it, in which case the caller has to load it again. The block may still
+   * be filling.
+   */
+  protected CacheBlob awaitLoad(S3FileBlock fileBlock, CompletableFuture<CacheBlob> future) throws IOException {
     try {
-      evictionInProgress = true;
-      long currentSize = size.get();
-      long bytesToFree = currentSize - (long) (MAX_HEAP_SIZE * 0.75f);
+      CacheBlob cb = future.get();
+      return cb.tryRetain() ? cb : null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for " + fileBlock);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new IOException("Download of " + fileBlock + " failed", cause);
+    }
+  }
 
-      PriorityQueue<CacheBlob> evictionQueue = new PriorityQueue<>(lruCacheBlockComparator);
-      for (CacheBlob cb : cache.values()) {
-        evictionQueue.offer(cb);
+  /**
+   * Evicts blocks until the cache, counting evicted blocks that readers still retain, is within its size and every
+   * class within its budget. The block just cached is only
+   * admitted if it has been requested at least as often as the first block of the same priority it would displace,
+   * otherwise it is evicted instead. Readahead blocks are exempt: a sequential reader is about to read them, but they
+   * have not been requested yet, so the check would reject every one of them once the cache is full.
+   */
+  private void evict(CacheBlob candidate) {
+    do {
+      // whoever holds the lock re-checks the size after releasing it
+      if (!evictionLock.tryLock()) return;
+      try {
+        while (overflowing()) {
+          CacheBlob victim = selectVictim();
+          // nothing left to evict, the rest is pinned by readers
+          if (victim == null) return;
+          if (candidate != null && victim != candidate) {
+            if (!candidate.readahead && competes(candidate, victim)
+                && sketch.frequency(candidate.fileBlock) < sketch.frequency(victim.fileBlock)) {
+              rejectCount.incrementAndGet(candidate.fileBlock.summary.getKey());
+              victim = candidate;
+            }
+            candidate = null;
+          }
+          evictBlock(victim);
+        }
+      } finally {
+        evictionLock.unlock();
       }
-      long freedBytes = 0;
-      CacheBlob cb;
-      while ((cb = evictionQueue.poll()) != null) {
-        if (cb.size() < MIN_EVICTABLE_SIZE) continue;
-        LOG.trace("Evicted block " + cb.fileBlock + " with " + cb.size() + " bytes");
-        cache.remove(cb.fileBlock);
-        evictCount.incrementAndGet(cb.fileBlock.summary.getKey());
-        size.addAndGet(-1 * cb.size());
-        freedBytes += cb.size();
-        if (freedBytes >= bytesToFree) {
-          break;
+      candidate = null;
+    } while (overflowing());
+  }
+
+  private boolean overBudget(CacheClass cacheClass) {
+    return classSizes[cacheClass.index].get() > budgets[cacheClass.index];
+  }
+
+  /**
+   * The memory held by the cache, including evicted blocks that are still retained
+   */
+  private long usedSize() {
+    return size.get() + pinnedSize.get();
+  }
+
+  private boolean overflowing() {
+    if (usedSize() > maxSize) return true;
+    for (CacheClass cacheClass : policy.classes()) {
+      if (overBudget(cacheClass)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Whether a new block may be evicted in place of {@code victim}: a block of higher priority always displaces it, and
+   * a block of a class over its budget only has to make room for its own class
+   */
+  private boolean competes(CacheBlob candidate, CacheBlob victim) {
+    if (victim.cacheClass == candidate.cacheClass) return true;
+    return victim.cacheClass.priority == candidate.cacheClass.priority && !overBudget(victim.cacheClass);
+  }
+
+  /**
+   * Returns a least recently used block of a class over its budget, otherwise of the lowest priority that has any
+   * blocks, preferring blocks on probation to protected ones
+   */
+  private CacheBlob selectVictim() {
+    for (CacheClass cacheClass : policy.classes()) {
+      if (overBudget(cacheClass)) {
+        CacheBlob victim = oldest(c -> c == cacheClass);
+        if (victim != null) return victim;
+      }
+    }
+    if (usedSize() <= maxSize) return null;
+    for (Priority priority : Priority.values()) {
+      CacheBlob victim = oldest(c -> c.priority == priority);
+      if (victim != null) return victim;
+    }
+    return null;
+  }
+
+  /**
+   * Eviction approximates LRU by shard: each victim comes from the next shard in turn that has a matching block, so
+   * selecting one usually takes a single shard lock rather than comparing the heads of every shard. Blocks on probation
+   * are still preferred to protected ones across all shards.
+   */
+  private CacheBlob oldest(Predicate<CacheClass> classes) {
+    CacheBlob victim = nextHead(Segment.PROBATION, classes);
+    return victim != null ? victim : nextHead(Segment.PROTECTED, classes);
+  }
+
+  private CacheBlob nextHead(Segment segment, Predicate<CacheClass> classes) {
+    for (int i = 0; i < shards.length; i++) {
+      Shard shard = shards[victimShard++ & (shards.length - 1)];
+      shard.lock.lock();
+      try {
+        CacheBlob oldest = null;
+        for (CacheClass cacheClass : policy.classes()) {
+          if (!classes.test(cacheClass)) continue;
+          CacheBlob head = shard.queue(segment, cacheClass).first;
+          if (head != null && (oldest == null || head.accessTime - oldest.accessTime < 0)) {
+            oldest = head;
+          }
         }
+        if (oldest != null) return oldest;
+      } finally {
+        shard.lock.unlock();
       }
+    }
+    return null;
+  }
+
+  private void evictBlock(CacheBlob cb) {
+    Shard shard = shardOf(cb.fileBlock);
+    shard.lock.lock();
+    try {
+      if (cb.segment == null) return;
+      shard.queue(cb.segment, cb.cacheClass).remove(cb);
+      if (cb.segment == Segment.PROTECTED) {
+        protectedSize.addAndGet(-cb.size());
+      }
+      cb.segment = null;
     } finally {
-      evictionInProgress = false;
-      evictionLock.unlock();
+      shard.lock.unlock();
+    }
+    LOG.trace("Evicted block " + cb.fileBlock + " with " + cb.size() + " bytes");
+    cache.remove(cb.fileBlock, cb);
+    evictCount.incrementAndGet(cb.fileBlock.summary.getKey());
+    metrics.count(Metrics.CACHE_EVICTIONS, 1);
+    size.addAndGet(-1 * cb.size());
+    classSizes[cb.cacheClass.index].addAndGet(-cb.size());
+    elements.decrementAndGet();
+    // a block readers still retain stays in memory until the last of them releases it, and counts as pinned until then
+    if (cb.refCount.get() > 1) {
+      pinnedSize.addAndGet(cb.size());
+      cb.pinnedSize = pinnedSize;
     }
+    if (diskCache != null) {
+      diskCache.spill(cb);
+    }
+    cb.release();
   }
 
-  protected byte[] getBlock(S3FileBlock fileBlock) {
+  /**
+   * Returns the cached block retained on behalf of the caller, who must {@link CacheBlob#release()} it, or null on
+   * a miss
+   */
+  protected CacheBlob getBlock(S3FileBlock fileBlock) {
+    sketch.increment(fileBlock);
     CacheBlob cb = cache.get(fileBlock);
-    long accessTime = count.incrementAndGet();
-    if (cb == null) {
-      LOG.trace("Missed block " + fileBlock + " at " + accessTime);
+    if (cb == null || !cb.tryRetain()) {
+      LOG.trace("Missed block " + fileBlock);
       missCount.incrementAndGet(fileBlock.summary.getKey());
+      metrics.cacheAccess(fileBlock.summary.getKey(), false);
       return null;
     }
-    LOG.trace("Accessed block " + fileBlock + " at " + accessTime);
+    LOG.trace("Accessed block " + fileBlock);
     hitCount.incrementAndGet(fileBlock.summary.getKey());
-    cb.access(accessTime);
-    return cb.data;
+    metrics.cacheAccess(fileBlock.summary.getKey(), true);
+    onAccess(cb);
+    return cb;
+  }
+
+  /**
+   * Moves a hit block to the most recently used end of the protected segment of its class, demoting the least
+   * recently used protected blocks of the class in the shard back to probation if the protected segment is full.
+   * Reordering is best effort: if the shard is busy the hit is not recorded rather than making the reader wait.
+   */
+  private void onAccess(CacheBlob cb) {
+    Shard shard = shardOf(cb.fileBlock);
+    if (!shard.lock.tryLock()) return;
+    try {
+      if (cb.segment == null) return;
+      shard.queue(cb.segment, cb.cacheClass).remove(cb);
+      AccessQueue protectedQueue = shard.protectedQueue[cb.cacheClass.index];
+      if (cb.segment == Segment.PROBATION) {
+        cb.segment = Segment.PROTECTED;
+        long newProtectedSize = protectedSize.addAndGet(cb.size());
+        while (newProtectedSize > maxProtectedSize && protectedQueue.first != null) {
+          CacheBlob demoted = protectedQueue.first;
+          protectedQueue.remove(demoted);
+          demoted.segment = Segment.PROBATION;
+          shard.probation[cb.cacheClass.index].addLast(demoted);
+          newProtectedSize = protectedSize.addAndGet(-demoted.size());
+        }
+      }
+      protectedQueue.addLast(cb);
+      cb.accessTime = System.nanoTime();
+    } finally {
+      shard.lock.unlock();
+    }
   }
 
   public void logStats() {
@@ -137,43 +545,264 @@ public class S3BlockCache {
     fileKeys.addAll(hitCount.asMap().keySet());
     fileKeys.addAll(missCount.asMap().keySet());
     fileKeys.addAll(evictCount.asMap().keySet());
+    fileKeys.addAll(coalescedCount.asMap().keySet());
+    fileKeys.addAll(rejectCount.asMap().keySet());
 
     LOG.trace("================================= Cache Stats =================================");
-    LOG.trace(String.format("%-20s %10s %10s %10s", "Key", "Hits", "Misses", "Evictions"));
+    LOG.trace(String.format("%-20s %10s %10s %10s %10s %10s", "Key", "Hits", "Misses", "Coalesced", "Evictions",
+        "Rejected"));
     fileKeys.stream().sorted().forEach(key -> {
-      LOG.trace(String.format("%-20s %,10d %,10d %,10d", key, hitCount.get(key), missCount.get(key), evictCount.get(key)));
+      LOG.trace(String.format("%-20s %,10d %,10d %,10d %,10d %,10d", key, hitCount.get(key), missCount.get(key),
+          coalescedCount.get(key), evictCount.get(key), rejectCount.get(key)));
     });
-    LOG.trace("Total cache size=" + size.get() + ", elements=" + elements.get());
+    LOG.trace("Total cache size=" + size.get() + ", protected=" + protectedSize.get() + ", pinned=" + pinnedSize.get()
+        + ", elements=" + elements.get());
+    for (CacheClass cacheClass : policy.classes()) {
+      LOG.trace("Class " + cacheClass + " size=" + classSizes[cacheClass.index].get() + ", budget="
+          + budgets[cacheClass.index]);
+    }
   }
 
   public void clearStats() {
     hitCount.clear();
     missCount.clear();
     evictCount.clear();
+    coalescedCount.clear();
+    rejectCount.clear();
+  }
+
+  long size() {
+    return size.get();
+  }
+
+  long pinnedSize() {
+    return pinnedSize.get();
+  }
+
+  long classSize(CacheClass cacheClass) {
+    return classSizes[cacheClass.index].get();
+  }
+
+  boolean contains(S3FileBlock fileBlock) {
+    return cache.containsKey(fileBlock);
+  }
+
+  enum Segment {
+    /**
+     * Blocks cached but not hit since, evicted first
+     */
+    PROBATION,
+    /**
+     * Blocks hit at least once since being cached
+     */
+    PROTECTED
+  }
+
+  /**
+   * The access order of the blocks of each cache class in the shard, by class index
+   */
+  private static final class Shard {
+    final ReentrantLock lock = new ReentrantLock();
+    final AccessQueue[] probation;
+    final AccessQueue[] protectedQueue;
+
+    Shard(int classCount) {
+      probation = new AccessQueue[classCount];
+      protectedQueue = new AccessQueue[classCount];
+      for (int i = 0; i < classCount; i++) {
+        probation[i] = new AccessQueue();
+        protectedQueue[i] = new AccessQueue();
+      }
+    }
+
+    AccessQueue queue(Segment segment, CacheClass cacheClass) {
+      return (segment == Segment.PROBATION ? probation : protectedQueue)[cacheClass.index];
+    }
+  }
+
+  /**
+   * A doubly-linked list of blocks threaded through the blocks themselves, least recently used first, guarded by its
+   * shard's lock
+   */
+  private static final class AccessQueue {
+    CacheBlob first;
+    CacheBlob last;
+
+    void addLast(CacheBlob cb) {
+      cb.prev = last;
+      cb.next = null;
+      if (last == null) {
+        first = cb;
+      } else {
+        last.next = cb;
+      }
+      last = cb;
+    }
+
+    void remove(CacheBlob cb) {
+      if (cb.prev == null) {
+        first = cb.next;
+      } else {
+        cb.prev.next = cb.next;
+      }
+      if (cb.next == null) {
+        last = cb.prev;
+      } else {
+        cb.next.prev = cb.prev;
+      }
+      cb.prev = null;
+      cb.next = null;
+    }
   }
 
+  /**
+   * A cached block. Blocks are reference counted so that off-heap memory is only released once the block has been
+   * evicted and no reader is still copying out of it.
+   */
   public static class CacheBlob {
     public final S3FileBlock fileBlock;
-    public final byte[] data;
-    private volatile long accessTime;
+    private final ByteBuffer data;
+    private final BlockAllocator allocator;
+    private final AtomicInteger refCount;
+    /**
+     * The position in the cache's access order, guarded by the lock of the block's shard
+     */
+    private Segment segment;
+    private CacheClass cacheClass;
+    private CacheBlob prev;
+    private CacheBlob next;
+    private long accessTime;
+    /**
+     * Whether the block was loaded ahead of a sequential reader, and so is admitted without the frequency check
+     */
+    private final boolean readahead;
+    /**
+     * The number of bytes from the start of the block that have arrived, the whole block unless it is still filling
+     */
+    private volatile int filled;
+    /**
+     * Ranges that arrived ahead of the watermark, by start offset, and the failure of the download, guarded by this
+     */
+    private TreeMap<Integer, Integer> filledAhead;
+    private Throwable failure;
+    /**
+     * The cache's count of pinned bytes once the block has been evicted, which the block leaves when it is freed
+     */
+    private volatile AtomicLong pinnedSize;
+
+    CacheBlob(S3FileBlock fileBlock, ByteBuffer data, BlockAllocator allocator, int refCount) {
+      this(fileBlock, data, allocator, refCount, data.capacity());
+    }
 
-    public CacheBlob(S3FileBlock fileBlock, byte[] data, long accessTime) {
+    CacheBlob(S3FileBlock fileBlock, ByteBuffer data, BlockAllocator allocator, int refCount, int filled) {
+      this(fileBlock, data, allocator, refCount, filled, false);
+    }
+
+    CacheBlob(S3FileBlock fileBlock, ByteBuffer data, BlockAllocator allocator, int refCount, int filled,
+              boolean readahead) {
       this.fileBlock = fileBlock;
+      this.readahead = readahead;
       this.data = data;
-      this.accessTime = accessTime;
+      this.allocator = allocator;
+      this.refCount = new AtomicInteger(refCount);
+      this.filled = filled;
     }
 
     public int size() {
-      return data.length;
+      return data.capacity();
     }
 
-    public void access(long accessTime) {
-      LOG.trace("Accessed block " + fileBlock + " at " + accessTime);
-      this.accessTime = accessTime;
+    /**
+     * Returns a view of the block contents, only valid while the block is retained and only up to {@link #filled()}
+     */
+    ByteBuffer duplicate() {
+      return data.duplicate();
+    }
+
+    int filled() {
+      return filled;
+    }
+
+    /**
+     * Records that the bytes in {@code [from, to)} have arrived, advancing the watermark once everything before them
+     * has arrived too
+     */
+    synchronized void fill(int from, int to) {
+      if (from > filled) {
+        if (filledAhead == null) {
+          filledAhead = new TreeMap<>();
+        }
+        filledAhead.merge(from, to, Math::max);
+        return;
+      }
+      int watermark = Math.max(filled, to);
+      while (filledAhead != null && !filledAhead.isEmpty() && filledAhead.firstKey() <= watermark) {
+        watermark = Math.max(watermark, filledAhead.pollFirstEntry().getValue());
+      }
+      filled = watermark;
+      notifyAll();
     }
 
-    public long getAccessTime() {
-      return accessTime;
+    synchronized void fail(Throwable t) {
+      failure = t;
+      notifyAll();
+    }
+
+    /**
+     * Waits until the first {@code length} bytes of the block have arrived and returns the current watermark, which is
+     * at least {@code length}
+     */
+    int awaitFilled(int length) throws IOException {
+      int watermark = filled;
+      if (watermark >= length) return watermark;
+      synchronized (this) {
+        while ((watermark = filled) < length) {
+          if (failure != null) {
+            if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+            throw new IOException("Download of " + fileBlock + " failed", failure);
+          }
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + fileBlock);
+          }
+        }
+      }
+      return watermark;
+    }
+
+    /**
+     * Copies {@code length} bytes starting at {@code srcOffset} within the block, waiting for them to arrive if the
+     * block is still filling
+     */
+    public void read(int srcOffset, byte[] dst, int dstOffset, int length) throws IOException {
+      awaitFilled(srcOffset + length);
+      ByteBuffer src = data.duplicate();
+      src.position(srcOffset);
+      src.get(dst, dstOffset, length);
+    }
+
+    boolean tryRetain() {
+      int count;
+      do {
+        count = refCount.get();
+        if (count <= 0) return false;
+      } while (!refCount.compareAndSet(count, count + 1));
+      return true;
+    }
+
+    public void release() {
+      int count = refCount.decrementAndGet();
+      if (count == 0) {
+        allocator.free(data);
+        AtomicLong pinned = pinnedSize;
+        if (pinned != null) {
+          pinned.addAndGet(-size());
+        }
+      } else if (count < 0) {
+        throw new IllegalStateException("Block released too many times: " + fileBlock);
+      }
     }
   }
 }
@@ -0,0 +1,695 @@
+package io.anlessini.store;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Downloads missing {@link S3FileBlock}s by splitting each contiguous run of blocks into sub-ranges
+ * that are fetched concurrently with separate range GETs and reassembled into whole blocks. Downloads
+ * run in the background and report their progress, so readers can use a block before it is complete.
+ * <p>
+ * All downloads of the process share one queue. Parts are dispatched in order of {@link Priority}, so that reads a
+ * query is waiting on overtake readahead and prewarming, and only while the requests and bytes in flight are within
+ * their limits. Requests throttled with 503 SlowDown are retried after a randomized exponential backoff, and the
+ * number of concurrent requests adapts to throttling: it is halved on a 503 and grows back by one request per window
+ * of successful ones.
+ * <p>
+ * Demand reads can be hedged: if a range GET has not returned its first byte within a percentile of the recently
+ * observed times to first byte, configured by S3_HEDGE_PERCENTILE, a duplicate is sent and whichever responds first is
+ * read, so that a single slow request does not stall the query.
+ */
+public class S3BlockFetcher {
+  private static final Logger LOG = LogManager.getLogger(S3BlockFetcher.class);
+
+  /**
+   * The size of each concurrently fetched range, default to 8 MB
+   */
+  static final long DEFAULT_PART_SIZE = 1024 * 1024 * 8;
+  /**
+   * The maximum number of range GETs in flight across all readers
+   */
+  static final int DEFAULT_PARALLELISM = 16;
+  /**
+   * The maximum number of bytes requested by the GETs in flight, 256 MB. A single part is always let through.
+   */
+  static final long DEFAULT_MAX_INFLIGHT_BYTES = 1024L * 1024 * 256;
+  /**
+   * The number of times a throttled request is retried before its download fails
+   */
+  static final int DEFAULT_MAX_RETRIES = 6;
+  static final long RETRY_BASE_DELAY_MILLIS = 50;
+  static final long RETRY_MAX_DELAY_MILLIS = 2000;
+  /**
+   * Requests are not hedged before they have waited this long for their first byte, 5 ms
+   */
+  static final long DEFAULT_MIN_HEDGE_DELAY_MILLIS = 5;
+  /**
+   * Blocks are filled, and their progress reported, in chunks of this size. Direct buffers are filled through an
+   * intermediate array of this size, allocated once per part.
+   */
+  private static final int COPY_CHUNK_SIZE = 1024 * 64;
+
+  /**
+   * The order in which queued parts are dispatched
+   */
+  public enum Priority {
+    /**
+     * A reader is waiting for the block
+     */
+    DEMAND,
+    READAHEAD,
+    /**
+     * Prewarming and explicit prefetches
+     */
+    PREFETCH
+  }
+
+  private final long partSize;
+  private final int maxRequests;
+  private final long maxInflightBytes;
+  private final int maxRetries;
+  private final Metrics metrics = Metrics.getInstance();
+  private final ScheduledExecutorService retryTimer;
+  /**
+   * Times to first byte of recent requests, null if hedging is disabled
+   */
+  private final LatencyWindow firstByteLatency;
+  private final long minHedgeDelayNanos;
+  /**
+   * Runs the requests of hedged reads, so that the fetching thread can wait for whichever responds first
+   */
+  private final ExecutorService hedgeExecutor;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition dispatchable = lock.newCondition();
+  /**
+   * Parts waiting to be dispatched, guarded by {@link #lock} as are the fields below
+   */
+  private final PriorityQueue<Part> queue = new PriorityQueue<>();
+  /**
+   * The number of concurrent requests allowed, between 1 and {@link #maxRequests}
+   */
+  private double limit;
+  private int inflightRequests;
+  private long inflightBytes;
+  /**
+   * When {@link #limit} was last decreased, so that the 503s of requests sent before are not counted again
+   */
+  private long lastDecrease = System.nanoTime();
+  private long sequence;
+
+  private static S3BlockFetcher instance;
+
+  public static synchronized S3BlockFetcher getInstance() {
+    if (instance == null) {
+      instance = new S3BlockFetcher(
+          Settings.getBytes("S3_FETCH_PART_SIZE", DEFAULT_PART_SIZE),
+          Settings.getInt("S3_FETCH_PARALLELISM", DEFAULT_PARALLELISM),
+          Settings.getBytes("S3_FETCH_MAX_INFLIGHT_BYTES", DEFAULT_MAX_INFLIGHT_BYTES),
+          Settings.getInt("S3_FETCH_MAX_RETRIES", DEFAULT_MAX_RETRIES),
+          Settings.getDouble("S3_HEDGE_PERCENTILE", 0),
+          Settings.getInt("S3_HEDGE_MIN_DELAY", (int) DEFAULT_MIN_HEDGE_DELAY_MILLIS));
+    }
+    return instance;
+  }
+
+  S3BlockFetcher(long partSize, int parallelism) {
+    this(partSize, parallelism, DEFAULT_MAX_INFLIGHT_BYTES, DEFAULT_MAX_RETRIES);
+  }
+
+  S3BlockFetcher(long partSize, int parallelism, long maxInflightBytes, int maxRetries) {
+    this(partSize, parallelism, maxInflightBytes, maxRetries, 0, DEFAULT_MIN_HEDGE_DELAY_MILLIS);
+  }
+
+  /**
+   * @param hedgePercentile the percentile of recent times to first byte after which demand reads are hedged, or 0 to
+   *                        never hedge
+   */
+  S3BlockFetcher(long partSize, int parallelism, long maxInflightBytes, int maxRetries, double hedgePercentile,
+                 long minHedgeDelayMillis) {
+    this.partSize = partSize;
+    this.maxRequests = parallelism;
+    this.maxInflightBytes = maxInflightBytes;
+    this.maxRetries = maxRetries;
+    this.limit = parallelism;
+    ExecutorService workers = Executors.newFixedThreadPool(parallelism,
+        new ThreadFactoryBuilder().setNameFormat("s3-fetch-%d").setDaemon(true).build());
+    for (int i = 0; i < parallelism; i++) {
+      workers.execute(this::work);
+    }
+    this.retryTimer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("s3-fetch-retry").setDaemon(true).build());
+    this.minHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(minHedgeDelayMillis);
+    if (hedgePercentile > 0) {
+      this.firstByteLatency = new LatencyWindow(hedgePercentile);
+      this.hedgeExecutor = Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("s3-hedge-%d").setDaemon(true).build());
+    } else {
+      this.firstByteLatency = null;
+      this.hedgeExecutor = null;
+    }
+    LOG.info("Fetching S3 blocks in parts of " + partSize + " bytes with up to " + parallelism + " requests and "
+        + maxInflightBytes + " bytes in flight" + (hedgePercentile > 0
+        ? ", hedging demand reads slower than the p" + hedgePercentile + " time to first byte" : ""));
+  }
+
+  /**
+   * Receives the progress of a download. Each sub-range of a block is reported once its bytes are in the buffer, and
+   * the sub-ranges of one part arrive in order.
+   */
+  interface Progress {
+    void filled(S3FileBlock fileBlock, int from, int to);
+  }
+
+  /**
+   * A range GET of one run of contiguous blocks, ordered by priority and then by the time it was first queued
+   */
+  private static final class Part implements Comparable<Part> {
+    final ObjectStore store;
+    final S3ObjectSummary summary;
+    final List<S3FileBlock> run;
+    final Map<S3FileBlock, ByteBuffer> data;
+    final long start;
+    final long end;
+    final Progress progress;
+    /**
+     * Set once any part of the same download failed, so that the remaining parts are skipped
+     */
+    final AtomicBoolean aborted;
+    final CompletableFuture<Void> future = new CompletableFuture<>();
+    Priority priority;
+    long sequence;
+    long queuedAt;
+    long sentAt;
+    int attempts;
+
+    Part(ObjectStore store, S3ObjectSummary summary, List<S3FileBlock> run, Map<S3FileBlock, ByteBuffer> data,
+         long start, long end, Progress progress, AtomicBoolean aborted, Priority priority) {
+      this.store = store;
+      this.summary = summary;
+      this.run = run;
+      this.data = data;
+      this.start = start;
+      this.end = end;
+      this.progress = progress;
+      this.aborted = aborted;
+      this.priority = priority;
+    }
+
+    long length() {
+      return end - start;
+    }
+
+    boolean covers(S3FileBlock fileBlock) {
+      return summary == fileBlock.summary && start < fileBlock.offset + fileBlock.length() && fileBlock.offset < end;
+    }
+
+    @Override
+    public int compareTo(Part other) {
+      int c = priority.compareTo(other.priority);
+      return c != 0 ? c : Long.compare(sequence, other.sequence);
+    }
+  }
+
+  /**
+   * Fetches the given blocks of one file into buffers from {@code allocator}, returning the contents of each block
+   */
+  public Map<S3FileBlock, ByteBuffer> fetch(ObjectStore store, S3ObjectSummary summary, Collection<S3FileBlock> blocks,
+                                            BlockAllocator allocator) throws IOException {
+    Map<S3FileBlock, ByteBuffer> data = new HashMap<>();
+    for (S3FileBlock fb : blocks) {
+      data.put(fb, allocator.allocate(fb.length()));
+    }
+    boolean success = false;
+    try {
+      await(summary, fetchAsync(store, summary, data, null, Priority.DEMAND));
+      success = true;
+      return data;
+    } finally {
+      if (!success) {
+        for (ByteBuffer buffer : data.values()) {
+          allocator.free(buffer);
+        }
+      }
+    }
+  }
+
+  /**
+   * Queues the download of blocks of one file into the given buffers. The returned future completes once every part
+   * has finished, even after a failure, so no part is still writing once it completes and the caller may free the
+   * buffers.
+   */
+  CompletableFuture<Void> fetchAsync(ObjectStore store, S3ObjectSummary summary, Map<S3FileBlock, ByteBuffer> data,
+                                     Progress progress, Priority priority) {
+    final List<S3FileBlock> sorted = new ArrayList<>(data.keySet());
+    Collections.sort(sorted);
+    final AtomicBoolean aborted = new AtomicBoolean();
+    final List<CompletableFuture<Void>> parts = new ArrayList<>();
+    int i = 0;
+    while (i < sorted.size()) {
+      int j = i;
+      while (j + 1 < sorted.size() && sorted.get(j + 1).offset == sorted.get(j).offset + sorted.get(j).length()) {
+        j++;
+      }
+      final List<S3FileBlock> run = sorted.subList(i, j + 1);
+      final long runStart = run.get(0).offset;
+      final long runEnd = run.get(run.size() - 1).offset + run.get(run.size() - 1).length();
+      for (long start = runStart; start < runEnd; start += partSize) {
+        Part part = new Part(store, summary, run, data, start, Math.min(runEnd, start + partSize), progress, aborted,
+            priority);
+        enqueue(part);
+        parts.add(part.future);
+      }
+      i = j + 1;
+    }
+    return CompletableFuture.allOf(parts.toArray(new CompletableFuture[0]));
+  }
+
+  /**
+   * Moves the queued parts covering a block a reader is now waiting for ahead of readahead and prefetches
+   */
+  void promote(S3FileBlock fileBlock) {
+    lock.lock();
+    try {
+      List<Part> promoted = new ArrayList<>();
+      for (Part part : queue) {
+        if (part.priority != Priority.DEMAND && part.covers(fileBlock)) {
+          promoted.add(part);
+        }
+      }
+      for (Part part : promoted) {
+        queue.remove(part);
+        part.priority = Priority.DEMAND;
+        queue.add(part);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void enqueue(Part part) {
+    lock.lock();
+    try {
+      if (part.attempts == 0) {
+        part.sequence = sequence++;
+      }
+      part.queuedAt = System.nanoTime();
+      queue.add(part);
+      dispatchable.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void work() {
+    while (true) {
+      Part part;
+      try {
+        part = next();
+      } catch (InterruptedException e) {
+        return;
+      }
+      run(part);
+    }
+  }
+
+  /**
+   * Waits for the first queued part that the limits on requests and bytes in flight let through
+   */
+  private Part next() throws InterruptedException {
+    lock.lock();
+    try {
+      while (true) {
+        Part head = queue.peek();
+        if (head != null && inflightRequests < (int) limit
+            && (inflightRequests == 0 || inflightBytes + head.length() <= maxInflightBytes)) {
+          queue.poll();
+          inflightRequests++;
+          inflightBytes += head.length();
+          head.sentAt = System.nanoTime();
+          metrics.record(Metrics.S3_QUEUE_LATENCY, (head.sentAt - head.queuedAt) / 1000);
+          return head;
+        }
+        dispatchable.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void run(Part part) {
+    boolean throttled = false;
+    try {
+      if (!part.aborted.get()) {
+        fetchPart(part.store, part.summary, part.run, part.data, part.start, part.end, part.progress,
+            part.priority == Priority.DEMAND);
+      }
+      part.future.complete(null);
+    } catch (Throwable t) {
+      throttled = isThrottled(t) && part.attempts < maxRetries && !part.aborted.get();
+      if (!throttled) {
+        part.aborted.set(true);
+        part.future.completeExceptionally(t);
+      }
+    } finally {
+      finished(part, throttled);
+    }
+    if (throttled) {
+      part.attempts++;
+      long delay = ThreadLocalRandom.current().nextLong(
+          Math.min(RETRY_MAX_DELAY_MILLIS, RETRY_BASE_DELAY_MILLIS << Math.min(part.attempts, 16)) + 1);
+      LOG.debug("Throttled fetching " + part.summary.getKey() + " @" + part.start + ", retrying in " + delay + " ms");
+      metrics.count(Metrics.S3_THROTTLED, 1);
+      retryTimer.schedule(() -> enqueue(part), delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Releases the request's share of the limits and adapts the concurrency limit: additive increase on success,
+   * multiplicative decrease on throttling
+   */
+  private void finished(Part part, boolean throttled) {
+    lock.lock();
+    try {
+      inflightRequests--;
+      inflightBytes -= part.length();
+      if (throttled) {
+        decreaseLimit(part.sentAt);
+      } else {
+        limit = Math.min(maxRequests, limit + 1 / limit);
+      }
+      dispatchable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Halves the concurrency limit, unless a 503 of another request sent at or after {@code sentAt} already did
+   */
+  private void decreaseLimit(long sentAt) {
+    // only the first 503 among the requests sent under the previous limit reduces it
+    if (sentAt - lastDecrease > 0) {
+      limit = Math.max(1, limit / 2);
+      lastDecrease = System.nanoTime();
+      LOG.debug("Reduced S3 request concurrency to " + (int) limit);
+    }
+  }
+
+  /**
+   * Takes a request slot for a hedge if the limits on requests and bytes in flight allow one more, without waiting. A
+   * hedge sent while the limit is backing off from throttling would only add to the load S3 is shedding.
+   */
+  private boolean tryReserveHedge(long length) {
+    lock.lock();
+    try {
+      if (inflightRequests >= (int) limit || inflightBytes + length > maxInflightBytes) return false;
+      inflightRequests++;
+      inflightBytes += length;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the slot of a hedge once its request has responded or failed. If the hedge wins, its stream is read under
+   * the slot of the part it duplicates.
+   */
+  private void releaseHedge(long length, long sentAt, boolean throttled) {
+    lock.lock();
+    try {
+      inflightRequests--;
+      inflightBytes -= length;
+      if (throttled) {
+        decreaseLimit(sentAt);
+      }
+      dispatchable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  static boolean isThrottled(Throwable t) {
+    for (; t != null; t = t.getCause()) {
+      if (t instanceof AmazonServiceException) {
+        AmazonServiceException e = (AmazonServiceException) t;
+        return e.getStatusCode() == 503 || "SlowDown".equals(e.getErrorCode());
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The current number of concurrent requests allowed
+   */
+  int limit() {
+    lock.lock();
+    try {
+      return (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits for a download started by {@link #fetchAsync}, rethrowing its failure
+   */
+  static void await(S3ObjectSummary summary, CompletableFuture<Void> download) throws IOException {
+    try {
+      Uninterruptibles.getUninterruptibly(download);
+    } catch (ExecutionException e) {
+      throw failure(summary, e.getCause());
+    }
+  }
+
+  /**
+   * Returns the failure of a download as an IOException, unless it is unchecked
+   */
+  static IOException failure(S3ObjectSummary summary, Throwable t) {
+    if (t instanceof CompletionException && t.getCause() != null) t = t.getCause();
+    if (t instanceof RuntimeException) throw (RuntimeException) t;
+    if (t instanceof Error) throw (Error) t;
+    if (t instanceof IOException) return (IOException) t;
+    return new IOException("Failed to fetch " + summary.getKey(), t);
+  }
+
+  private void fetchPart(ObjectStore store, S3ObjectSummary summary, List<S3FileBlock> run, Map<S3FileBlock, ByteBuffer> data,
+                         long partStart, long partEnd, Progress progress, boolean hedge) throws IOException {
+    LOG.trace("[readFromS3][" + summary.getKey() + "] @" + partStart + ":" + (partEnd - partStart));
+    long startTime = System.nanoTime();
+    long transferred = partEnd - partStart;
+    try (InputStream object = open(store, summary, partStart, partEnd - partStart, hedge)) {
+      if (object instanceof ObjectStore.EncodedStream) {
+        // count what went over the network, not what it decodes to
+        transferred = ((ObjectStore.EncodedStream) object).encodedLength();
+      }
+      S3IndexInput.stats.readFromS3.addAndGet(transferred);
+      S3IndexInput.stats.requestsToS3.incrementAndGet();
+
+      long pos = partStart;
+      byte[] scratch = null;
+      for (S3FileBlock fb : run) {
+        long blockEnd = fb.offset + fb.length();
+        if (blockEnd <= pos) continue;
+        if (fb.offset >= partEnd) break;
+        int dstOffset = Math.toIntExact(pos - fb.offset);
+        int dstEnd = Math.toIntExact(Math.min(blockEnd, partEnd) - fb.offset);
+        ByteBuffer buffer = data.get(fb);
+        if (!buffer.hasArray() && scratch == null) {
+          scratch = new byte[COPY_CHUNK_SIZE];
+        }
+        // read in chunks so readers waiting for the start of the block can go ahead before the rest arrives
+        while (dstOffset < dstEnd) {
+          int toRead = Math.min(dstEnd - dstOffset, COPY_CHUNK_SIZE);
+          int bytesRead = read(object, buffer, dstOffset, toRead, scratch);
+          if (bytesRead != toRead) {
+            throw new IOException("block is not completely filled! fb=" + fb + " bytesRead=" + bytesRead);
+          }
+          if (progress != null) {
+            progress.filled(fb, dstOffset, dstOffset + toRead);
+          }
+          dstOffset += toRead;
+        }
+        pos = fb.offset + dstEnd;
+      }
+    }
+    metrics.recordNanos(Metrics.S3_GET_LATENCY, startTime);
+    metrics.record(Metrics.S3_GET_BYTES, transferred);
+    metrics.count(Metrics.S3_REQUESTS, 1);
+    metrics.count(Metrics.S3_BYTES, transferred);
+  }
+
+  /**
+   * Opens a range of the object, hedging the request if {@code hedge} is set and hedging is enabled
+   */
+  private InputStream open(ObjectStore store, S3ObjectSummary summary, long offset, long length, boolean hedge)
+      throws IOException {
+    if (firstByteLatency == null) {
+      return store.getObject(summary.getBucketName(), summary.getKey(), offset, length);
+    }
+    long threshold = firstByteLatency.threshold();
+    if (!hedge || threshold < 0) {
+      long start = System.nanoTime();
+      InputStream object = store.getObject(summary.getBucketName(), summary.getKey(), offset, length);
+      firstByteLatency.record(System.nanoTime() - start);
+      return object;
+    }
+
+    final CompletableFuture<InputStream> winner = new CompletableFuture<>();
+    // the number of requests that have not failed, the read only fails once all of them have
+    final AtomicInteger remaining = new AtomicInteger(1);
+    // the stream of the hedge, set before it competes for winner so the reader can tell who won
+    final AtomicReference<InputStream> hedged = new AtomicReference<>();
+    send(store, summary, offset, length, winner, remaining, null);
+    try {
+      try {
+        return winner.get(Math.max(threshold, minHedgeDelayNanos), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        if (!tryReserveHedge(length)) {
+          return winner.get();
+        }
+        LOG.trace("[hedge][" + summary.getKey() + "] @" + offset + ":" + length);
+        metrics.count(Metrics.S3_HEDGED, 1);
+        remaining.incrementAndGet();
+        send(store, summary, offset, length, winner, remaining, hedged);
+        InputStream object = winner.get();
+        if (object == hedged.get()) {
+          metrics.count(Metrics.S3_HEDGE_WINS, 1);
+        }
+        return object;
+      }
+    } catch (InterruptedException e) {
+      abandon(winner);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while fetching " + summary.getKey());
+    } catch (ExecutionException e) {
+      abandon(winner);
+      throw failure(summary, e.getCause());
+    }
+  }
+
+  /**
+   * Gives up on a hedged read nobody is going to consume, so that the requests still in flight close their streams
+   * when they respond instead of handing them to {@code winner}, and closes the stream that may have won already
+   */
+  private static void abandon(CompletableFuture<InputStream> winner) {
+    if (!winner.cancel(false) && !winner.isCompletedExceptionally()) {
+      IOUtils.closeQuietly(winner.join());
+    }
+  }
+
+  /**
+   * Sends one of the requests of a hedged read, handing its stream to {@code winner} if it is the first to respond and
+   * closing it otherwise. A hedge, for which {@code hedged} receives its stream, releases the slot reserved for it once
+   * it has responded.
+   */
+  private void send(ObjectStore store, S3ObjectSummary summary, long offset, long length,
+                    CompletableFuture<InputStream> winner, AtomicInteger remaining,
+                    AtomicReference<InputStream> hedged) {
+    final boolean isHedge = hedged != null;
+    final long start = System.nanoTime();
+    hedgeExecutor.execute(() -> {
+      boolean throttled = false;
+      try {
+        InputStream object = store.getObject(summary.getBucketName(), summary.getKey(), offset, length);
+        if (!isHedge) {
+          // the original requests are sampled whether or not they won, so that hedging does not skew the threshold
+          firstByteLatency.record(System.nanoTime() - start);
+        }
+        if (isHedge) {
+          hedged.set(object);
+        }
+        if (!winner.complete(object)) {
+          IOUtils.closeQuietly(object);
+        }
+      } catch (Throwable t) {
+        throttled = isThrottled(t);
+        if (remaining.decrementAndGet() == 0) {
+          winner.completeExceptionally(t);
+        }
+      } finally {
+        if (isHedge) {
+          releaseHedge(length, start, throttled);
+        }
+      }
+    });
+  }
+
+  /**
+   * The recent times to first byte of requests in a ring buffer, from which the hedging threshold is recomputed every
+   * few samples
+   */
+  static final class LatencyWindow {
+    static final int SIZE = 512;
+    /**
+     * No request is hedged until this many have been observed
+     */
+    static final int MIN_SAMPLES = 32;
+    static final int UPDATE_INTERVAL = 16;
+
+    private final double percentile;
+    private final long[] samples = new long[SIZE];
+    private long count;
+    private volatile long threshold = -1;
+
+    LatencyWindow(double percentile) {
+      this.percentile = percentile;
+    }
+
+    synchronized void record(long nanos) {
+      samples[(int) (count % SIZE)] = nanos;
+      count++;
+      if (count >= MIN_SAMPLES && count % UPDATE_INTERVAL == 0) {
+        long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, SIZE));
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(sorted.length * percentile / 100);
+        threshold = sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+      }
+    }
+
+    /**
+     * The time to first byte after which a request is hedged in nanoseconds, or -1 until enough requests were observed
+     */
+    long threshold() {
+      return threshold;
+    }
+  }
+
+  /**
+   * Reads up to {@code length} bytes from the stream into the buffer at {@code offset}, going through {@code scratch}
+   * if the buffer has no backing array
+   */
+  static int read(InputStream in, ByteBuffer buffer, int offset, int length, byte[] scratch) throws IOException {
+    if (buffer.hasArray()) {
+      return IOUtils.read(in, buffer.array(), buffer.arrayOffset() + offset, length);
+    }
+    ByteBuffer dst = buffer.duplicate();
+    dst.position(offset);
+    int total = 0;
+    while (total < length) {
+      int n = in.read(scratch, 0, Math.min(scratch.length, length - total));
+      if (n < 0) break;
+      dst.put(scratch, 0, n);
+      total += n;
+    }
+    return total;
+  }
+}
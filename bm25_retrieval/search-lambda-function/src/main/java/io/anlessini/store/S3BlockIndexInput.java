@@ -0,0 +1,368 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import io.anlessini.store.S3BlockCache.CacheBlob;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+
+/**
+ * An IndexInput that reads straight out of the cached blocks of an {@link S3File}, like Lucene's
+ * {@code ByteBufferIndexInput} over a file split into several buffers. Unlike {@link S3IndexInput} it has no buffer of
+ * its own, so clones and slices only cost an object and reads do not copy a block into a private buffer first.
+ *
+ * <p>The input keeps the block it is positioned in retained so that repeated reads do not go back to the cache, and
+ * releases it when it moves to another block or a bulk read consumes the block to its end. Lucene never closes clones
+ * and slices, so a block is also released once the input becomes unreachable; until then an evicted block counts
+ * against the cache size.</p>
+ */
+public class S3BlockIndexInput extends IndexInput implements RandomAccessInput {
+  private static final Logger LOG = LogManager.getLogger(S3BlockIndexInput.class);
+  private static final Cleaner CLEANER = Cleaner.create();
+
+  private final S3File file;
+  /**
+   * The start offset in the entire file, non-zero in the slice case
+   */
+  private final long off;
+  /**
+   * The end offset
+   */
+  private final long end;
+  /**
+   * The current position in the entire file
+   */
+  private long pos;
+
+  /**
+   * The block the input is positioned in, registered with the cleaner on first use. Each clone gets its own.
+   */
+  private BlockRef ref;
+  private Cleaner.Cleanable cleanable;
+  /**
+   * A view of the current block, whose position is only used by bulk reads
+   */
+  private ByteBuffer buf;
+  private long bufStart;
+  /**
+   * The end of the current block, or of the input if that comes first, so the fast paths need no separate EOF check
+   */
+  private long bufEnd;
+  /**
+   * The end of the bytes of the current block known to have arrived, below {@code bufEnd} while the block is filling
+   */
+  private long bufLimit;
+
+  /**
+   * The bytes read from the current block and whether it had to be loaded, reported to the {@link BlockSizePolicy}
+   * when the input moves on
+   */
+  private long visitBytes;
+  private long visitMissedBytes;
+
+  private Readahead readahead;
+
+  /**
+   * Holds the retained block of an input, apart from the input so that the cleaner can release it
+   */
+  private static final class BlockRef implements Runnable {
+    private CacheBlob blob;
+
+    void set(CacheBlob next) {
+      CacheBlob previous = blob;
+      blob = next;
+      if (previous != null) {
+        previous.release();
+      }
+    }
+
+    @Override
+    public void run() {
+      set(null);
+    }
+  }
+
+  S3BlockIndexInput(String resourceDescription, S3File file, long offset, long length) {
+    super(resourceDescription);
+    this.file = file;
+    this.off = offset;
+    this.end = offset + length;
+    this.pos = offset;
+    this.readahead = file.newReadahead();
+  }
+
+  public S3BlockIndexInput(ObjectStore store, S3ObjectSummary summary) {
+    this(new S3File(store, summary));
+  }
+
+  S3BlockIndexInput(S3File file) {
+    this(file.name(), file, 0, file.length());
+  }
+
+  /**
+   * Positions the input in the block containing {@code p}, reporting the previous block to the policy
+   */
+  private void seekBlock(long p, boolean multiBlockRead) throws IOException {
+    finishVisit(multiBlockRead);
+    S3FileBlock fb = file.block(p / file.blockSize);
+    BlockAccessRecorder.record(fb);
+    if (readahead != null) {
+      int blocks = readahead.onRead(fb.offset, fb.offset + fb.length());
+      if (blocks > 0) {
+        file.readaheadAsync(readahead.start(), blocks, end);
+      }
+    }
+
+    visitMissedBytes = file.cache.contains(fb) ? 0 : fb.length();
+    CacheBlob cb = file.acquireBlock(fb);
+    if (ref == null) {
+      ref = new BlockRef();
+      cleanable = CLEANER.register(this, ref);
+    }
+    ref.set(cb);
+    buf = cb.duplicate();
+    bufStart = fb.offset;
+    bufEnd = Math.min(fb.offset + fb.length(), end);
+    bufLimit = Math.min(bufEnd, bufStart + cb.filled());
+  }
+
+  /**
+   * Waits until the current block has arrived up to {@code p}. If its download failed the block is dropped, so that
+   * the next read loads it again.
+   */
+  private void awaitFilled(long p) throws IOException {
+    try {
+      bufLimit = Math.min(bufEnd, bufStart + ref.blob.awaitFilled(Math.toIntExact(p - bufStart)));
+    } catch (IOException | RuntimeException e) {
+      dropBlock();
+      throw e;
+    }
+  }
+
+  /**
+   * Releases the current block, the next read loads it again
+   */
+  private void dropBlock() {
+    ref.set(null);
+    buf = null;
+    bufStart = 0;
+    bufEnd = 0;
+    bufLimit = 0;
+  }
+
+  private void finishVisit(boolean multiBlockRead) {
+    if (buf == null) return;
+    S3IndexInput.stats.readTotal.addAndGet(visitBytes);
+    S3IndexInput.metrics.count(Metrics.BYTES_READ, visitBytes);
+    file.blockSizePolicy.recordRead(file.summary, (int) Math.min(Integer.MAX_VALUE, visitBytes),
+        multiBlockRead ? 2 : 1, visitMissedBytes);
+    visitBytes = 0;
+  }
+
+  private EOFException eof(long p) {
+    return new EOFException("read past EOF: pos=" + (p - off) + ", length=" + length() + ": " + toString());
+  }
+
+  @Override
+  public byte readByte() throws IOException {
+    if (pos >= bufLimit || pos < bufStart) {
+      if (pos >= end) throw eof(pos);
+      if (pos >= bufEnd || pos < bufStart) {
+        seekBlock(pos, false);
+      }
+      if (pos >= bufLimit) {
+        awaitFilled(pos + 1);
+      }
+    }
+    byte b = buf.get((int) (pos - bufStart));
+    pos++;
+    visitBytes++;
+    return b;
+  }
+
+  @Override
+  public void readBytes(byte[] b, int offset, int len) throws IOException {
+    if (pos + len > end) throw eof(pos + len);
+    boolean multiBlockRead = false;
+    while (len > 0) {
+      if (pos >= bufEnd || pos < bufStart) {
+        seekBlock(pos, multiBlockRead);
+      }
+      int n = (int) Math.min(len, bufEnd - pos);
+      if (pos + n > bufLimit) {
+        awaitFilled(pos + n);
+      }
+      buf.position((int) (pos - bufStart));
+      buf.get(b, offset, n);
+      pos += n;
+      offset += n;
+      len -= n;
+      visitBytes += n;
+      multiBlockRead = true;
+    }
+    if (pos == bufEnd && buf != null) {
+      // nothing is left to read in the block, so do not keep it from being freed once evicted
+      finishVisit(false);
+      dropBlock();
+    }
+  }
+
+  @Override
+  public short readShort() throws IOException {
+    if (pos >= bufStart && pos + Short.BYTES <= bufLimit) {
+      short v = buf.getShort((int) (pos - bufStart));
+      pos += Short.BYTES;
+      visitBytes += Short.BYTES;
+      return v;
+    }
+    return super.readShort();
+  }
+
+  @Override
+  public int readInt() throws IOException {
+    if (pos >= bufStart && pos + Integer.BYTES <= bufLimit) {
+      int v = buf.getInt((int) (pos - bufStart));
+      pos += Integer.BYTES;
+      visitBytes += Integer.BYTES;
+      return v;
+    }
+    return super.readInt();
+  }
+
+  @Override
+  public long readLong() throws IOException {
+    if (pos >= bufStart && pos + Long.BYTES <= bufLimit) {
+      long v = buf.getLong((int) (pos - bufStart));
+      pos += Long.BYTES;
+      visitBytes += Long.BYTES;
+      return v;
+    }
+    return super.readLong();
+  }
+
+  @Override
+  public void skipBytes(long numBytes) throws IOException {
+    if (numBytes < 0) {
+      throw new IllegalArgumentException("numBytes must be >= 0, got " + numBytes);
+    }
+    seek(getFilePointer() + numBytes);
+  }
+
+  /**
+   * Positions the input in the block containing {@code p} relative to the input, for random access reads
+   */
+  private int randomAccess(long p, int size) throws IOException {
+    long a = off + p;
+    if (p < 0 || a + size > end) throw eof(a);
+    if (a < bufStart || a >= bufEnd) {
+      seekBlock(a, false);
+    }
+    long limit = Math.min(a + size, bufEnd);
+    if (limit > bufLimit) {
+      awaitFilled(limit);
+    }
+    visitBytes += size;
+    return (int) (a - bufStart);
+  }
+
+  @Override
+  public byte readByte(long p) throws IOException {
+    int i = randomAccess(p, Byte.BYTES);
+    return buf.get(i);
+  }
+
+  @Override
+  public short readShort(long p) throws IOException {
+    int i = randomAccess(p, Short.BYTES);
+    if (bufStart + i + Short.BYTES <= bufEnd) {
+      return buf.getShort(i);
+    }
+    return (short) (((readByte(p) & 0xFF) << 8) | (readByte(p + 1) & 0xFF));
+  }
+
+  @Override
+  public int readInt(long p) throws IOException {
+    int i = randomAccess(p, Integer.BYTES);
+    if (bufStart + i + Integer.BYTES <= bufEnd) {
+      return buf.getInt(i);
+    }
+    return ((readShort(p) & 0xFFFF) << 16) | (readShort(p + 2) & 0xFFFF);
+  }
+
+  @Override
+  public long readLong(long p) throws IOException {
+    int i = randomAccess(p, Long.BYTES);
+    if (bufStart + i + Long.BYTES <= bufEnd) {
+      return buf.getLong(i);
+    }
+    return ((long) readInt(p) << 32) | (readInt(p + 4) & 0xFFFFFFFFL);
+  }
+
+  @Override
+  public long getFilePointer() {
+    return pos - off;
+  }
+
+  @Override
+  public void seek(long p) throws IOException {
+    if (p < 0 || p > length()) {
+      throw eof(off + p);
+    }
+    pos = off + p;
+  }
+
+  @Override
+  public long length() {
+    return end - off;
+  }
+
+  @Override
+  public S3BlockIndexInput slice(String sliceDescription, long offset, long length) {
+    if (offset < 0 || length < 0 || offset + length > this.length()) {
+      throw new IllegalArgumentException("Slice " + sliceDescription + " out of bounds: " +
+          "offset=" + offset + ",length=" + length + ",fileLength=" + this.length() + ": " + toString());
+    }
+    LOG.trace("[slice][" + toString() + "] " + sliceDescription + ", offset=" + offset + ", length=" + length);
+    return new S3BlockIndexInput(getFullSliceDescription(sliceDescription), file, off + offset, length);
+  }
+
+  @Override
+  public RandomAccessInput randomAccessSlice(long offset, long length) {
+    return slice("randomaccess", offset, length);
+  }
+
+  @Override
+  public S3BlockIndexInput clone() {
+    S3BlockIndexInput clone = (S3BlockIndexInput) super.clone();
+    // the clone starts without a block of its own, it is loaded from the cache on first read
+    clone.ref = null;
+    clone.cleanable = null;
+    clone.buf = null;
+    clone.bufStart = 0;
+    clone.bufEnd = 0;
+    clone.bufLimit = 0;
+    clone.visitBytes = 0;
+    clone.readahead = file.newReadahead();
+    return clone;
+  }
+
+  @Override
+  public void close() {
+    finishVisit(false);
+    if (cleanable != null) {
+      cleanable.clean();
+    }
+    ref = null;
+    cleanable = null;
+    buf = null;
+    bufStart = 0;
+    bufEnd = 0;
+    bufLimit = 0;
+  }
+}
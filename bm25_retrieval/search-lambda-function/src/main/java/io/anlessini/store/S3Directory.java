@@ -1,12 +1,15 @@
 package io.anlessini.store;
 
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.*;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.store.*;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -14,18 +17,51 @@ import java.util.concurrent.locks.ReentrantLock;
 public class S3Directory extends BaseDirectory {
   private static final Logger LOG = LogManager.getLogger(S3Directory.class);
 
-  private final AmazonS3 s3Client;
+  private final ObjectStore store;
+  /**
+   * The store the index files are read from, which serves them out of the pack if the index is packed
+   */
+  private ObjectStore fileStore;
 
   private Map<String, S3ObjectSummary> objectSummaries;
+  /**
+   * The contents of the files inlined in the {@link IndexManifest} or read with the head of the {@link PackedIndex},
+   * by file name
+   */
+  private Map<String, ByteBuffer> inlinedFiles = Collections.emptyMap();
+  /**
+   * The chunk size of the files stored compressed in the {@link PackedIndex}, which they have to be read in blocks of
+   */
+  private Map<String, Integer> chunkSizes = Collections.emptyMap();
 
   private final String bucket;
   private final String key;
 
   private final Lock lsLock = new ReentrantLock();
 
+  /**
+   * Read through a private buffer per input with {@link S3IndexInput} rather than straight from the cached blocks
+   * with {@link S3BlockIndexInput}, if S3_BUFFERED_INPUT is set
+   */
+  private final boolean bufferedInput = Settings.getBoolean("S3_BUFFERED_INPUT", false);
+  /**
+   * Open the index from its {@link IndexManifest} if it has one rather than listing the prefix, unless
+   * S3_INDEX_MANIFEST is set to false
+   */
+  private final boolean useManifest = Settings.getBoolean("S3_INDEX_MANIFEST", true);
+  /**
+   * Open the index from a {@link PackedIndex} if there is one, unless S3_INDEX_PACK is set to false
+   */
+  private final boolean usePack = Settings.getBoolean("S3_INDEX_PACK", true);
+
   public S3Directory(AmazonS3 s3Client, String bucket, String key) {
+    this(new S3ObjectStore(s3Client), bucket, key);
+  }
+
+  public S3Directory(ObjectStore store, String bucket, String key) {
     super(new SingleInstanceLockFactory());
-    this.s3Client = s3Client;
+    this.store = store;
+    this.fileStore = store;
     this.bucket = bucket;
     this.key = key;
 
@@ -33,48 +69,121 @@ public class S3Directory extends BaseDirectory {
   }
 
   @Override
-  public String[] listAll() {
+  public String[] listAll() throws IOException {
+    Map<String, S3ObjectSummary> summaries = objectSummaries();
+    String[] result = summaries.keySet().toArray(new String[summaries.size()]);
+    Arrays.sort(result);
+    return result;
+  }
+
+  /**
+   * Returns the files of the index, read from its pack or its manifest or else listed on the first call and cached
+   * afterwards. Each format that is missing costs a failed GET, so disable those that are never published.
+   */
+  private Map<String, S3ObjectSummary> objectSummaries() throws IOException {
     lsLock.lock();
-    if (objectSummaries == null) { // only ls if has not already done so, otherwise use cached result
-      objectSummaries = new HashMap<>();
-      String listingCursor = null;
-      ListObjectsV2Result result;
-      do {
-        ListObjectsV2Request req = new ListObjectsV2Request()
-            .withBucketName(bucket)
-            .withPrefix(key + "/")
-            .withStartAfter(listingCursor);
-        result = s3Client.listObjectsV2(req);
-        List<S3ObjectSummary> listings = result.getObjectSummaries();
-        for (S3ObjectSummary objectSummary: listings) {
-            String objectKey = objectSummary.getKey();
-            int keyLength = objectKey.split("/").length;
-            String objectName;
-            if (keyLength == 1){
-                    objectName = ""; // we are reading something like "[objectKey]/", .split() treats it as array of size 1
-            }
-            else{
-                    objectName = objectKey.split("/")[1];
-            }
-            objectSummaries.put(objectName, objectSummary);
+    try {
+      if (objectSummaries == null) {
+        if ((!usePack || !readPack()) && (!useManifest || !readManifest())) {
+          listObjects();
         }
-        listingCursor = listings.get(listings.size() - 1).getKey();
-      } while (result.isTruncated());
+      }
+      return objectSummaries;
+    } finally {
+      lsLock.unlock();
     }
-    lsLock.unlock();
+  }
 
-    String[] result = objectSummaries.keySet().toArray(new String[objectSummaries.size()]);
-    Arrays.sort(result);
-    return result;
+  /**
+   * Loads the files of the index and the small files at the front of its pack, returning false if it is not packed
+   */
+  private boolean readPack() throws IOException {
+    final PackedIndex pack;
+    try {
+      pack = PackedIndex.open(store, bucket, key + "/" + PackedIndex.NAME,
+          Settings.getInt("S3_PACK_HEAD_SIZE", PackedIndex.DEFAULT_HEAD_FETCH_SIZE));
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+    Map<String, S3ObjectSummary> summaries = new HashMap<>();
+    Map<String, ByteBuffer> inlined = new HashMap<>();
+    Map<String, Integer> chunked = new HashMap<>();
+    for (IndexManifest.Entry entry : pack.manifest.files) {
+      S3ObjectSummary objectSummary = new S3ObjectSummary();
+      objectSummary.setBucketName(bucket);
+      objectSummary.setKey(key + "/" + entry.name);
+      objectSummary.setSize(entry.size);
+      summaries.put(entry.name, objectSummary);
+      ByteBuffer data = pack.headFile(entry.name);
+      if (data != null) {
+        inlined.put(entry.name, data);
+      }
+      if (entry.chunkSize != null) {
+        chunked.put(entry.name, entry.chunkSize);
+      }
+    }
+    objectSummaries = summaries;
+    inlinedFiles = inlined;
+    chunkSizes = chunked;
+    fileStore = pack.store(store, key + "/");
+    LOG.info("Read " + summaries.size() + " files (" + inlined.size() + " from the head) from " + PackedIndex.NAME);
+    return true;
+  }
+
+  /**
+   * Loads the files of the index from its manifest, returning false if there is none
+   */
+  private boolean readManifest() throws IOException {
+    final IndexManifest manifest;
+    try (InputStream in = store.getObject(bucket, key + "/" + IndexManifest.NAME)) {
+      manifest = IndexManifest.read(in);
+    } catch (NoSuchFileException e) {
+      LOG.info("No " + IndexManifest.NAME + " found under " + bucket + "/" + key + ", listing the index files");
+      return false;
+    }
+    Map<String, S3ObjectSummary> summaries = new HashMap<>();
+    Map<String, ByteBuffer> inlined = new HashMap<>();
+    for (IndexManifest.Entry entry : manifest.files) {
+      S3ObjectSummary objectSummary = new S3ObjectSummary();
+      objectSummary.setBucketName(bucket);
+      objectSummary.setKey(key + "/" + entry.name);
+      objectSummary.setSize(entry.size);
+      objectSummary.setETag(entry.etag);
+      summaries.put(entry.name, objectSummary);
+      if (entry.data != null) {
+        inlined.put(entry.name, ByteBuffer.wrap(entry.data));
+      }
+    }
+    objectSummaries = summaries;
+    inlinedFiles = inlined;
+    LOG.info("Read " + summaries.size() + " files (" + inlined.size() + " inlined) from " + IndexManifest.NAME);
+    return true;
+  }
+
+  private void listObjects() throws IOException {
+    Map<String, S3ObjectSummary> summaries = new HashMap<>();
+    for (S3ObjectSummary objectSummary: store.listObjects(bucket, key + "/")) {
+      String objectKey = objectSummary.getKey();
+      int keyLength = objectKey.split("/").length;
+      String objectName;
+      if (keyLength == 1) {
+        objectName = ""; // we are reading something like "[objectKey]/", .split() treats it as array of size 1
+      } else {
+        objectName = objectKey.split("/")[1];
+      }
+      summaries.put(objectName, objectSummary);
+    }
+    objectSummaries = summaries;
   }
-@Override
+
+  @Override
   public void deleteFile(String s) {
     throw new UnsupportedOperationException();
   }
 
   @Override
-  public long fileLength(String name) {
-    return objectSummaries.get(name).getSize();
+  public long fileLength(String name) throws IOException {
+    return summary(name).getSize();
   }
 
   @Override
@@ -109,11 +218,38 @@ public class S3Directory extends BaseDirectory {
 
   @Override
   public IndexInput openInput(String name, IOContext context) throws IOException {
-    return new S3IndexInput(s3Client, objectSummaries.get(name));
+    S3ObjectSummary summary = summary(name);
+    ByteBuffer inlined = inlinedFiles.get(name);
+    if (inlined != null) {
+      return new ByteBuffersIndexInput(new ByteBuffersDataInput(Collections.singletonList(inlined.duplicate())),
+          summary.getBucketName() + "/" + summary.getKey());
+    }
+    S3File file = newFile(name, summary);
+    if (bufferedInput) {
+      return new S3IndexInput(file, 0, file.length(), S3IndexInput.defaultBufferSize(file.length()));
+    }
+    return new S3BlockIndexInput(file);
+  }
+
+  S3File file(String name) throws IOException {
+    return newFile(name, summary(name));
+  }
+
+  private S3File newFile(String name, S3ObjectSummary summary) {
+    Integer chunkSize = chunkSizes.get(name);
+    return chunkSize != null ? new S3File(fileStore, summary, chunkSize) : new S3File(fileStore, summary);
+  }
+
+  private S3ObjectSummary summary(String name) throws IOException {
+    S3ObjectSummary summary = objectSummaries().get(name);
+    if (summary == null) {
+      throw new NoSuchFileException(bucket + "/" + key + "/" + name);
+    }
+    return summary;
   }
 
   @Override
   public void close() {
-    s3Client.shutdown();
+    store.close();
   }
 }
\ No newline at end of file
@@ -0,0 +1,306 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import io.anlessini.store.S3BlockCache.CacheBlob;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * One index file on the object store, shared by every input, clone and slice opened on it. Loads the file's blocks
+ * through the memory cache, the disk tier and finally S3, with concurrent misses on a block sharing one download.
+ */
+class S3File {
+  private static final Logger LOG = LogManager.getLogger(S3File.class);
+
+  final ObjectStore store;
+  final S3ObjectSummary summary;
+  final S3BlockCache cache;
+  final DiskBlockCache diskCache;
+  final S3BlockFetcher fetcher;
+  final BlockSizePolicy blockSizePolicy;
+  final int blockSize;
+
+  S3File(ObjectStore store, S3ObjectSummary summary) {
+    this(store, summary, BlockSizePolicy.getInstance().blockSize(summary));
+  }
+
+  /**
+   * Opens a file read in blocks of a fixed size rather than one chosen by the {@link BlockSizePolicy}, such as a file
+   * stored in compressed chunks
+   */
+  S3File(ObjectStore store, S3ObjectSummary summary, int blockSize) {
+    this.store = store;
+    this.summary = summary;
+    this.cache = S3BlockCache.getInstance();
+    this.diskCache = DiskBlockCache.getInstance();
+    this.fetcher = S3BlockFetcher.getInstance();
+    this.blockSizePolicy = BlockSizePolicy.getInstance();
+    this.blockSize = blockSize;
+  }
+
+  String name() {
+    return summary.getBucketName() + "/" + summary.getKey();
+  }
+
+  long length() {
+    return summary.getSize();
+  }
+
+  S3FileBlock block(long blockIndex) {
+    return new S3FileBlock(summary, blockSize, blockIndex);
+  }
+
+  Readahead newReadahead() {
+    return Readahead.isEnabled() ? new Readahead(blockSize) : null;
+  }
+
+  /**
+   * Returns the given blocks retained, from the cache if possible and otherwise downloading them or waiting on
+   * another reader's download. Downloaded blocks may still be filling.
+   */
+  Map<S3FileBlock, CacheBlob> acquireBlocks(Collection<S3FileBlock> fileBlocks, int readLength,
+                                            boolean recordRead) throws IOException {
+    return acquireBlocks(fileBlocks, readLength, recordRead, S3BlockFetcher.Priority.DEMAND);
+  }
+
+  /**
+   * Same as {@link #acquireBlocks(Collection, int, boolean)}, downloading missing blocks with the given priority
+   */
+  Map<S3FileBlock, CacheBlob> acquireBlocks(Collection<S3FileBlock> fileBlocks, int readLength, boolean recordRead,
+                                            S3BlockFetcher.Priority priority) throws IOException {
+    final Map<S3FileBlock, CacheBlob> cacheBlocks = new HashMap<>();
+    final QueryTrace trace = QueryTrace.current();
+    boolean success = false;
+    try {
+      Collection<S3FileBlock> pending = fileBlocks;
+      boolean firstPass = true;
+      while (!pending.isEmpty()) {
+        final List<S3FileBlock> cacheMisses = new ArrayList<>();
+        final Map<S3FileBlock, CompletableFuture<CacheBlob>> inflight = new HashMap<>();
+        for (S3FileBlock fb : pending) {
+          CacheBlob cb = cache.getBlock(fb);
+          if (cb != null) {
+            cacheBlocks.put(fb, cb);
+            if (trace != null) trace.record(fb, QueryTrace.Source.CACHE);
+            continue;
+          }
+          CompletableFuture<CacheBlob> future = cache.beginLoad(fb);
+          if (future == null) {
+            cacheMisses.add(fb);
+          } else {
+            inflight.put(fb, future);
+          }
+        }
+
+        if (firstPass && recordRead) {
+          long missedBytes = 0;
+          for (S3FileBlock fb : cacheMisses) {
+            missedBytes += fb.length();
+          }
+          blockSizePolicy.recordRead(summary, readLength, fileBlocks.size(), missedBytes);
+        }
+        firstPass = false;
+
+        if (!cacheMisses.isEmpty()) {
+          loadOwned(cacheMisses, cacheBlocks, trace, priority);
+        }
+
+        // blocks that were evicted before we could retain them are tried again
+        final List<S3FileBlock> retry = new ArrayList<>();
+        for (Map.Entry<S3FileBlock, CompletableFuture<CacheBlob>> entry : inflight.entrySet()) {
+          CacheBlob cb = cache.awaitLoad(entry.getKey(), entry.getValue());
+          if (cb == null) {
+            retry.add(entry.getKey());
+          } else {
+            cacheBlocks.put(entry.getKey(), cb);
+            if (trace != null) trace.record(entry.getKey(), QueryTrace.Source.INFLIGHT);
+            if (priority == S3BlockFetcher.Priority.DEMAND && cb.filled() < cb.size()) {
+              // we are now waiting on a block that may have been queued as readahead or prefetch
+              fetcher.promote(entry.getKey());
+            }
+          }
+        }
+        pending = retry;
+      }
+      success = true;
+      return cacheBlocks;
+    } finally {
+      if (!success) {
+        for (CacheBlob cb : cacheBlocks.values()) {
+          cb.release();
+        }
+      }
+    }
+  }
+
+  /**
+   * Loads blocks whose loads the caller has claimed with {@link S3BlockCache#beginLoad}, from the disk tier or else
+   * from S3, adding them retained to {@code cacheBlocks}. Blocks downloaded from S3 are added as soon as the download
+   * has started and fill in the background, so readers have to wait for the bytes they need with
+   * {@link CacheBlob#awaitFilled}. Loads that could not be started are failed so that waiters retry. The loads are
+   * recorded in {@code trace} unless it is null. Returns the blocks being downloaded from S3.
+   */
+  private Set<S3FileBlock> loadOwned(List<S3FileBlock> cacheMisses, Map<S3FileBlock, CacheBlob> cacheBlocks,
+                                     QueryTrace trace, S3BlockFetcher.Priority priority) {
+    final Map<S3FileBlock, CacheBlob> filling = new HashMap<>();
+    final Map<S3FileBlock, ByteBuffer> buffers = new HashMap<>();
+    try {
+      final boolean readahead = priority == S3BlockFetcher.Priority.READAHEAD;
+      readFromDisk(cacheMisses, cacheBlocks, trace, readahead);
+      for (S3FileBlock fb : cacheMisses) {
+        CacheBlob cb = cache.beginFill(fb, cache.allocator().allocate(fb.length()), readahead);
+        filling.put(fb, cb);
+        buffers.put(fb, cb.duplicate());
+      }
+    } catch (Throwable e) {
+      // including an OutOfMemoryError from allocating direct memory, or the waiters on these loads would hang
+      for (S3FileBlock fb : cacheMisses) {
+        CacheBlob cb = filling.get(fb);
+        if (cb == null) {
+          cache.failLoad(fb, e);
+        } else {
+          cache.abortFill(cb, e);
+          cb.release();
+        }
+      }
+      throw e;
+    }
+    if (filling.isEmpty()) return Collections.emptySet();
+
+    final List<QueryTrace.BlockAccess> traced = new ArrayList<>();
+    if (trace != null) {
+      for (S3FileBlock fb : filling.keySet()) {
+        QueryTrace.BlockAccess access = trace.record(fb, QueryTrace.Source.S3);
+        if (access != null) traced.add(access);
+      }
+    }
+    final long fetchStart = System.nanoTime();
+    CompletableFuture<Void> fetch = fetcher.fetchAsync(store, summary, buffers,
+        (fb, from, to) -> filling.get(fb).fill(from, to), priority).whenComplete((result, t) -> {
+          Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+          if (cause != null) {
+            LOG.warn("Failed to download " + filling.size() + " blocks of " + summary.getKey(), cause);
+          }
+          for (QueryTrace.BlockAccess access : traced) {
+            access.fetchMillis = (System.nanoTime() - fetchStart) / 1e6;
+          }
+          for (CacheBlob cb : filling.values()) {
+            if (cause == null) {
+              cache.finishFill(cb);
+            } else {
+              cache.abortFill(cb, cause);
+            }
+          }
+        });
+    if (!traced.isEmpty()) {
+      trace.fetching(fetch);
+    }
+    cacheBlocks.putAll(filling);
+    return filling.keySet();
+  }
+
+  /**
+   * Returns a single block retained, possibly still filling
+   */
+  CacheBlob acquireBlock(S3FileBlock fileBlock) throws IOException {
+    return acquireBlocks(Collections.singletonList(fileBlock), 0, false).get(fileBlock);
+  }
+
+  /**
+   * Loads the blocks covering the given range of the file into the cache without reading them
+   */
+  void prefetch(long offset, int length) throws IOException {
+    if (offset < 0 || length <= 0 || offset + length > length()) {
+      throw new IllegalArgumentException("Prefetch out of bounds: offset=" + offset + ",length=" + length
+          + ",fileLength=" + length() + ": " + name());
+    }
+    LOG.trace("[prefetch][" + summary.getKey() + "] @" + offset + ":" + length);
+    prefetch(S3FileBlock.of(summary, blockSize, offset, length));
+  }
+
+  /**
+   * Loads the given blocks of the file into the cache without reading them. The missing blocks are downloaded
+   * together, so the fetcher runs their requests concurrently.
+   */
+  void prefetch(Collection<S3FileBlock> fileBlocks) throws IOException {
+    Map<S3FileBlock, CacheBlob> cacheBlocks = acquireBlocks(fileBlocks, 0, false, S3BlockFetcher.Priority.PREFETCH);
+    try {
+      for (CacheBlob cb : cacheBlocks.values()) {
+        cb.awaitFilled(cb.size());
+      }
+    } finally {
+      for (CacheBlob cb : cacheBlocks.values()) {
+        cb.release();
+      }
+    }
+  }
+
+  /**
+   * Loads {@code count} blocks starting at block {@code startBlock}, but not past {@code end}, in the background,
+   * skipping blocks that are cached or already being loaded
+   */
+  void readaheadAsync(long startBlock, int count, long end) {
+    final long from = startBlock * blockSize;
+    final long to = Math.min(end, (startBlock + count) * blockSize);
+    if (from >= to) return;
+    final PriorityQueue<S3FileBlock> fileBlocks = S3FileBlock.of(summary, blockSize, from, Math.toIntExact(to - from));
+    boolean submitted = Readahead.submit(to - from, () -> {
+      final List<S3FileBlock> cacheMisses = new ArrayList<>();
+      for (S3FileBlock fb : fileBlocks) {
+        if (!cache.contains(fb) && cache.beginLoad(fb) == null) {
+          cacheMisses.add(fb);
+        }
+      }
+      if (cacheMisses.isEmpty()) return;
+      final Map<S3FileBlock, CacheBlob> loaded = new HashMap<>();
+      try {
+        Set<S3FileBlock> downloaded = loadOwned(cacheMisses, loaded, null, S3BlockFetcher.Priority.READAHEAD);
+        // hold the pool thread until the blocks have arrived, so pending readahead stays within its budget
+        for (Map.Entry<S3FileBlock, CacheBlob> entry : loaded.entrySet()) {
+          CacheBlob cb = entry.getValue();
+          cb.awaitFilled(cb.size());
+          // blocks found in the disk tier are counted as read from disk
+          if (downloaded.contains(entry.getKey())) {
+            S3IndexInput.stats.readahead.addAndGet(cb.size());
+          }
+        }
+        LOG.trace("[readahead][" + summary.getKey() + "] @" + from + ":" + (to - from));
+      } catch (IOException e) {
+        LOG.debug("Readahead of " + summary.getKey() + " failed", e);
+      } finally {
+        for (CacheBlob cb : loaded.values()) {
+          cb.release();
+        }
+      }
+    });
+    if (!submitted) {
+      LOG.trace("[readahead][" + summary.getKey() + "] dropped @" + from + ":" + (to - from));
+    }
+  }
+
+  /**
+   * Completes the loads of the blocks found in the disk tier, removing them from {@code cacheMisses}
+   */
+  private void readFromDisk(List<S3FileBlock> cacheMisses, Map<S3FileBlock, CacheBlob> cacheBlocks,
+                            QueryTrace trace, boolean readahead) {
+    if (!diskCache.isEnabled()) return;
+    Iterator<S3FileBlock> it = cacheMisses.iterator();
+    while (it.hasNext()) {
+      S3FileBlock fb = it.next();
+      ByteBuffer data = diskCache.read(fb);
+      if (data != null) {
+        // mapped buffers are unmapped the same way direct buffers are freed
+        cacheBlocks.put(fb, cache.completeLoad(fb, data, BlockAllocator.DIRECT, readahead));
+        S3IndexInput.stats.readFromDisk.addAndGet(fb.length());
+        if (trace != null) trace.record(fb, QueryTrace.Source.DISK);
+        it.remove();
+      }
+    }
+  }
+}
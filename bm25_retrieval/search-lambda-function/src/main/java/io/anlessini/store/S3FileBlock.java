@@ -6,32 +6,43 @@ import java.util.PriorityQueue;
 
 public class S3FileBlock implements Comparable<S3FileBlock> {
   /**
-   * Each S3FileBlock is 64 MB in size except for the last one which is < 64 MB
+   * Unless the {@link BlockSizePolicy} says otherwise, each S3FileBlock is 64 MB in size except for the last one
+   * which is < 64 MB
    */
   static final int DEFAULT_BLOCK_SIZE = 1024 * 1024 * 64;
 
   public final S3ObjectSummary summary;
+  public final int blockSize;
   public final long blockIndex;
   public final long offset;
 
   public static PriorityQueue<S3FileBlock> of(S3ObjectSummary summary, long offset, int length) {
-    long startIndex = offset / DEFAULT_BLOCK_SIZE;
-    long endIndex = (offset + length - 1) / DEFAULT_BLOCK_SIZE;
+    return of(summary, BlockSizePolicy.getInstance().blockSize(summary), offset, length);
+  }
+
+  public static PriorityQueue<S3FileBlock> of(S3ObjectSummary summary, int blockSize, long offset, int length) {
+    long startIndex = offset / blockSize;
+    long endIndex = (offset + length - 1) / blockSize;
     PriorityQueue<S3FileBlock> ret = new PriorityQueue<>();
     for (long i = startIndex; i <= endIndex; i++) {
-      ret.add(new S3FileBlock(summary, i));
+      ret.add(new S3FileBlock(summary, blockSize, i));
     }
     return ret;
   }
 
   public S3FileBlock(S3ObjectSummary summary, long blockIndex) {
+    this(summary, BlockSizePolicy.getInstance().blockSize(summary), blockIndex);
+  }
+
+  public S3FileBlock(S3ObjectSummary summary, int blockSize, long blockIndex) {
     this.summary = summary;
+    this.blockSize = blockSize;
     this.blockIndex = blockIndex;
-    this.offset = blockIndex * DEFAULT_BLOCK_SIZE;
+    this.offset = blockIndex * blockSize;
   }
 
   public int length() {
-    long endOffset = Math.min(summary.getSize(), offset + DEFAULT_BLOCK_SIZE);
+    long endOffset = Math.min(summary.getSize(), offset + blockSize);
     return Math.toIntExact(endOffset - offset);
   }
 
@@ -42,6 +53,7 @@ public class S3FileBlock implements Comparable<S3FileBlock> {
 
     S3FileBlock that = (S3FileBlock) o;
 
+    if (blockSize != that.blockSize) return false;
     if (blockIndex != that.blockIndex) return false;
     if (offset != that.offset) return false;
     return summary.equals(that.summary);
@@ -50,6 +62,7 @@ public class S3FileBlock implements Comparable<S3FileBlock> {
   @Override
   public int hashCode() {
     int result = summary.hashCode();
+    result = 31 * result + blockSize;
     result = 31 * result + (int) (blockIndex ^ (blockIndex >>> 32));
     result = 31 * result + (int) (offset ^ (offset >>> 32));
     return result;
@@ -64,6 +77,7 @@ public class S3FileBlock implements Comparable<S3FileBlock> {
   public String toString() {
     return "S3FileBlock{" +
         "summary=" + summary +
+        ", blockSize=" + blockSize +
         ", blockIndex=" + blockIndex +
         ", offset=" + offset +
         '}';
@@ -1,20 +1,14 @@
 package io.anlessini.store;
 
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.google.common.collect.MinMaxPriorityQueue;
-import org.apache.commons.io.IOUtils;
+import io.anlessini.store.S3BlockCache.CacheBlob;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.store.BufferedIndexInput;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class S3IndexInput extends BufferedIndexInput {
@@ -28,13 +22,25 @@ public class S3IndexInput extends BufferedIndexInput {
     public final AtomicLong readTotal = new AtomicLong();
 
     public final AtomicLong readFromS3 = new AtomicLong();
+
+    public final AtomicLong requestsToS3 = new AtomicLong();
+
+    public final AtomicLong readFromDisk = new AtomicLong();
+
+    public final AtomicLong readahead = new AtomicLong();
+
+    /**
+     * Bytes of compressed chunks downloaded, which readFromS3 includes
+     */
+    public final AtomicLong readCompressed = new AtomicLong();
   }
 
   public static final ReadStats stats = new ReadStats();
 
-  private final AmazonS3 s3Client;
+  static final Metrics metrics = Metrics.getInstance();
+
+  private final S3File file;
   private final S3ObjectSummary summary;
-  private final S3BlockCache cache;
 
   /**
    * The start offset in the entire file, non-zero in the slice case
@@ -44,22 +50,30 @@ public class S3IndexInput extends BufferedIndexInput {
    * The end offset
    */
   private final long end;
+  /**
+   * Sequential access detection for this input, null if readahead is disabled. Each clone gets its own.
+   */
+  private Readahead readahead;
+
+  public S3IndexInput(ObjectStore store, S3ObjectSummary summary) {
+    this(store, summary, 0, summary.getSize(), defaultBufferSize(summary.getSize()));
+  }
 
-  public S3IndexInput(AmazonS3 s3Client, S3ObjectSummary summary) {
-    this(s3Client, summary, 0, summary.getSize(), defaultBufferSize(summary.getSize()));
+  public S3IndexInput(ObjectStore store, S3ObjectSummary summary, long offset, long length, int bufferSize) {
+    this(new S3File(store, summary), offset, length, bufferSize);
   }
 
-  public S3IndexInput(AmazonS3 s3Client, S3ObjectSummary summary, long offset, long length, int bufferSize) {
-    super(summary.getBucketName() + "/" + summary.getKey(), bufferSize);
-    this.s3Client = s3Client;
-    this.cache = S3BlockCache.getInstance();
-    this.summary = summary;
+  S3IndexInput(S3File file, long offset, long length, int bufferSize) {
+    super(file.name(), bufferSize);
+    this.file = file;
+    this.summary = file.summary;
     this.off = offset;
     this.end = offset + length;
+    this.readahead = file.newReadahead();
     LOG.trace("Opened S3IndexInput " + toString() + "@" + hashCode() + " , bufferSize=" + getBufferSize());
   }
 
-  private static int defaultBufferSize(long fileLength) {
+  static int defaultBufferSize(long fileLength) {
     long bufferSize = fileLength;
     bufferSize = Math.max(bufferSize, MIN_BUFFER_SIZE);
     bufferSize = Math.min(bufferSize, DEFAULT_BUFFER_SIZE);
@@ -83,12 +97,13 @@ public class S3IndexInput extends BufferedIndexInput {
           "offset=" + offset + ",length=" + length + ",fileLength=" + this.length() + ": " + toString());
     }
     LOG.trace("[slice][" + toString() + "@" + hashCode() + "] " + getFullSliceDescription(sliceDescription) + ", offset=" + offset + ", length=" + length + ", fileLength=" + this.length());
-    return new S3IndexInput(s3Client, summary, off + offset, length, defaultBufferSize(length));
+    return new S3IndexInput(file, off + offset, length, defaultBufferSize(length));
   }
 
   @Override
   public S3IndexInput clone() {
     S3IndexInput clone = (S3IndexInput) super.clone();
+    clone.readahead = file.newReadahead();
     LOG.trace("[clone][" + toString() + "@" + hashCode() + "], clone=" + clone.hashCode());
     return clone;
   }
@@ -103,62 +118,54 @@ public class S3IndexInput extends BufferedIndexInput {
     }
 
     LOG.trace("[read][" + summary.getKey() + "] @" + startPos + ":" + length);
-    final PriorityQueue<S3FileBlock> fileBlocks = S3FileBlock.of(summary, startPos, length);
-    final Map<S3FileBlock, byte[]> cacheBlocks = new HashMap<>();
-    final MinMaxPriorityQueue<S3FileBlock> cacheMisses = MinMaxPriorityQueue.create();
-    for (S3FileBlock fb : fileBlocks) {
-      cacheBlocks.put(fb, cache.getBlock(fb));
-      if (cacheBlocks.get(fb) == null) {
-        cacheMisses.add(fb);
+    if (readahead != null) {
+      int blocks = readahead.onRead(startPos, endPos);
+      if (blocks > 0) {
+        file.readaheadAsync(readahead.start(), blocks, end);
       }
     }
-
-    if (!cacheMisses.isEmpty()) {
-      long downloadStartOffset = cacheMisses.peekFirst().offset;
-      long downloadEndOffset = cacheMisses.peekLast().offset + cacheMisses.peekLast().length();
-      downloadEndOffset = Math.min(summary.getSize(), downloadEndOffset);
-      int downloadLength = Math.toIntExact(downloadEndOffset - downloadStartOffset);
-      PriorityQueue<S3FileBlock> downloadBlocks = S3FileBlock.of(summary, downloadStartOffset, downloadLength);
-
-      LOG.trace("[readFromS3][" + summary.getKey() + "] @" + downloadStartOffset + ":" + downloadLength);
-      GetObjectRequest rangeObjectRequest = new GetObjectRequest(summary.getBucketName(), summary.getKey())
-          .withRange(downloadStartOffset, downloadEndOffset - 1);
-      S3Object object = s3Client.getObject(rangeObjectRequest);
-      stats.readFromS3.addAndGet(downloadLength);
-
-      for (S3FileBlock fb : downloadBlocks) {
-        byte[] data = new byte[fb.length()];
-        int bytesRead = IOUtils.read(object.getObjectContent(), data);
-        if (bytesRead != fb.length()) {
-          throw new IOException("block is not completely filled! fb=" + fb + " bytesRead=" + bytesRead);
-        }
-
-        cache.cacheBlock(fb, data);
-        cacheBlocks.put(fb, data);
-      }
-
-      object.close();
-    }
-
-    int bytesRead = 0;
-    int dstOffset = offset;
+    final PriorityQueue<S3FileBlock> fileBlocks = S3FileBlock.of(summary, file.blockSize, startPos, length);
     for (S3FileBlock fb : fileBlocks) {
-      byte[] src = cacheBlocks.get(fb);
-      long blockStart = fb.offset, blockEnd = fb.offset + fb.length();
-      int toRead = Math.toIntExact(Math.min(blockEnd, endPos) - Math.max(blockStart, startPos));
-      int srcOffset = Math.toIntExact(Math.max(0, startPos - blockStart));
-      System.arraycopy(src, srcOffset, dst, dstOffset, toRead);
-
-      dstOffset += toRead;
-      bytesRead += toRead;
+      BlockAccessRecorder.record(fb);
+    }
+    final Map<S3FileBlock, CacheBlob> cacheBlocks = file.acquireBlocks(fileBlocks, length, true);
+    try {
+      int bytesRead = 0;
+      int dstOffset = offset;
+      for (S3FileBlock fb : fileBlocks) {
+        CacheBlob src = cacheBlocks.get(fb);
+        long blockStart = fb.offset, blockEnd = fb.offset + fb.length();
+        int toRead = Math.toIntExact(Math.min(blockEnd, endPos) - Math.max(blockStart, startPos));
+        int srcOffset = Math.toIntExact(Math.max(0, startPos - blockStart));
+        src.read(srcOffset, dst, dstOffset, toRead);
+
+        dstOffset += toRead;
+        bytesRead += toRead;
+
+        stats.readTotal.addAndGet(toRead);
+      }
 
-      stats.readTotal.addAndGet(toRead);
+      metrics.count(Metrics.BYTES_READ, bytesRead);
+      if (bytesRead != length) {
+        throw new IOException("read is not fulfilled completely!" + toString()
+            + " offset=" + offset + " length=" + length + " bytesRead=" + bytesRead);
+      }
+    } finally {
+      for (CacheBlob cb : cacheBlocks.values()) {
+        cb.release();
+      }
     }
+  }
 
-    if (bytesRead != length) {
-      throw new IOException("read is not fulfilled completely!" + toString()
-          + " offset=" + offset + " length=" + length + " bytesRead=" + bytesRead);
+  /**
+   * Loads the blocks covering the given range of this input into the cache without reading them
+   */
+  public void prefetch(long offset, int length) throws IOException {
+    if (offset < 0 || length <= 0 || offset + length > length()) {
+      throw new IllegalArgumentException("Prefetch out of bounds: offset=" + offset + ",length=" + length
+          + ",fileLength=" + length() + ": " + toString());
     }
+    file.prefetch(off + offset, length);
   }
 
   @Override
@@ -170,11 +177,21 @@ public class S3IndexInput extends BufferedIndexInput {
 
   public static void logStats() {
     LOG.trace("Total bytes read from S3: " + stats.readFromS3.get()
+        + " in " + stats.requestsToS3.get() + " requests"
+        + " (" + stats.readCompressed.get() + " compressed bytes)"
+        + ", from disk: " + stats.readFromDisk.get()
+        + ", read ahead: " + stats.readahead.get()
         + ", total bytes read: " + stats.readTotal.get());
+    BlockSizePolicy.getInstance().logStats();
+    DiskBlockCache.getInstance().logStats();
   }
 
   public static void clearStats() {
     stats.readTotal.set(0);
     stats.readFromS3.set(0);
+    stats.requestsToS3.set(0);
+    stats.readFromDisk.set(0);
+    stats.readahead.set(0);
+    stats.readCompressed.set(0);
   }
 }
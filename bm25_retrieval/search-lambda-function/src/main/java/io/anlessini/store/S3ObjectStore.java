@@ -0,0 +1,90 @@
+package io.anlessini.store;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link ObjectStore} backed by Amazon S3
+ */
+public class S3ObjectStore implements ObjectStore {
+  private final AmazonS3 s3Client;
+
+  public S3ObjectStore(AmazonS3 s3Client) {
+    this.s3Client = s3Client;
+  }
+
+  /**
+   * Builds the default client, except that throttled range reads are not retried by the SDK: {@link S3BlockFetcher}
+   * retries them itself and backs off its request limit, which it could only do late if the SDK had already retried
+   * each throttled read several times. Other transient errors are still retried by the SDK.
+   */
+  public static AmazonS3 newClient() {
+    RetryPolicy.RetryCondition retryCondition = (request, exception, retriesAttempted) ->
+        !(request instanceof GetObjectRequest && ((GetObjectRequest) request).getRange() != null
+            && S3BlockFetcher.isThrottled(exception))
+            && PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(request, exception, retriesAttempted);
+    RetryPolicy retryPolicy = new RetryPolicy(retryCondition, PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY,
+        PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY, true);
+    return AmazonS3ClientBuilder.standard()
+        .withClientConfiguration(new ClientConfiguration().withRetryPolicy(retryPolicy))
+        .build();
+  }
+
+  @Override
+  public List<S3ObjectSummary> listObjects(String bucket, String prefix) {
+    List<S3ObjectSummary> summaries = new ArrayList<>();
+    String continuationToken = null;
+    ListObjectsV2Result result;
+    do {
+      ListObjectsV2Request req = new ListObjectsV2Request()
+          .withBucketName(bucket)
+          .withPrefix(prefix)
+          .withContinuationToken(continuationToken);
+      result = s3Client.listObjectsV2(req);
+      summaries.addAll(result.getObjectSummaries());
+      continuationToken = result.getNextContinuationToken();
+    } while (result.isTruncated());
+    return summaries;
+  }
+
+  @Override
+  public InputStream getObject(String bucket, String key, long offset, long length) throws IOException {
+    GetObjectRequest rangeObjectRequest = new GetObjectRequest(bucket, key)
+        .withRange(offset, offset + length - 1);
+    try {
+      return s3Client.getObject(rangeObjectRequest).getObjectContent();
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == 404) {
+        throw new NoSuchFileException(bucket + "/" + key);
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public InputStream getObject(String bucket, String key) throws IOException {
+    try {
+      return s3Client.getObject(bucket, key).getObjectContent();
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == 404) {
+        throw new NoSuchFileException(bucket + "/" + key);
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() {
+    s3Client.shutdown();
+  }
+}
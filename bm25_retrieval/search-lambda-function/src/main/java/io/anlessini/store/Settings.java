@@ -0,0 +1,62 @@
+package io.anlessini.store;
+
+import java.util.Locale;
+
+/**
+ * Tunables read from a system property, falling back to the environment variable of the same name
+ * (e.g. {@code -DS3_FETCH_PARALLELISM=8} or {@code S3_FETCH_PARALLELISM=8} in the Lambda configuration).
+ */
+public final class Settings {
+  private Settings() {
+  }
+
+  public static String getString(String name, String defaultValue) {
+    String value = System.getProperty(name);
+    if (value == null) {
+      value = System.getenv(name);
+    }
+    return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+  }
+
+  public static int getInt(String name, int defaultValue) {
+    String value = getString(name, null);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
+  public static double getDouble(String name, double defaultValue) {
+    String value = getString(name, null);
+    return value == null ? defaultValue : Double.parseDouble(value);
+  }
+
+  public static boolean getBoolean(String name, boolean defaultValue) {
+    String value = getString(name, null);
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+
+  /**
+   * Reads a byte size, accepting an optional k/m/g suffix (e.g. "512k", "64m")
+   */
+  public static long getBytes(String name, long defaultValue) {
+    String value = getString(name, null);
+    return value == null ? defaultValue : parseBytes(value);
+  }
+
+  public static long parseBytes(String value) {
+    String v = value.trim().toLowerCase(Locale.ROOT);
+    if (v.endsWith("b")) {
+      v = v.substring(0, v.length() - 1);
+    }
+    long multiplier = 1;
+    if (v.endsWith("k")) {
+      multiplier = 1024L;
+    } else if (v.endsWith("m")) {
+      multiplier = 1024L * 1024;
+    } else if (v.endsWith("g")) {
+      multiplier = 1024L * 1024 * 1024;
+    }
+    if (multiplier != 1) {
+      v = v.substring(0, v.length() - 1);
+    }
+    return Long.parseLong(v.trim()) * multiplier;
+  }
+}
@@ -0,0 +1,314 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * An {@link ObjectStore} over in-memory or local files that models the request latency, bandwidth
+ * and throttling behaviour of S3, so that cold and warm query latency can be measured offline.
+ */
+public class SimulatedObjectStore implements ObjectStore {
+  private static final Logger LOG = LogManager.getLogger(SimulatedObjectStore.class);
+  /**
+   * Bandwidth is metered in chunks of this many bytes
+   */
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private final NavigableMap<String, Blob> objects = new ConcurrentSkipListMap<>();
+
+  /**
+   * Time to first byte of each request
+   */
+  private long latencyMillis = 0;
+  private long latencyJitterMillis = 0;
+  /**
+   * Throughput of a single request, non-positive for unlimited
+   */
+  private long bytesPerSecond = 0;
+  /**
+   * Throughput shared by all requests (i.e. the network interface), non-positive for unlimited
+   */
+  private long aggregateBytesPerSecond = 0;
+  /**
+   * Probability of a request failing with 503 SlowDown
+   */
+  private double throttleRate = 0;
+  /**
+   * Requests beyond this many in one second fail with 503 SlowDown, non-positive for unlimited
+   */
+  private int maxRequestsPerSecond = 0;
+  private Random random = new Random(0);
+
+  private long aggregateClock = 0;
+  private long rateWindowStart = 0;
+  private int rateWindowRequests = 0;
+
+  public static class Stats {
+    public final AtomicLong requests = new AtomicLong();
+
+    public final AtomicLong throttled = new AtomicLong();
+
+    public final AtomicLong bytesServed = new AtomicLong();
+  }
+
+  public final Stats stats = new Stats();
+
+  public SimulatedObjectStore withLatency(long latencyMillis, long jitterMillis) {
+    this.latencyMillis = latencyMillis;
+    this.latencyJitterMillis = jitterMillis;
+    return this;
+  }
+
+  public SimulatedObjectStore withBandwidth(long bytesPerSecond, long aggregateBytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+    this.aggregateBytesPerSecond = aggregateBytesPerSecond;
+    return this;
+  }
+
+  public SimulatedObjectStore withThrottling(double throttleRate, int maxRequestsPerSecond) {
+    this.throttleRate = throttleRate;
+    this.maxRequestsPerSecond = maxRequestsPerSecond;
+    return this;
+  }
+
+  public SimulatedObjectStore withSeed(long seed) {
+    this.random = new Random(seed);
+    return this;
+  }
+
+  public void putObject(String bucket, String key, byte[] data) {
+    objects.put(bucket + "/" + key, new Blob() {
+      @Override
+      public long size() {
+        return data.length;
+      }
+
+      @Override
+      public InputStream open(long offset, long length) {
+        return new ByteArrayInputStream(data, Math.toIntExact(offset), Math.toIntExact(length));
+      }
+    });
+  }
+
+  public void putFile(String bucket, String key, Path file) throws IOException {
+    final long size = Files.size(file);
+    objects.put(bucket + "/" + key, new Blob() {
+      @Override
+      public long size() {
+        return size;
+      }
+
+      @Override
+      public InputStream open(long offset, long length) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        long skipped = in.skip(offset);
+        if (skipped != offset) {
+          in.close();
+          throw new EOFException("Unable to skip to " + offset + " in " + file);
+        }
+        return new BoundedInputStream(in, length);
+      }
+    });
+  }
+
+  /**
+   * Registers every regular file under {@code dir} as {@code prefix/<file name>}, like {@code aws s3 cp --recursive}
+   */
+  public void putDirectory(String bucket, String prefix, Path dir) throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        if (Files.isRegularFile(file)) {
+          putFile(bucket, prefix + "/" + file.getFileName().toString(), file);
+        }
+      }
+    }
+  }
+
+  @Override
+  public List<S3ObjectSummary> listObjects(String bucket, String prefix) throws IOException {
+    beginRequest(bucket, prefix);
+    List<S3ObjectSummary> summaries = new ArrayList<>();
+    String from = bucket + "/" + prefix;
+    for (Map.Entry<String, Blob> entry : objects.tailMap(from, true).entrySet()) {
+      if (!entry.getKey().startsWith(from)) break;
+      S3ObjectSummary summary = new S3ObjectSummary();
+      summary.setBucketName(bucket);
+      summary.setKey(entry.getKey().substring(bucket.length() + 1));
+      summary.setSize(entry.getValue().size());
+      summaries.add(summary);
+    }
+    return summaries;
+  }
+
+  @Override
+  public InputStream getObject(String bucket, String key, long offset, long length) throws IOException {
+    Blob blob = objects.get(bucket + "/" + key);
+    if (blob == null) {
+      throw new NoSuchFileException(bucket + "/" + key);
+    }
+    if (offset < 0 || length < 0 || (offset >= blob.size() && length > 0)) {
+      throw new EOFException("Range " + offset + ":" + length + " out of bounds for " + bucket + "/" + key
+          + " with size " + blob.size());
+    }
+    // like S3, a range past the end of the object returns the bytes up to the end
+    length = Math.min(length, blob.size() - offset);
+    beginRequest(bucket, key);
+    return new MeteredInputStream(blob.open(offset, length));
+  }
+
+  @Override
+  public InputStream getObject(String bucket, String key) throws IOException {
+    Blob blob = objects.get(bucket + "/" + key);
+    if (blob == null) {
+      throw new NoSuchFileException(bucket + "/" + key);
+    }
+    return getObject(bucket, key, 0, blob.size());
+  }
+
+  @Override
+  public void close() {
+    // no-op
+  }
+
+  /**
+   * Applies the throttling and first byte latency model to a new request
+   */
+  private void beginRequest(String bucket, String key) throws InterruptedIOException {
+    stats.requests.incrementAndGet();
+    long jitter;
+    boolean throttle;
+    synchronized (this) {
+      long now = System.nanoTime();
+      if (now - rateWindowStart >= TimeUnit.SECONDS.toNanos(1)) {
+        rateWindowStart = now;
+        rateWindowRequests = 0;
+      }
+      rateWindowRequests++;
+      throttle = (maxRequestsPerSecond > 0 && rateWindowRequests > maxRequestsPerSecond)
+          || (throttleRate > 0 && random.nextDouble() < throttleRate);
+      jitter = latencyJitterMillis > 0 ? (long) (random.nextDouble() * latencyJitterMillis) : 0;
+    }
+
+    sleep(TimeUnit.MILLISECONDS.toNanos(latencyMillis + jitter));
+    if (throttle) {
+      stats.throttled.incrementAndGet();
+      LOG.trace("[throttle][" + bucket + "/" + key + "]");
+      AmazonS3Exception e = new AmazonS3Exception("Please reduce your request rate.");
+      e.setStatusCode(503);
+      e.setErrorCode("SlowDown");
+      throw e;
+    }
+  }
+
+  /**
+   * Reserves a slot for {@code bytes} on the shared link and returns the time at which it completes
+   */
+  private synchronized long reserveAggregate(long bytes) {
+    long now = System.nanoTime();
+    long start = Math.max(now, aggregateClock);
+    aggregateClock = start + TimeUnit.SECONDS.toNanos(bytes) / aggregateBytesPerSecond;
+    return aggregateClock;
+  }
+
+  private static void sleep(long nanos) throws InterruptedIOException {
+    if (nanos <= 0) return;
+    try {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while simulating S3 request");
+    }
+  }
+
+  private interface Blob {
+    long size();
+
+    InputStream open(long offset, long length) throws IOException;
+  }
+
+  private static class BoundedInputStream extends FilterInputStream {
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long length) {
+      super(in);
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) return -1;
+      int b = super.read();
+      if (b >= 0) remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) return -1;
+      int n = super.read(b, off, (int) Math.min(len, remaining));
+      if (n > 0) remaining -= n;
+      return n;
+    }
+  }
+
+  /**
+   * Paces reads according to the per-request and aggregate bandwidth caps
+   */
+  private class MeteredInputStream extends FilterInputStream {
+    private final long startTime = System.nanoTime();
+    private long bytesRead = 0;
+
+    MeteredInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return n < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, Math.min(len, CHUNK_SIZE));
+      if (n <= 0) return n;
+
+      bytesRead += n;
+      stats.bytesServed.addAndGet(n);
+      long deadline = System.nanoTime();
+      if (bytesPerSecond > 0) {
+        deadline = Math.max(deadline, startTime + TimeUnit.SECONDS.toNanos(bytesRead) / bytesPerSecond);
+      }
+      if (aggregateBytesPerSecond > 0) {
+        deadline = Math.max(deadline, reserveAggregate(n));
+      }
+      sleep(deadline - System.nanoTime());
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      byte[] buf = new byte[CHUNK_SIZE];
+      long skipped = 0;
+      while (skipped < n) {
+        int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+        if (r < 0) break;
+        skipped += r;
+      }
+      return skipped;
+    }
+  }
+}
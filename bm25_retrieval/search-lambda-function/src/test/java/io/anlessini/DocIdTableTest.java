@@ -0,0 +1,100 @@
+package io.anlessini;
+
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class DocIdTableTest {
+  private static final byte[] COMMIT = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+
+  private static byte[] write(DocIdTable table, byte[] commitId) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    table.write(new OutputStreamDataOutput(bytes), commitId);
+    return bytes.toByteArray();
+  }
+
+  private static DocIdTable roundTrip(DocIdTable table) throws IOException {
+    return DocIdTable.read(new ByteArrayDataInput(write(table, COMMIT)), COMMIT);
+  }
+
+  private static DocIdTable build(String... ids) {
+    DocIdTable.Builder builder = new DocIdTable.Builder(ids.length);
+    for (int doc = 0; doc < ids.length; doc++) {
+      if (ids[doc] != null) builder.add(doc, ids[doc]);
+    }
+    return builder.build();
+  }
+
+  @Test
+  public void testNumericIds() throws Exception {
+    DocIdTable table = build("7", "0", "8841822", "3");
+    assertTrue(table instanceof DocIdTable.Ints);
+    assertEquals(16, table.ramBytesUsed());
+    DocIdTable read = roundTrip(table);
+    assertTrue(read instanceof DocIdTable.Ints);
+    for (DocIdTable t : new DocIdTable[]{table, read}) {
+      assertEquals(4, t.maxDoc());
+      assertEquals("7", t.get(0));
+      assertEquals("0", t.get(1));
+      assertEquals("8841822", t.get(2));
+      assertEquals("3", t.get(3));
+    }
+
+    DocIdTable longs = roundTrip(build("1", "123456789012345"));
+    assertTrue(longs instanceof DocIdTable.Longs);
+    assertEquals("123456789012345", longs.get(1));
+  }
+
+  @Test
+  public void testNonCanonicalNumbersKeptAsBytes() throws Exception {
+    // leading zeros would not survive printing the number back
+    DocIdTable table = build("1", "007", "2");
+    assertTrue(table instanceof DocIdTable.Bytes);
+    assertEquals("007", roundTrip(table).get(1));
+    assertTrue(build("1", "-2") instanceof DocIdTable.Bytes);
+  }
+
+  @Test
+  public void testStringIdsAndMissingDocs() throws Exception {
+    DocIdTable table = build("clueweb09-en0000-00-00000", null, "MARCO_D1555982", "\u00dcn\u00efcode", null);
+    assertTrue(table instanceof DocIdTable.Bytes);
+    DocIdTable read = roundTrip(table);
+    for (DocIdTable t : new DocIdTable[]{table, read}) {
+      assertEquals(5, t.maxDoc());
+      assertEquals("clueweb09-en0000-00-00000", t.get(0));
+      assertNull(t.get(1));
+      assertEquals("MARCO_D1555982", t.get(2));
+      assertEquals("\u00dcn\u00efcode", t.get(3));
+      assertNull(t.get(4));
+    }
+  }
+
+  @Test
+  public void testOtherCommit() throws Exception {
+    byte[] data = write(build("a", "b"), COMMIT);
+    byte[] otherCommit = COMMIT.clone();
+    otherCommit[15]++;
+    // a table of another build of an index with as many documents would return the wrong ids
+    assertNull(DocIdTable.read(new ByteArrayDataInput(data), otherCommit));
+    assertEquals("b", DocIdTable.read(new ByteArrayDataInput(data), COMMIT).get(1));
+    // without a commit to check against any table is accepted
+    assertEquals("b", DocIdTable.read(new ByteArrayDataInput(data)).get(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testOutOfOrder() {
+    DocIdTable.Builder builder = new DocIdTable.Builder(3);
+    builder.add(1, "a");
+    builder.add(0, "b");
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotATable() throws Exception {
+    DocIdTable.read(new ByteArrayDataInput(new byte[]{'{', '}', 0, 0, 0}));
+  }
+}
@@ -0,0 +1,133 @@
+package io.anlessini;
+
+import io.anlessini.store.S3BlockIndexInput;
+import io.anlessini.store.SimulatedObjectStore;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ImpactIndexTest {
+  private static final int MAX_DOC = 6;
+  private static final byte[] COMMIT_ID = "commit-1".getBytes(StandardCharsets.UTF_8);
+
+  private ImpactIndex index;
+
+  private static void add(ImpactIndex.Writer writer, String term, int[] docs, float[] scores) throws Exception {
+    int[] impacts = new int[docs.length];
+    for (int i = 0; i < docs.length; i++) {
+      impacts[i] = writer.impact(scores[i]);
+    }
+    writer.add(term.getBytes(StandardCharsets.UTF_8), docs, impacts, docs.length);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    ByteArrayOutputStream termIndex = new ByteArrayOutputStream();
+    ByteArrayOutputStream terms = new ByteArrayOutputStream();
+    ByteArrayOutputStream postings = new ByteArrayOutputStream();
+    try (ImpactIndex.Writer writer = new ImpactIndex.Writer(termIndex, terms, postings, 0.9f, 0.4f, 10f, 255, MAX_DOC,
+        COMMIT_ID)) {
+      // enough terms around the interesting ones that lookups go through several index entries
+      for (int i = 0; i < 100; i++) {
+        add(writer, String.format("a%03d", i), new int[]{i % MAX_DOC}, new float[]{1f});
+      }
+      add(writer, "apple", new int[]{0, 2, 4}, new float[]{10f, 5f, 5f});
+      add(writer, "banana", new int[]{1, 2}, new float[]{8f, 6f});
+      for (int i = 0; i < 100; i++) {
+        add(writer, String.format("t%03d", i), new int[]{i % MAX_DOC}, new float[]{1f});
+      }
+    }
+
+    SimulatedObjectStore store = new SimulatedObjectStore();
+    store.putObject("foo", "impact/" + ImpactIndex.TERMS, terms.toByteArray());
+    store.putObject("foo", "impact/" + ImpactIndex.POSTINGS, postings.toByteArray());
+    DocIdTable.Builder ids = new DocIdTable.Builder(MAX_DOC);
+    for (int doc = 0; doc < MAX_DOC; doc++) {
+      ids.add(doc, "d" + doc);
+    }
+    index = new ImpactIndex(new ByteArrayDataInput(termIndex.toByteArray()),
+        new S3BlockIndexInput(store, store.listObjects("foo", "impact/" + ImpactIndex.TERMS).get(0)),
+        new S3BlockIndexInput(store, store.listObjects("foo", "impact/" + ImpactIndex.POSTINGS).get(0)),
+        new TopHits(null, "id", ids.build()));
+  }
+
+  private static Map<String, Integer> query(String... terms) {
+    Map<String, Integer> query = new HashMap<>();
+    for (String term : terms) {
+      query.merge(term, 1, Integer::sum);
+    }
+    return query;
+  }
+
+  private static int[] docs(TopDocs topDocs) {
+    int[] docs = new int[topDocs.scoreDocs.length];
+    for (int i = 0; i < docs.length; i++) {
+      docs[i] = topDocs.scoreDocs[i].doc;
+    }
+    return docs;
+  }
+
+  @Test
+  public void testHeader() {
+    assertTrue(index.matches(0.9f, 0.4f));
+    assertFalse(index.matches(1.2f, 0.75f));
+    assertEquals(MAX_DOC, index.maxDoc);
+    assertEquals(255, index.maxImpact);
+  }
+
+  @Test
+  public void testCommitId() {
+    assertTrue(index.builtFrom(COMMIT_ID));
+    assertFalse(index.builtFrom("commit-2".getBytes(StandardCharsets.UTF_8)));
+    // a reader that is not a directory reader has no commit to compare
+    assertTrue(index.builtFrom(null));
+  }
+
+  @Test
+  public void testExhaustiveSearch() throws Exception {
+    TopDocs topDocs = index.search(query("apple", "banana", "missing"), 3, 0);
+    // doc 2 matches both terms, which adds up to more than doc 0's highest impact
+    assertArrayEquals(new int[]{2, 0, 1}, docs(topDocs));
+    assertEquals(4, topDocs.totalHits.value);
+    assertEquals(TotalHits.Relation.EQUAL_TO, topDocs.totalHits.relation);
+    assertEquals(10f, topDocs.scoreDocs[1].score, 10f / 255);
+
+    // repeating a term in the query weighs its impacts
+    assertArrayEquals(new int[]{0, 2, 4, 1}, docs(index.search(query("apple", "apple", "banana"), 10, 0)));
+  }
+
+  @Test
+  public void testTiesBrokenById() throws Exception {
+    // docs 2 and 4 tie on apple's lower impact
+    assertArrayEquals(new int[]{0, 2, 4}, docs(index.search(query("apple"), 3, 0)));
+    assertArrayEquals(new int[]{0, 2}, docs(index.search(query("apple"), 2, 0)));
+  }
+
+  @Test
+  public void testEarlyTermination() throws Exception {
+    // the budget is used up by apple's highest impact segment, the only segment processed
+    TopDocs topDocs = index.search(query("apple", "banana"), 3, 1);
+    assertArrayEquals(new int[]{0}, docs(topDocs));
+    assertEquals(TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO, topDocs.totalHits.relation);
+
+    // the accumulators were cleared for the next query
+    assertArrayEquals(new int[]{1, 2}, docs(index.search(query("banana"), 3, 0)));
+  }
+
+  @Test
+  public void testLookup() throws Exception {
+    assertEquals(0, index.search(query("aardvark"), 10, 0).scoreDocs.length);
+    assertEquals(0, index.search(query("zebra"), 10, 0).scoreDocs.length);
+    assertArrayEquals(new int[]{63 % MAX_DOC}, docs(index.search(query("a063"), 10, 0)));
+    assertArrayEquals(new int[]{99 % MAX_DOC}, docs(index.search(query("t099"), 10, 0)));
+  }
+}
@@ -0,0 +1,161 @@
+package io.anlessini;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ResultCacheTest {
+  private static List<SearchResponse.Hit> hits(int n) {
+    List<SearchResponse.Hit> hits = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      hits.add(new SearchResponse.Hit("doc" + i, (float) (n - i), i));
+    }
+    return hits;
+  }
+
+  @Test
+  public void testKeyIsTermMultiset() {
+    ResultCache.Key key = new ResultCache.Key(Arrays.asList("capit", "franc", "capit"), 0.9f, 0.4f);
+    assertEquals(key, new ResultCache.Key(Arrays.asList("capit", "capit", "franc"), 0.9f, 0.4f));
+    assertEquals(key.hashCode(), new ResultCache.Key(Arrays.asList("franc", "capit", "capit"), 0.9f, 0.4f).hashCode());
+    assertNotEquals(key, new ResultCache.Key(Arrays.asList("capit", "franc"), 0.9f, 0.4f));
+    assertNotEquals(key, new ResultCache.Key(Arrays.asList("capit", "franc", "capit"), 1.2f, 0.4f));
+    assertNotEquals(key, new ResultCache.Key(Arrays.asList("capit", "franc", "capit"), 0.9f, 0.75f));
+    assertNotEquals(key, new ResultCache.Key(Arrays.asList("capit", "franc", "capit"), 0.9f, 0.4f, true));
+  }
+
+  @Test
+  public void testFewerHitsServedFromLargerResult() throws Exception {
+    ResultCache cache = new ResultCache(1024 * 1024);
+    ResultCache.Key key = new ResultCache.Key(Arrays.asList("america"), 0.9f, 0.4f);
+    AtomicInteger searches = new AtomicInteger();
+    ResultCache.Search search = maxDocs -> {
+      searches.incrementAndGet();
+      return hits(maxDocs);
+    };
+
+    assertEquals(100, cache.get(key, 100, search).size());
+    List<SearchResponse.Hit> top10 = cache.get(key, 10, search);
+    assertEquals(1, searches.get());
+    assertEquals(10, top10.size());
+    assertEquals("doc9", top10.get(9).docid);
+
+    // asking for more hits than were cached searches again and replaces the entry
+    assertEquals(1000, cache.get(key, 1000, search).size());
+    assertEquals(2, searches.get());
+    assertEquals(1, cache.entries());
+    cache.get(key, 500, search);
+    assertEquals(2, searches.get());
+  }
+
+  @Test
+  public void testExhaustedResultCoversMoreHits() throws Exception {
+    ResultCache cache = new ResultCache(1024 * 1024);
+    ResultCache.Key key = new ResultCache.Key(Arrays.asList("rare"), 0.9f, 0.4f);
+    AtomicInteger searches = new AtomicInteger();
+    ResultCache.Search search = maxDocs -> {
+      searches.incrementAndGet();
+      return hits(Math.min(maxDocs, 3));
+    };
+    cache.get(key, 10, search);
+    // only three documents match, so no request can get more
+    assertEquals(3, cache.get(key, 1000, search).size());
+    assertEquals(1, searches.get());
+  }
+
+  @Test
+  public void testConcurrentMissesShareSearch() throws Exception {
+    ResultCache cache = new ResultCache(1024 * 1024);
+    ResultCache.Key key = new ResultCache.Key(Arrays.asList("slow"), 0.9f, 0.4f);
+    AtomicInteger searches = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ResultCache.Search search = maxDocs -> {
+      searches.incrementAndGet();
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+      return hits(maxDocs);
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Future<List<SearchResponse.Hit>> first = executor.submit(() -> cache.get(key, 10, search));
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      List<Future<List<SearchResponse.Hit>>> waiters = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        waiters.add(executor.submit(() -> cache.get(key, 5, search)));
+      }
+      release.countDown();
+      assertEquals(10, first.get(5, TimeUnit.SECONDS).size());
+      for (Future<List<SearchResponse.Hit>> waiter : waiters) {
+        assertEquals(5, waiter.get(5, TimeUnit.SECONDS).size());
+      }
+      assertEquals(1, searches.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    ResultCache.Key a = new ResultCache.Key(Arrays.asList("a"), 0.9f, 0.4f);
+    ResultCache.Key b = new ResultCache.Key(Arrays.asList("b"), 0.9f, 0.4f);
+    ResultCache.Key c = new ResultCache.Key(Arrays.asList("c"), 0.9f, 0.4f);
+    ResultCache.Search search = ResultCacheTest::hits;
+    ResultCache probe = new ResultCache(Long.MAX_VALUE);
+    probe.get(a, 100, search);
+    long entrySize = probe.size();
+
+    ResultCache cache = new ResultCache(entrySize * 2);
+    cache.get(a, 100, search);
+    cache.get(b, 100, search);
+    cache.get(a, 100, search);
+    cache.get(c, 100, search);
+    assertEquals(2, cache.entries());
+    assertTrue(cache.size() <= entrySize * 2);
+
+    // b was the least recently used
+    AtomicInteger searches = new AtomicInteger();
+    cache.get(a, 100, maxDocs -> {
+      searches.incrementAndGet();
+      return hits(maxDocs);
+    });
+    assertEquals(0, searches.get());
+    cache.get(b, 100, maxDocs -> {
+      searches.incrementAndGet();
+      return hits(maxDocs);
+    });
+    assertEquals(1, searches.get());
+  }
+
+  @Test
+  public void testFailedSearchIsNotCached() throws Exception {
+    ResultCache cache = new ResultCache(1024 * 1024);
+    ResultCache.Key key = new ResultCache.Key(Arrays.asList("fail"), 0.9f, 0.4f);
+    try {
+      cache.get(key, 10, maxDocs -> {
+        throw new IOException("boom");
+      });
+      fail();
+    } catch (IOException e) {
+      assertEquals("boom", e.getMessage());
+    }
+    assertEquals(0, cache.entries());
+    assertEquals(10, cache.get(key, 10, ResultCacheTest::hits).size());
+  }
+}
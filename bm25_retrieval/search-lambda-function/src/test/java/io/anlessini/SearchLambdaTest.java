@@ -0,0 +1,70 @@
+package io.anlessini;
+
+import io.anlessini.store.S3Directory;
+import io.anlessini.store.SimulatedObjectStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SearchLambdaTest {
+  private static final Path TEST_INDEX = Paths.get("src/test/resources/sample_index/trec/collection1/lucene-index.collection1.pos+docvectors+rawdocs+contents");
+
+  private SearchLambda lambda;
+
+  @Before
+  public void setUp() throws Exception {
+    SimulatedObjectStore store = new SimulatedObjectStore();
+    store.putDirectory("foo", "batch", TEST_INDEX);
+    lambda = new SearchLambda(new S3Directory(store, "foo", "batch"), 2, new ResultCache(0));
+  }
+
+  private static SearchRequest query(String query, int maxDocs, float k1, float b) {
+    return new SearchRequest(query, maxDocs, k1, b);
+  }
+
+  @Test
+  public void testBatchInQueryOrder() throws Exception {
+    SearchRequest request = new SearchRequest();
+    request.setQueries(Arrays.asList(
+        query("hopefully", 10, 0.9f, 0.4f),
+        query("text", 10, 0.9f, 0.4f),
+        query("right text", 1, 0.9f, 0.4f),
+        query("right text", 10, 0.9f, 0.4f),
+        query("right text", 10, 1.2f, 0.75f)));
+    SearchResponse response = lambda.handleRequest(request, null);
+
+    assertEquals(5, response.results.size());
+    assertEquals("AP-0001", response.results.get(0).hits.get(0).docid);
+    assertEquals("doc2", response.results.get(1).hits.get(0).docid);
+    // each query has its own number of hits and BM25 parameters
+    assertEquals(1, response.results.get(2).hits.size());
+    assertEquals(2, response.results.get(3).hits.size());
+    assertEquals(2, response.results.get(4).hits.size());
+    assertNotEquals(response.results.get(3).hits.get(0).score, response.results.get(4).hits.get(0).score, 0f);
+    for (SearchResponse result : response.results) {
+      assertNull(result.results);
+    }
+  }
+
+  @Test
+  public void testFailedQueryFailsBatch() throws Exception {
+    // a query without text cannot be analyzed
+    SearchRequest failing = new SearchRequest();
+    failing.setQuery(null);
+    try {
+      lambda.searchBatch(Arrays.asList(query("hopefully", 10, 0.9f, 0.4f), failing, query("text", 10, 0.9f, 0.4f)));
+      fail("expected the failed query to fail the batch");
+    } catch (IOException | RuntimeException e) {
+      // expected
+    }
+    // the search threads are still usable
+    SearchResponse response = lambda.searchBatch(Arrays.asList(query("text", 10, 0.9f, 0.4f)));
+    assertEquals("doc2", response.results.get(0).hits.get(0).docid);
+  }
+}
@@ -0,0 +1,148 @@
+package io.anlessini;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TopHitsTest {
+  private static TopHits topHits(String... ids) {
+    DocIdTable.Builder builder = new DocIdTable.Builder(ids.length);
+    for (int doc = 0; doc < ids.length; doc++) {
+      if (ids[doc] != null) builder.add(doc, ids[doc]);
+    }
+    return new TopHits(null, "id", builder.build());
+  }
+
+  private static int[] docs(ScoreDoc[] hits) {
+    int[] docs = new int[hits.length];
+    for (int i = 0; i < hits.length; i++) {
+      docs[i] = hits[i].doc;
+    }
+    return docs;
+  }
+
+  @Test
+  public void testTiesBrokenById() throws Exception {
+    // numeric ids compare as strings, as the sort on the id field does: "10" < "9"
+    TopHits topHits = topHits("9", "10", "3", "200", "1");
+    ScoreDoc[] hits = {
+        new ScoreDoc(0, 2f), new ScoreDoc(1, 2f), new ScoreDoc(2, 5f), new ScoreDoc(3, 1f), new ScoreDoc(4, 1f)
+    };
+    assertArrayEquals(new int[]{2, 1, 0, 4, 3}, docs(topHits.rank(hits, 10)));
+    // the ties at the cutoff are ranked before the cut
+    assertArrayEquals(new int[]{2, 1, 0, 4}, docs(topHits.rank(hits, 4)));
+  }
+
+  @Test
+  public void testUntiedHitsKeepScoreOrder() throws Exception {
+    TopHits topHits = topHits("c", "b", "a");
+    ScoreDoc[] hits = {new ScoreDoc(0, 1f), new ScoreDoc(1, 3f), new ScoreDoc(2, 2f)};
+    assertArrayEquals(new int[]{1, 2, 0}, docs(topHits.rank(hits, 3)));
+  }
+
+  @Test
+  public void testMissingIdsFirst() throws Exception {
+    TopHits topHits = topHits("b", null, "a");
+    ScoreDoc[] hits = {new ScoreDoc(0, 1f), new ScoreDoc(1, 1f), new ScoreDoc(2, 1f)};
+    assertArrayEquals(new int[]{1, 2, 0}, docs(topHits.rank(hits, 3)));
+  }
+
+  @Test
+  public void testCompareIdsAsUnsignedBytes() {
+    byte[] ascii = "z".getBytes(StandardCharsets.UTF_8);
+    byte[] accented = "\u00e9".getBytes(StandardCharsets.UTF_8);
+    assertTrue(TopHits.compareIds(ascii, accented) < 0);
+    assertTrue(TopHits.compareIds("ab".getBytes(StandardCharsets.UTF_8), ascii) < 0);
+    assertTrue(TopHits.compareIds("a".getBytes(StandardCharsets.UTF_8), "ab".getBytes(StandardCharsets.UTF_8)) < 0);
+    assertEquals(0, TopHits.compareIds(null, null));
+    assertTrue(TopHits.compareIds(null, ascii) < 0);
+  }
+
+  /**
+   * Writes an index in several segments whose documents share a handful of texts, so that many of them tie on score,
+   * with ids in an order unrelated to the document numbers
+   */
+  private static Directory tiedIndex() throws Exception {
+    String[] texts = {"a b", "a a b", "a c", "b c d", "a b c d e", "c"};
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 120; i++) {
+      ids.add("doc" + i);
+    }
+    Collections.shuffle(ids, new Random(42));
+
+    Directory directory = new ByteBuffersDirectory();
+    IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer())
+        .setSimilarity(new BM25Similarity(0.9f, 0.4f))
+        .setMergePolicy(NoMergePolicy.INSTANCE);
+    try (IndexWriter writer = new IndexWriter(directory, config)) {
+      for (int i = 0; i < ids.size(); i++) {
+        Document document = new Document();
+        document.add(new StringField("id", ids.get(i), Field.Store.YES));
+        document.add(new SortedDocValuesField("id", new BytesRef(ids.get(i))));
+        document.add(new TextField("contents", texts[i % texts.length], Field.Store.NO));
+        writer.addDocument(document);
+        if (i % 25 == 24) writer.commit();
+      }
+    }
+    return directory;
+  }
+
+  @Test
+  public void testSameRankingAsSortingByScoreAndId() throws Exception {
+    Sort sort = new Sort(SortField.FIELD_SCORE, new SortField("id", SortField.Type.STRING_VAL));
+    Query[] queries = {
+        new TermQuery(new Term("contents", "a")),
+        new BooleanQuery.Builder()
+            .add(new TermQuery(new Term("contents", "a")), BooleanClause.Occur.SHOULD)
+            .add(new TermQuery(new Term("contents", "b")), BooleanClause.Occur.SHOULD)
+            .build(),
+        new BooleanQuery.Builder()
+            .add(new TermQuery(new Term("contents", "c")), BooleanClause.Occur.SHOULD)
+            .add(new TermQuery(new Term("contents", "d")), BooleanClause.Occur.SHOULD)
+            .add(new TermQuery(new Term("contents", "e")), BooleanClause.Occur.SHOULD)
+            .build()
+    };
+    try (Directory directory = tiedIndex(); IndexReader reader = DirectoryReader.open(directory)) {
+      IndexSearcher searcher = new IndexSearcher(reader);
+      searcher.setSimilarity(new BM25Similarity(0.9f, 0.4f));
+      // with the ids in memory and read from doc values
+      for (TopHits topHits : new TopHits[]{
+          new TopHits(reader, "id", DocIdTable.fromDocValues(reader, "id")), new TopHits(reader, "id", null)}) {
+        for (Query query : queries) {
+          // cutoffs inside and between runs of tied documents, and beyond the number of matches
+          for (int n : new int[]{1, 3, 10, 20, 21, 37, 60, 200}) {
+            ScoreDoc[] expected = searcher.search(query, n, sort, true).scoreDocs;
+            ScoreDoc[] actual = topHits.search(searcher, query, n).scoreDocs;
+            assertArrayEquals(query + " top " + n, docs(expected), docs(actual));
+            for (int i = 0; i < expected.length; i++) {
+              assertEquals(expected[i].score, actual[i].score, 0f);
+            }
+          }
+        }
+      }
+    }
+  }
+}
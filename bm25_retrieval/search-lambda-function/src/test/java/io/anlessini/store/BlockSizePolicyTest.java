@@ -0,0 +1,64 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.anlessini.store.Summaries.summary;
+import static org.junit.Assert.*;
+
+public class BlockSizePolicyTest {
+  @Test
+  public void testExtensionSizes() {
+    Map<String, Integer> sizes = new HashMap<>(BlockSizePolicy.DEFAULT_EXTENSION_SIZES);
+    sizes.putAll(BlockSizePolicy.parseExtensionSizes("tim=64k, doc=16m"));
+    BlockSizePolicy policy = new BlockSizePolicy(sizes, 1024 * 1024);
+
+    assertEquals(1024 * 64, policy.blockSize(summary("bar/_0_Lucene50_0.tim", 1024 * 1024 * 100)));
+    assertEquals(1024 * 1024 * 16, policy.blockSize(summary("bar/_0_Lucene50_0.doc", 1024 * 1024 * 100)));
+    assertEquals(1024 * 256, policy.blockSize(summary("bar/_0.fdt", 1024 * 1024 * 100)));
+    assertEquals(S3FileBlock.DEFAULT_BLOCK_SIZE, policy.blockSize(summary("bar/unknown", 1024 * 1024 * 100)));
+    // small files are fetched whole
+    assertEquals(500, policy.blockSize(summary("bar/_0.tim", 500)));
+    assertEquals(1, policy.blockSize(summary("bar/segments_1", 0)));
+  }
+
+  @Test
+  public void testBlockSizeIsStable() {
+    BlockSizePolicy policy = new AdaptiveBlockSizePolicy(new HashMap<>(BlockSizePolicy.DEFAULT_EXTENSION_SIZES), 1024 * 1024);
+    S3ObjectSummary tim = summary("bar/_0_Lucene50_0.tim", 1024 * 1024 * 100);
+    int blockSize = policy.blockSize(tim);
+    for (int i = 0; i < 1000; i++) {
+      policy.recordRead(tim, 100, 1, blockSize);
+    }
+    assertEquals(blockSize, policy.blockSize(tim));
+  }
+
+  @Test
+  public void testAdaptiveShrink() {
+    BlockSizePolicy policy = new AdaptiveBlockSizePolicy(new HashMap<>(BlockSizePolicy.DEFAULT_EXTENSION_SIZES), 1024 * 1024);
+    S3ObjectSummary first = summary("bar/_0_Lucene50_0.tim", 1024 * 1024 * 100);
+    int blockSize = policy.blockSize(first);
+    for (int i = 0; i < 1000; i++) {
+      // 100 byte term lookups each missing a whole block
+      policy.recordRead(first, 100, 1, blockSize);
+    }
+    int next = policy.blockSize(summary("bar/_1_Lucene50_0.tim", 1024 * 1024 * 100));
+    assertTrue(next < blockSize);
+    assertTrue(next >= BlockSizePolicy.MIN_BLOCK_SIZE);
+  }
+
+  @Test
+  public void testAdaptiveGrow() {
+    BlockSizePolicy policy = new AdaptiveBlockSizePolicy(new HashMap<>(BlockSizePolicy.DEFAULT_EXTENSION_SIZES), 1024 * 1024);
+    S3ObjectSummary first = summary("bar/_0_Lucene50_0.doc", 1024 * 1024 * 100);
+    int blockSize = policy.blockSize(first);
+    for (int i = 0; i < 1000; i++) {
+      // sequential scans spanning two blocks
+      policy.recordRead(first, blockSize, 2, blockSize);
+    }
+    assertEquals(blockSize * 2, policy.blockSize(summary("bar/_1_Lucene50_0.doc", 1024 * 1024 * 100)));
+  }
+}
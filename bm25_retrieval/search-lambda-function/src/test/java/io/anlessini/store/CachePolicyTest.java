@@ -0,0 +1,92 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import io.anlessini.store.CachePolicy.CacheClass;
+import io.anlessini.store.CachePolicy.Priority;
+import io.anlessini.store.S3BlockCache.CacheBlob;
+import org.junit.Test;
+
+import static io.anlessini.store.Summaries.summary;
+import static org.junit.Assert.*;
+
+public class CachePolicyTest {
+  private static void load(S3BlockCache cache, S3FileBlock fb) {
+    CacheBlob cb = cache.getBlock(fb);
+    if (cb == null) {
+      assertNull(cache.beginLoad(fb));
+      cb = cache.completeLoad(fb, cache.allocator().allocate(fb.length()));
+    }
+    cb.release();
+  }
+
+  @Test
+  public void testParse() {
+    CachePolicy policy = CachePolicy.parse("tip, TIM=pinned:50%;fdt=low:64m;_*_Lucene80_0.dvd=pinned");
+    assertEquals(4, policy.classes().size());
+
+    CacheClass terms = policy.classOf("index/_0.tim");
+    assertEquals(Priority.PINNED, terms.priority);
+    assertSame(terms, policy.classOf("_1.tip"));
+    assertEquals(512, terms.budget(1024));
+
+    CacheClass storedFields = policy.classOf("index/_0.fdt");
+    assertEquals(Priority.LOW, storedFields.priority);
+    assertEquals(64 * 1024 * 1024, storedFields.budget(1024));
+
+    assertEquals(Priority.PINNED, policy.classOf("index/_3_Lucene80_0.dvd").priority);
+    // files no rule matches are of normal priority and may take up the whole cache
+    CacheClass other = policy.classOf("index/_3_Lucene80_0.dvm");
+    assertEquals(Priority.NORMAL, other.priority);
+    assertEquals(1024, other.budget(1024));
+    assertSame(other, policy.classOf("index/segments_1"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidPriority() {
+    CachePolicy.parse("tim=sticky");
+  }
+
+  @Test
+  public void testPinnedSurviveScan() {
+    CachePolicy policy = CachePolicy.parse("tim=pinned;fdt=low");
+    S3BlockCache cache = new S3BlockCache(8 * 1024, 4, BlockAllocator.HEAP, null, policy);
+    S3ObjectSummary terms = summary("bar/_0.tim", 4 * 1024);
+    S3ObjectSummary postings = summary("bar/_0.doc", 2 * 1024);
+    S3ObjectSummary storedFields = summary("bar/_0.fdt", 1024 * 1024);
+    for (int i = 0; i < 4; i++) {
+      load(cache, new S3FileBlock(terms, 1024, i));
+    }
+    for (int i = 0; i < 2; i++) {
+      load(cache, new S3FileBlock(postings, 1024, i));
+    }
+    // a scan of stored fields read once only ever displaces its own blocks
+    for (int i = 0; i < 1024; i++) {
+      load(cache, new S3FileBlock(storedFields, 1024, i));
+    }
+    for (int i = 0; i < 4; i++) {
+      assertTrue(cache.contains(new S3FileBlock(terms, 1024, i)));
+    }
+    for (int i = 0; i < 2; i++) {
+      assertTrue(cache.contains(new S3FileBlock(postings, 1024, i)));
+    }
+    assertTrue(cache.size() <= 8 * 1024);
+  }
+
+  @Test
+  public void testClassBudget() {
+    CachePolicy policy = CachePolicy.parse("tim=pinned:4k;fdt=low:2k");
+    S3BlockCache cache = new S3BlockCache(64 * 1024, 4, BlockAllocator.HEAP, null, policy);
+    CacheClass terms = policy.classOf("_0.tim");
+    CacheClass storedFields = policy.classOf("_0.fdt");
+    S3ObjectSummary termsFile = summary("bar/_1.tim", 1024 * 1024);
+    S3ObjectSummary storedFieldsFile = summary("bar/_1.fdt", 1024 * 1024);
+    for (int i = 0; i < 16; i++) {
+      load(cache, new S3FileBlock(termsFile, 1024, i));
+      load(cache, new S3FileBlock(storedFieldsFile, 1024, i));
+    }
+    // each class is held within its budget even though the cache has room to spare
+    assertEquals(4 * 1024, cache.classSize(terms));
+    assertEquals(2 * 1024, cache.classSize(storedFields));
+    assertEquals(6 * 1024, cache.size());
+  }
+}
@@ -0,0 +1,75 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import io.anlessini.store.S3BlockCache.CacheBlob;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static io.anlessini.store.Summaries.summary;
+import static org.junit.Assert.*;
+
+public class DiskBlockCacheTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testSpillAndReadBack() throws Exception {
+    DiskBlockCache disk = new DiskBlockCache(folder.newFolder().toPath(), 4096, 4096);
+    S3BlockCache cache = new S3BlockCache(2048, 1, BlockAllocator.HEAP, disk, CachePolicy.parse(""));
+    S3ObjectSummary summary = summary("bar/_0.tim", 4096);
+
+    byte[][] contents = new byte[4][];
+    Random random = new Random(42);
+    for (int i = 0; i < 4; i++) {
+      S3FileBlock fb = new S3FileBlock(summary, 1024, i);
+      contents[i] = new byte[1024];
+      random.nextBytes(contents[i]);
+      assertNull(cache.getBlock(fb));
+      assertNull(cache.beginLoad(fb));
+      cache.completeLoad(fb, ByteBuffer.wrap(contents[i].clone())).release();
+    }
+    disk.awaitSpills();
+
+    // two of the four blocks no longer fit in memory and were spilled
+    assertEquals(2048, disk.size());
+    int onDisk = 0;
+    for (int i = 0; i < 4; i++) {
+      S3FileBlock fb = new S3FileBlock(summary, 1024, i);
+      if (cache.contains(fb)) {
+        assertFalse(disk.contains(fb));
+        continue;
+      }
+      onDisk++;
+      ByteBuffer data = disk.read(fb);
+      assertNotNull(data);
+      byte[] read = new byte[1024];
+      data.get(read);
+      assertArrayEquals(contents[i], read);
+      BlockAllocator.DIRECT.free(data);
+    }
+    assertEquals(2, onDisk);
+  }
+
+  @Test
+  public void testEvictionWithinBudget() throws Exception {
+    DiskBlockCache disk = new DiskBlockCache(folder.newFolder().toPath(), 2048, 4096);
+    S3ObjectSummary summary = summary("bar/_1.doc", 8192);
+    for (int i = 0; i < 8; i++) {
+      S3FileBlock fb = new S3FileBlock(summary, 1024, i);
+      CacheBlob cb = new CacheBlob(fb, ByteBuffer.allocate(1024), BlockAllocator.HEAP, 1);
+      disk.spill(cb);
+      cb.release();
+      disk.awaitSpills();
+      assertTrue(disk.size() <= 2048);
+    }
+    // the least recently spilled blocks were evicted
+    assertFalse(disk.contains(new S3FileBlock(summary, 1024, 0)));
+    assertTrue(disk.contains(new S3FileBlock(summary, 1024, 7)));
+    assertEquals(6, disk.evicted.get());
+    assertNull(disk.read(new S3FileBlock(summary, 1024, 0)));
+  }
+}
@@ -0,0 +1,93 @@
+package io.anlessini.store;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class IndexManifestTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path index() throws Exception {
+    Path dir = folder.newFolder().toPath();
+    Files.write(dir.resolve("segments_1"), new byte[]{1, 2, 3, 4});
+    Files.write(dir.resolve("_0.tim"), new byte[1024 * 64]);
+    return dir;
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    IndexManifest manifest = IndexManifest.fromDirectory(index(), 1024);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    manifest.write(out);
+    IndexManifest read = IndexManifest.read(new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(2, read.files.size());
+    assertEquals("_0.tim", read.files.get(0).name);
+    assertEquals(1024 * 64, read.files.get(0).size);
+    assertNull(read.files.get(0).data);
+    assertEquals("segments_1", read.files.get(1).name);
+    assertArrayEquals(new byte[]{1, 2, 3, 4}, read.files.get(1).data);
+    // the MD5 of the contents, as S3 reports for a single part upload
+    assertEquals("08d6c05a21512a79a1dfeb9d2a8f262f", read.files.get(1).etag);
+  }
+
+  @Test
+  public void testMultipartEtag() throws Exception {
+    Path file = folder.newFolder().toPath().resolve("_0.doc");
+    Files.write(file, new byte[3000]);
+    // the MD5 of the three part MD5s, followed by the number of parts
+    assertEquals("25c7f4bfb8e228538872e476b049a73e-3", IndexManifest.etag(file, 1024));
+  }
+
+  @Test
+  public void testOpenFromManifest() throws Exception {
+    Path dir = index();
+    try (OutputStream out = Files.newOutputStream(dir.resolve(IndexManifest.NAME))) {
+      IndexManifest.fromDirectory(dir, 1024).write(out);
+    }
+    SimulatedObjectStore store = new SimulatedObjectStore();
+    store.putDirectory("foo", "manifest", dir);
+
+    S3Directory directory = new S3Directory(store, "foo", "manifest");
+    assertArrayEquals(new String[]{"_0.tim", "segments_1"}, directory.listAll());
+    assertEquals(1024 * 64, directory.fileLength("_0.tim"));
+    // a single GET of the manifest, no LIST
+    assertEquals(1, store.stats.requests.get());
+
+    // inlined files are read without going to the store
+    try (IndexInput in = directory.openInput("segments_1", IOContext.READONCE)) {
+      assertEquals(4, in.length());
+      assertEquals(1, in.readByte());
+    }
+    assertEquals(1, store.stats.requests.get());
+
+    try {
+      directory.fileLength("_1.tim");
+      fail("expected a missing file");
+    } catch (NoSuchFileException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testListWithoutManifest() throws Exception {
+    SimulatedObjectStore store = new SimulatedObjectStore();
+    store.putDirectory("foo", "list", index());
+
+    S3Directory directory = new S3Directory(store, "foo", "list");
+    assertEquals(4, directory.fileLength("segments_1"));
+    assertArrayEquals(new String[]{"_0.tim", "segments_1"}, directory.listAll());
+  }
+}
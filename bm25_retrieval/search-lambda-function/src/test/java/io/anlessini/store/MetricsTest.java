@@ -0,0 +1,84 @@
+package io.anlessini.store;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+  @Test
+  public void testHistogramBuckets() {
+    for (long value : new long[]{0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE}) {
+      int bucket = Metrics.Histogram.bucketOf(value);
+      long lowerBound = Metrics.Histogram.lowerBound(bucket);
+      assertTrue(lowerBound <= value);
+      // every value is reported within 1/16 of its true value
+      assertTrue(value - lowerBound <= value / Metrics.Histogram.SUB_BUCKETS);
+      if (bucket + 1 < Metrics.Histogram.BUCKETS) {
+        assertTrue(Metrics.Histogram.lowerBound(bucket + 1) > value);
+      }
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    Metrics.Histogram histogram = new Metrics.Histogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    assertEquals(1000, histogram.count());
+    assertEquals(1000, histogram.max());
+    assertEquals(500, histogram.valueAtPercentile(50), 500 / 16);
+    assertEquals(990, histogram.valueAtPercentile(99), 990 / 16);
+    assertEquals(1000, histogram.valueAtPercentile(100));
+  }
+
+  @Test
+  public void testEmbeddedMetricFormat() throws Exception {
+    Metrics metrics = new Metrics("Test", true);
+    metrics.count(Metrics.S3_BYTES, 4096);
+    metrics.count(Metrics.BYTES_READ, 1024);
+    metrics.cacheAccess("index/_0.tim", true);
+    metrics.cacheAccess("index/_0.tim", false);
+    metrics.cacheAccess("index/_0.doc", true);
+    metrics.record(Metrics.S3_GET_LATENCY, 20000);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    metrics.emit(new PrintStream(out, true), Collections.singletonMap("FunctionName", "search"));
+    String line = out.toString().trim();
+    assertFalse(line.contains("\n"));
+
+    JsonNode json = new ObjectMapper().readTree(line);
+    assertEquals("search", json.get("FunctionName").asText());
+    JsonNode directive = json.get("_aws").get("CloudWatchMetrics").get(0);
+    assertEquals("Test", directive.get("Namespace").asText());
+    assertEquals("FunctionName", directive.get("Dimensions").get(0).get(0).asText());
+    // every metric the directive declares is present on the root
+    for (JsonNode metric : directive.get("Metrics")) {
+      assertTrue(metric.get("Name").asText(), json.has(metric.get("Name").asText()));
+    }
+    assertEquals(4.0, json.get("ReadAmplification").asDouble(), 0);
+    assertEquals(2.0 / 3, json.get("CacheHitRatio").asDouble(), 1e-9);
+    assertEquals(0.5, json.get("CacheHitRatioByExtension").get("tim").asDouble(), 0);
+    assertEquals(1, json.get(Metrics.S3_GET_LATENCY).get("Count").asLong());
+    assertTrue(json.get(Metrics.S3_GET_LATENCY + "P99").asLong() <= 20000);
+
+    // the metrics are reset once they have been emitted
+    assertEquals(0, metrics.counter(Metrics.S3_BYTES));
+    assertEquals(0, metrics.histogram(Metrics.S3_GET_LATENCY).count());
+  }
+
+  @Test
+  public void testDisabled() {
+    Metrics metrics = new Metrics("Test", false);
+    metrics.count(Metrics.S3_BYTES, 4096);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    metrics.emit(new PrintStream(out, true), Collections.emptyMap());
+    assertEquals(0, out.size());
+  }
+}
@@ -0,0 +1,158 @@
+package io.anlessini.store;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PackedIndexTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] random(int size, long seed) {
+    byte[] data = new byte[size];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+
+  private Path index() throws Exception {
+    Path dir = folder.newFolder().toPath();
+    Files.write(dir.resolve("segments_1"), random(100, 0));
+    Files.write(dir.resolve("_0.si"), random(300, 1));
+    Files.write(dir.resolve("_0.fnm"), random(200, 2));
+    Files.write(dir.resolve("_0.tim"), random(1024 * 256, 3));
+
+    // the field infos were read more often than anything else
+    PrewarmManifest prewarm = new PrewarmManifest();
+    PrewarmManifest.Entry entry = new PrewarmManifest.Entry("_0.fnm", 0, 200);
+    entry.count = 10;
+    prewarm.entries.add(entry);
+    try (OutputStream out = Files.newOutputStream(dir.resolve(PrewarmManifest.NAME))) {
+      prewarm.write(out);
+    }
+    return dir;
+  }
+
+  @Test
+  public void testHeadOrder() throws Exception {
+    IndexManifest manifest = PackedIndex.write(index(), new ByteArrayOutputStream(), 1024);
+    assertEquals("_0.fnm", manifest.files.get(0).name);
+    assertEquals("segments_1", manifest.files.get(1).name);
+    assertEquals("_0.si", manifest.files.get(2).name);
+    assertEquals("_0.tim", manifest.files.get(manifest.files.size() - 1).name);
+    assertEquals(manifest.files.get(manifest.files.size() - 1).offset.longValue(), manifest.headSize);
+  }
+
+  private S3Directory directory(SimulatedObjectStore store, Path dir, String prefix) throws Exception {
+    ByteArrayOutputStream pack = new ByteArrayOutputStream();
+    PackedIndex.write(dir, pack, 1024);
+    store.putObject("foo", prefix + "/" + PackedIndex.NAME, pack.toByteArray());
+    return new S3Directory(store, "foo", prefix);
+  }
+
+  @Test
+  public void testOpenFromPack() throws Exception {
+    Path dir = index();
+    SimulatedObjectStore store = new SimulatedObjectStore();
+    S3Directory directory = directory(store, dir, "pack");
+
+    assertArrayEquals(new String[]{"_0.fnm", "_0.si", "_0.tim", PrewarmManifest.NAME, "segments_1"},
+        directory.listAll());
+    assertEquals(300, directory.fileLength("_0.si"));
+    // the header and the small files come with a single GET
+    assertEquals(1, store.stats.requests.get());
+    for (String name : new String[]{"segments_1", "_0.si", "_0.fnm"}) {
+      byte[] expected = Files.readAllBytes(dir.resolve(name));
+      try (IndexInput in = directory.openInput(name, IOContext.READONCE)) {
+        byte[] read = new byte[expected.length];
+        in.readBytes(read, 0, read.length);
+        assertArrayEquals(expected, read);
+      }
+    }
+    assertEquals(1, store.stats.requests.get());
+
+    // larger files are ranges of the pack
+    byte[] expected = Files.readAllBytes(dir.resolve("_0.tim"));
+    try (IndexInput in = directory.openInput("_0.tim", IOContext.READONCE)) {
+      assertEquals(expected.length, in.length());
+      byte[] read = new byte[expected.length];
+      in.readBytes(read, 0, read.length);
+      assertArrayEquals(expected, read);
+    }
+    assertTrue(store.stats.requests.get() > 1);
+  }
+
+  @Test
+  public void testHeadLargerThanFirstGet() throws Exception {
+    Path dir = index();
+    SimulatedObjectStore store = new SimulatedObjectStore();
+    ByteArrayOutputStream pack = new ByteArrayOutputStream();
+    PackedIndex.write(dir, pack, 1024);
+    store.putObject("foo", "small/" + PackedIndex.NAME, pack.toByteArray());
+
+    PackedIndex packed = PackedIndex.open(store, "foo", "small/" + PackedIndex.NAME, 16);
+    // one GET for the preamble, one for the rest of the header and one for the head
+    assertEquals(3, store.stats.requests.get());
+    assertEquals(ByteBuffer.wrap(Files.readAllBytes(dir.resolve("_0.si"))), packed.headFile("_0.si"));
+    assertNull(packed.headFile("_0.tim"));
+  }
+
+  @Test
+  public void testCompressedFiles() throws Exception {
+    Path dir = index();
+    // stored fields are read in 256 KB blocks, make a file of a few compressible chunks
+    byte[] expected = new byte[1024 * 256 * 3 + 1000];
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = (byte) (i % 251 < 16 ? i : 0);
+    }
+    Files.write(dir.resolve("_0.fdt"), expected);
+
+    SimulatedObjectStore store = new SimulatedObjectStore();
+    ByteArrayOutputStream pack = new ByteArrayOutputStream();
+    IndexManifest manifest = PackedIndex.write(dir, pack, 1024, Collections.singleton("fdt"));
+    IndexManifest.Entry fdt = manifest.files.stream().filter(entry -> entry.name.equals("_0.fdt")).findFirst().get();
+    assertEquals(1024 * 256, fdt.chunkSize.intValue());
+    assertEquals(5, fdt.chunks.length);
+    assertTrue(fdt.storedSize() < expected.length / 2);
+    // files that do not compress are stored as is
+    IndexManifest.Entry tim = manifest.files.stream().filter(entry -> entry.name.equals("_0.tim")).findFirst().get();
+    assertNull(tim.chunks);
+
+    store.putObject("foo", "compressed/" + PackedIndex.NAME, pack.toByteArray());
+    S3Directory directory = new S3Directory(store, "foo", "compressed");
+    long compressedBefore = S3IndexInput.stats.readCompressed.get();
+    long s3Before = S3IndexInput.stats.readFromS3.get();
+    try (IndexInput in = directory.openInput("_0.fdt", IOContext.READONCE)) {
+      assertEquals(expected.length, in.length());
+      // a read in the middle of the file only needs the chunks around it
+      in.seek(1024 * 256 * 2 - 10);
+      byte[] read = new byte[20];
+      in.readBytes(read, 0, read.length);
+      assertArrayEquals(Arrays.copyOfRange(expected, 1024 * 256 * 2 - 10, 1024 * 256 * 2 + 10), read);
+
+      in.seek(0);
+      read = new byte[expected.length];
+      in.readBytes(read, 0, read.length);
+      assertArrayEquals(expected, read);
+    }
+    long compressedRead = S3IndexInput.stats.readCompressed.get() - compressedBefore;
+    assertTrue(compressedRead > 0);
+    assertTrue(compressedRead <= fdt.storedSize());
+    // the bytes downloaded are counted as compressed, not by what they decompress to
+    long s3Read = S3IndexInput.stats.readFromS3.get() - s3Before;
+    assertTrue(s3Read > 0);
+    assertTrue(s3Read <= compressedRead);
+  }
+}
@@ -0,0 +1,88 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+public class PrewarmerTest {
+  private static PrewarmManifest.Entry entry(String file, long offset, int length, long count) {
+    PrewarmManifest.Entry entry = new PrewarmManifest.Entry(file, offset, length);
+    entry.count = count;
+    return entry;
+  }
+
+  @Test
+  public void testPrewarmWithinBudget() throws Exception {
+    SimulatedObjectStore store = new SimulatedObjectStore();
+    store.putObject("foo", "prewarm/_0.tim", new byte[1024 * 1024 * 2]);
+    store.putObject("foo", "prewarm/_0.tip", new byte[1024]);
+    S3Directory directory = new S3Directory(store, "foo", "prewarm");
+
+    PrewarmManifest manifest = new PrewarmManifest();
+    manifest.entries.add(entry("_0.tim", 0, 128 * 1024, 10));
+    manifest.entries.add(entry("_0.tip", 0, 1024, 8));
+    manifest.entries.add(entry("_9.tim", 0, 128 * 1024, 7)); // not in the index
+    manifest.entries.add(entry("_0.tim", 128 * 1024, 128 * 1024, 5));
+    manifest.entries.add(entry("_0.tim", 1024 * 1024, 128 * 1024, 1)); // over budget
+
+    Prewarmer prewarmer = new Prewarmer(256 * 1024 + 1024, 10000, 2);
+    assertEquals(256 * 1024 + 1024, prewarmer.prewarm(directory, manifest));
+    long requests = store.stats.requests.get();
+
+    // everything selected is cached now
+    prewarmer.prewarm(directory, manifest);
+    assertEquals(requests, store.stats.requests.get());
+
+    // the range over budget was not loaded
+    directory.file("_0.tim").prefetch(1024 * 1024, 1024);
+    assertEquals(requests + 1, store.stats.requests.get());
+  }
+
+  @Test
+  public void testRangesOfOneFileLoadInParallel() throws Exception {
+    SimulatedObjectStore store = new SimulatedObjectStore().withLatency(200, 0);
+    store.putObject("foo", "parallel/_0.tim", new byte[1024 * 1024 * 2]);
+    S3Directory directory = new S3Directory(store, "foo", "parallel");
+
+    // ranges in separate, non-adjacent blocks, so each takes its own request
+    PrewarmManifest manifest = new PrewarmManifest();
+    for (int i = 0; i < 6; i++) {
+      manifest.entries.add(entry("_0.tim", i * 256 * 1024, 1024, 10 - i));
+    }
+
+    directory.listAll();
+    long requests = store.stats.requests.get();
+    long start = System.currentTimeMillis();
+    assertEquals(6 * 1024, new Prewarmer(1024 * 1024, 10000, 1).prewarm(directory, manifest));
+    assertEquals(requests + 6, store.stats.requests.get());
+    // one at a time would take at least 6 x 200 ms
+    assertTrue(System.currentTimeMillis() - start < 1000);
+  }
+
+  @Test
+  public void testRecordManifest() throws Exception {
+    SimulatedObjectStore store = new SimulatedObjectStore();
+    store.putObject("foo", "record/_0.tip", new byte[1024]);
+    S3ObjectSummary summary = store.listObjects("foo", "record/").get(0);
+
+    BlockAccessRecorder recorder = BlockAccessRecorder.start();
+    try {
+      BlockAccessRecorder.record(new S3FileBlock(summary, 0));
+      BlockAccessRecorder.record(new S3FileBlock(summary, 0));
+    } finally {
+      BlockAccessRecorder.stop();
+    }
+    BlockAccessRecorder.record(new S3FileBlock(summary, 0));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    recorder.toManifest().write(out);
+    PrewarmManifest manifest = PrewarmManifest.read(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(1, manifest.entries.size());
+    assertEquals(entry("_0.tip", 0, 1024, 2), manifest.entries.get(0));
+    assertEquals(2, manifest.entries.get(0).count);
+  }
+}
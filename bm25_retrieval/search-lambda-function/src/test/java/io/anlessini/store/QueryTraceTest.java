@@ -0,0 +1,110 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class QueryTraceTest {
+  private static S3File file(String key, int length) throws Exception {
+    byte[] data = new byte[length];
+    new Random(0).nextBytes(data);
+    SimulatedObjectStore store = new SimulatedObjectStore();
+    store.putObject("foo", key, data);
+    S3ObjectSummary summary = store.listObjects("foo", key).get(0);
+    return new S3File(store, summary);
+  }
+
+  private static void readAll(S3File file) throws Exception {
+    try (S3BlockIndexInput in = new S3BlockIndexInput(file)) {
+      byte[] read = new byte[(int) in.length()];
+      in.readBytes(read, 0, read.length);
+    }
+  }
+
+  @Test
+  public void testBlocksOfTracedThread() throws Exception {
+    S3File file = file("trace/_0.tim", 1024 * 1024 * 2);
+    int blocks = (int) (file.length() / file.blockSize);
+
+    QueryTrace trace = QueryTrace.start();
+    try {
+      assertSame(trace, QueryTrace.current());
+      readAll(file);
+      readAll(file);
+    } finally {
+      trace.stop();
+    }
+    assertNull(QueryTrace.current());
+
+    assertEquals(blocks, trace.blocks.size());
+    long bytes = 0;
+    for (QueryTrace.BlockAccess access : trace.blocks) {
+      assertEquals("trace/_0.tim", access.file);
+      assertNotEquals(QueryTrace.Source.DISK, access.source);
+      // the second read touches every block again
+      assertEquals(2, access.accesses);
+      bytes += access.length;
+    }
+    assertEquals(file.length(), bytes);
+    // later blocks may have been read ahead in the background, the first one was downloaded for the query
+    QueryTrace.BlockAccess first = trace.blocks.get(0);
+    assertEquals(0, first.offset);
+    assertEquals(QueryTrace.Source.S3, first.source);
+    assertEquals(first.length, trace.bytes(QueryTrace.Source.S3), first.length * blocks);
+
+    // the rest of the blocks may still be arriving, once they have every download the query started is timed
+    trace.awaitFetches();
+    assertTrue(first.fetchMillis >= 0);
+  }
+
+  @Test
+  public void testUntracedReads() throws Exception {
+    S3File file = file("trace/_1.tim", 1024 * 512);
+    QueryTrace trace = QueryTrace.start();
+    trace.stop();
+    readAll(file);
+    assertTrue(trace.blocks.isEmpty());
+
+    trace = QueryTrace.start();
+    try {
+      long start = System.nanoTime();
+      readAll(file);
+      trace.phase("read", start);
+    } finally {
+      trace.stop();
+    }
+    // the blocks were loaded before the trace started
+    assertNotEquals(QueryTrace.Source.S3, trace.blocks.get(0).source);
+    assertTrue(trace.phases.get("read") >= 0);
+  }
+
+  @Test
+  public void testWrappedTasks() throws Exception {
+    S3File file = file("trace/_2.tim", 1024 * 512);
+    QueryTrace trace = QueryTrace.start();
+    Thread worker;
+    try {
+      worker = new Thread(QueryTrace.wrap(() -> {
+        assertSame(trace, QueryTrace.current());
+        try {
+          readAll(file);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }));
+      worker.start();
+      worker.join();
+    } finally {
+      trace.stop();
+    }
+    // the blocks read by the other thread were recorded in the trace of the thread that handed it the task
+    assertFalse(trace.blocks.isEmpty());
+    assertEquals(0, trace.blocks.get(0).offset);
+
+    Runnable task = () -> {};
+    assertSame(task, QueryTrace.wrap(task));
+  }
+}
@@ -0,0 +1,65 @@
+package io.anlessini.store;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReadaheadTest {
+  private static final int BLOCK_SIZE = 1024;
+
+  @Test
+  public void testWindowGrowsOnSequentialReads() {
+    Readahead readahead = new Readahead(BLOCK_SIZE, 8 * BLOCK_SIZE);
+
+    assertEquals(0, readahead.onRead(0, 1024));
+    // the pattern is established on the second sequential read
+    assertEquals(0, readahead.onRead(1024, 2048));
+    assertEquals(1, readahead.onRead(2048, 3072));
+    assertEquals(3, readahead.start());
+
+    int previousWindow = readahead.window();
+    long pos = 3072;
+    long prefetchedUntil = 4;
+    for (int i = 0; i < 16; i++) {
+      int blocks = readahead.onRead(pos, pos + 1024);
+      if (blocks > 0) {
+        // prefetches pick up where the previous one ended
+        assertEquals(prefetchedUntil, readahead.start());
+        prefetchedUntil += blocks;
+      }
+      assertTrue(readahead.window() >= previousWindow);
+      previousWindow = readahead.window();
+      pos += 1024;
+    }
+    assertEquals(8, readahead.window());
+    // never more than the window ahead of the reader
+    assertTrue(prefetchedUntil <= pos / BLOCK_SIZE + 8);
+  }
+
+  @Test
+  public void testWindowShrinksOnRandomReads() {
+    Readahead readahead = new Readahead(BLOCK_SIZE, 64 * BLOCK_SIZE);
+    long pos = 0;
+    for (int i = 0; i < 8; i++) {
+      readahead.onRead(pos, pos + 1024);
+      pos += 1024;
+    }
+    int window = readahead.window();
+    assertTrue(window > 1);
+
+    assertEquals(0, readahead.onRead(1024 * 1024, 1024 * 1024 + 10));
+    assertEquals(window / 2, readahead.window());
+    // a backwards seek is not sequential either
+    assertEquals(0, readahead.onRead(0, 10));
+    assertEquals(window / 4, readahead.window());
+  }
+
+  @Test
+  public void testSmallSkipsAreSequential() {
+    Readahead readahead = new Readahead(BLOCK_SIZE, 8 * BLOCK_SIZE);
+    assertEquals(0, readahead.onRead(0, 100));
+    assertEquals(0, readahead.onRead(200, 300));
+    assertEquals(1, readahead.onRead(400, 500));
+    assertEquals(1, readahead.start());
+  }
+}
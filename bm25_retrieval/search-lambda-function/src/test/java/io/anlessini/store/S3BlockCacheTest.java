@@ -0,0 +1,240 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import io.anlessini.store.S3BlockCache.CacheBlob;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.anlessini.store.Summaries.summary;
+import static org.junit.Assert.*;
+
+public class S3BlockCacheTest {
+  @Test
+  public void testSingleFlight() throws Exception {
+    S3BlockCache cache = S3BlockCache.getInstance();
+    S3FileBlock fb = new S3FileBlock(summary("bar/_0.tim", 1024), 0);
+
+    assertNull(cache.getBlock(fb));
+    assertNull(cache.beginLoad(fb));
+    CompletableFuture<CacheBlob> waiter = cache.beginLoad(fb);
+    assertNotNull(waiter);
+    assertFalse(waiter.isDone());
+
+    ByteBuffer data = cache.allocator().allocate(1024);
+    CacheBlob owned = cache.completeLoad(fb, data);
+    CacheBlob awaited = cache.awaitLoad(fb, waiter);
+    assertSame(owned, awaited);
+    owned.release();
+    awaited.release();
+
+    CacheBlob hit = cache.getBlock(fb);
+    assertSame(owned, hit);
+    hit.release();
+
+    // the block is cached now, so a late claim is served without a new download
+    CompletableFuture<CacheBlob> late = cache.beginLoad(fb);
+    assertNotNull(late);
+    assertSame(owned, late.get());
+  }
+
+  @Test
+  public void testFailedLoad() throws Exception {
+    S3BlockCache cache = S3BlockCache.getInstance();
+    S3FileBlock fb = new S3FileBlock(summary("bar/_1.tim", 1024), 0);
+
+    assertNull(cache.beginLoad(fb));
+    CompletableFuture<CacheBlob> waiter = cache.beginLoad(fb);
+    cache.failLoad(fb, new IOException("boom"));
+    try {
+      cache.awaitLoad(fb, waiter);
+      fail("expected the owner's failure to propagate");
+    } catch (IOException e) {
+      assertEquals("boom", e.getCause().getMessage());
+    }
+    // a failed download is not cached, the next reader retries it
+    assertNull(cache.beginLoad(fb));
+    cache.failLoad(fb, new IOException("boom"));
+  }
+
+  @Test
+  public void testReleaseAfterLastReader() {
+    AtomicInteger freed = new AtomicInteger();
+    BlockAllocator allocator = new BlockAllocator() {
+      @Override
+      public ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size);
+      }
+
+      @Override
+      public void free(ByteBuffer buffer) {
+        freed.incrementAndGet();
+      }
+
+      @Override
+      public boolean isOffHeap() {
+        return true;
+      }
+    };
+    S3FileBlock fb = new S3FileBlock(summary("bar/_2.tim", 1024), 0);
+    CacheBlob cb = new CacheBlob(fb, allocator.allocate(1024), allocator, 1);
+
+    assertTrue(cb.tryRetain());
+    cb.release(); // evicted by the cache
+    assertEquals(0, freed.get());
+    cb.release(); // the reader is done
+    assertEquals(1, freed.get());
+    assertFalse(cb.tryRetain());
+  }
+
+  private static CacheBlob load(S3BlockCache cache, S3FileBlock fb) {
+    CacheBlob cb = cache.getBlock(fb);
+    if (cb == null) {
+      assertNull(cache.beginLoad(fb));
+      cb = cache.completeLoad(fb, cache.allocator().allocate(fb.length()));
+    }
+    return cb;
+  }
+
+  @Test
+  public void testEvictionWithinBudget() {
+    S3BlockCache cache = new S3BlockCache(8 * 1024, 4, BlockAllocator.HEAP);
+    // blocks of small files are evictable too
+    S3ObjectSummary summary = summary("bar/_3.tim", 64 * 1024);
+    for (int i = 0; i < 64; i++) {
+      load(cache, new S3FileBlock(summary, 1024, i)).release();
+      assertTrue(cache.size() <= 8 * 1024);
+    }
+  }
+
+  @Test
+  public void testPinnedBlocksCountAgainstSize() {
+    S3BlockCache cache = new S3BlockCache(8 * 1024, 4, BlockAllocator.HEAP);
+    S3ObjectSummary summary = summary("bar/_8.doc", 64 * 1024);
+    // a reader holds on to the first block while a scan evicts it
+    CacheBlob pinned = load(cache, new S3FileBlock(summary, 1024, 0));
+    for (int i = 1; i < 64; i++) {
+      load(cache, new S3FileBlock(summary, 1024, i)).release();
+      assertTrue(cache.size() + cache.pinnedSize() <= 8 * 1024);
+    }
+    assertFalse(cache.contains(new S3FileBlock(summary, 1024, 0)));
+    assertEquals(1024, cache.pinnedSize());
+    assertTrue(cache.size() <= 7 * 1024);
+
+    pinned.release();
+    assertEquals(0, cache.pinnedSize());
+  }
+
+  @Test
+  public void testFrequentBlocksSurviveScan() {
+    S3BlockCache cache = new S3BlockCache(8 * 1024, 4, BlockAllocator.HEAP);
+    S3ObjectSummary hot = summary("bar/_4.tim", 4 * 1024);
+    S3ObjectSummary scan = summary("bar/_4.doc", 1024 * 1024);
+    for (int round = 0; round < 4; round++) {
+      for (int i = 0; i < 4; i++) {
+        load(cache, new S3FileBlock(hot, 1024, i)).release();
+      }
+    }
+    for (int i = 0; i < 1024; i++) {
+      load(cache, new S3FileBlock(scan, 1024, i)).release();
+    }
+    for (int i = 0; i < 4; i++) {
+      assertTrue(cache.contains(new S3FileBlock(hot, 1024, i)));
+    }
+    assertTrue(cache.size() <= 8 * 1024);
+  }
+
+  private static CacheBlob fill(S3BlockCache cache, S3FileBlock fb, boolean readahead) {
+    assertNull(cache.beginLoad(fb));
+    CacheBlob cb = cache.beginFill(fb, cache.allocator().allocate(fb.length()), readahead);
+    cb.fill(0, fb.length());
+    cache.finishFill(cb);
+    return cb;
+  }
+
+  @Test
+  public void testReadaheadSurvivesAdmission() {
+    S3BlockCache cache = new S3BlockCache(8 * 1024, 4, BlockAllocator.HEAP);
+    S3ObjectSummary summary = summary("bar/_7.doc", 64 * 1024);
+    // a full cache of blocks that were each requested once
+    for (int i = 0; i < 8; i++) {
+      load(cache, new S3FileBlock(summary, 1024, i)).release();
+    }
+
+    // a block nobody has requested yet loses to any of them
+    S3FileBlock unrequested = new S3FileBlock(summary, 1024, 8);
+    fill(cache, unrequested, false).release();
+    assertFalse(cache.contains(unrequested));
+
+    // unless it was loaded ahead of a sequential reader
+    S3FileBlock readahead = new S3FileBlock(summary, 1024, 9);
+    fill(cache, readahead, true).release();
+    assertTrue(cache.contains(readahead));
+    assertTrue(cache.size() <= 8 * 1024);
+    CacheBlob hit = cache.getBlock(readahead);
+    assertNotNull(hit);
+    hit.release();
+  }
+
+  @Test
+  public void testFillingBlock() throws Exception {
+    S3BlockCache cache = new S3BlockCache(1024 * 1024, 4, BlockAllocator.HEAP);
+    S3FileBlock fb = new S3FileBlock(summary("bar/_5.tim", 1024), 0);
+
+    assertNull(cache.beginLoad(fb));
+    CompletableFuture<CacheBlob> waiter = cache.beginLoad(fb);
+    CacheBlob owned = cache.beginFill(fb, cache.allocator().allocate(1024));
+    // waiters get the block before it has arrived, but it is not cached yet
+    CacheBlob awaited = cache.awaitLoad(fb, waiter);
+    assertSame(owned, awaited);
+    assertFalse(cache.contains(fb));
+    assertEquals(0, awaited.filled());
+
+    CompletableFuture<Integer> reader = CompletableFuture.supplyAsync(() -> {
+      try {
+        return awaited.awaitFilled(512);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    // ranges that arrive out of order only count once everything before them has arrived
+    owned.fill(256, 768);
+    assertEquals(0, owned.filled());
+    assertFalse(reader.isDone());
+    owned.fill(0, 256);
+    assertEquals(768, (int) reader.get());
+
+    owned.fill(768, 1024);
+    cache.finishFill(owned);
+    assertTrue(cache.contains(fb));
+    owned.release();
+    awaited.release();
+  }
+
+  @Test
+  public void testAbortedFill() throws Exception {
+    S3BlockCache cache = new S3BlockCache(1024 * 1024, 4, BlockAllocator.HEAP);
+    S3FileBlock fb = new S3FileBlock(summary("bar/_6.tim", 1024), 0);
+
+    assertNull(cache.beginLoad(fb));
+    CacheBlob owned = cache.beginFill(fb, cache.allocator().allocate(1024));
+    owned.fill(0, 100);
+    assertEquals(100, owned.awaitFilled(10));
+
+    cache.abortFill(owned, new IOException("boom"));
+    try {
+      owned.awaitFilled(200);
+      fail("expected the download's failure to propagate");
+    } catch (IOException e) {
+      assertEquals("boom", e.getCause().getMessage());
+    }
+    owned.release();
+    assertFalse(cache.contains(fb));
+    // the next reader downloads it again
+    assertNull(cache.beginLoad(fb));
+    cache.failLoad(fb, new IOException("boom"));
+  }
+}
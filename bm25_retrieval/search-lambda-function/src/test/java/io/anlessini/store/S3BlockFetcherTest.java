@@ -0,0 +1,182 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class S3BlockFetcherTest {
+
+  @Test
+  public void testFetchInParts() throws Exception {
+    byte[] data = new byte[1024 * 1024 + 17];
+    new Random(42).nextBytes(data);
+    SimulatedObjectStore store = new SimulatedObjectStore();
+    store.putObject("foo", "bar/_0.doc", data);
+    S3ObjectSummary summary = store.listObjects("foo", "bar/").get(0);
+
+    S3BlockFetcher fetcher = new S3BlockFetcher(100 * 1024, 4);
+    S3FileBlock block = new S3FileBlock(summary, 0);
+    for (BlockAllocator allocator : new BlockAllocator[]{BlockAllocator.HEAP, BlockAllocator.DIRECT}) {
+      Map<S3FileBlock, ByteBuffer> fetched = fetcher.fetch(store, summary, S3FileBlock.of(summary, 0, data.length), allocator);
+
+      assertEquals(1, fetched.size());
+      ByteBuffer buffer = fetched.get(block);
+      assertEquals(allocator.isOffHeap(), buffer.isDirect());
+      byte[] read = new byte[data.length];
+      buffer.duplicate().get(read);
+      assertArrayEquals(data, read);
+      allocator.free(buffer);
+    }
+    // 1 MB + 17 bytes in 100 KB parts, twice
+    assertEquals(22, store.stats.requests.get() - 1);
+  }
+
+  private static S3ObjectSummary put(SimulatedObjectStore store, String key, int length) throws Exception {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    store.putObject("foo", key, data);
+    return store.listObjects("foo", key).get(0);
+  }
+
+  private static Map<S3FileBlock, ByteBuffer> buffers(S3ObjectSummary summary) {
+    Map<S3FileBlock, ByteBuffer> data = new HashMap<>();
+    for (S3FileBlock fb : S3FileBlock.of(summary, 0, (int) summary.getSize())) {
+      data.put(fb, ByteBuffer.allocate(fb.length()));
+    }
+    return data;
+  }
+
+  @Test
+  public void testRetryThrottled() throws Exception {
+    SimulatedObjectStore store = new SimulatedObjectStore().withSeed(7).withThrottling(0.3, 0);
+    S3ObjectSummary summary = put(store, "bar/_1.doc", 1024 * 1024);
+    byte[] expected = new byte[1024 * 1024];
+    new Random(expected.length).nextBytes(expected);
+
+    S3BlockFetcher fetcher = new S3BlockFetcher(32 * 1024, 8, S3BlockFetcher.DEFAULT_MAX_INFLIGHT_BYTES, 20);
+    Map<S3FileBlock, ByteBuffer> fetched = fetcher.fetch(store, summary, S3FileBlock.of(summary, 0, expected.length),
+        BlockAllocator.HEAP);
+    byte[] read = new byte[expected.length];
+    fetched.values().iterator().next().duplicate().get(read);
+    assertArrayEquals(expected, read);
+    assertTrue(store.stats.throttled.get() > 0);
+    // every 503 was retried, and the concurrency backed off
+    assertEquals(32 + store.stats.throttled.get(), store.stats.requests.get() - 1);
+    assertTrue(fetcher.limit() < 8);
+  }
+
+  @Test
+  public void testDemandBeforePrefetch() throws Exception {
+    SimulatedObjectStore store = new SimulatedObjectStore().withLatency(20, 0);
+    S3ObjectSummary prewarmed = put(store, "bar/_2.doc", 16 * 1024);
+    S3ObjectSummary queried = put(store, "bar/_2.tim", 1024);
+
+    S3BlockFetcher fetcher = new S3BlockFetcher(1024, 1);
+    CompletableFuture<Void> prefetch = fetcher.fetchAsync(store, prewarmed, buffers(prewarmed), null,
+        S3BlockFetcher.Priority.PREFETCH);
+    CompletableFuture<Void> demand = fetcher.fetchAsync(store, queried, buffers(queried), null,
+        S3BlockFetcher.Priority.DEMAND);
+    // the read a query waits on overtakes the 16 queued prefetch requests
+    demand.get();
+    assertFalse(prefetch.isDone());
+    prefetch.get();
+  }
+
+  @Test
+  public void testInflightBytes() throws Exception {
+    SimulatedObjectStore store = new SimulatedObjectStore().withLatency(50, 0);
+    S3ObjectSummary summary = put(store, "bar/_3.doc", 4 * 1024);
+
+    // four requests allowed, but only one part's worth of bytes
+    S3BlockFetcher fetcher = new S3BlockFetcher(1024, 4, 1024, 0);
+    long start = System.nanoTime();
+    fetcher.fetchAsync(store, summary, buffers(summary), null, S3BlockFetcher.Priority.DEMAND).get();
+    assertTrue(System.nanoTime() - start >= 4 * 50 * 1000 * 1000L);
+  }
+
+  /**
+   * A store whose first request for the last kilobyte of the object stalls, as requests in the tail of S3's latency do
+   */
+  private static ObjectStore stallLastKilobyte(SimulatedObjectStore simulated, AtomicBoolean stalled) {
+    return new ObjectStore() {
+      @Override
+      public List<S3ObjectSummary> listObjects(String bucket, String prefix) throws IOException {
+        return simulated.listObjects(bucket, prefix);
+      }
+
+      @Override
+      public InputStream getObject(String bucket, String key, long offset, long length) throws IOException {
+        if (offset == 63 * 1024 && stalled.compareAndSet(false, true)) {
+          try {
+            Thread.sleep(2000);
+          } catch (InterruptedException e) {
+            throw new IOException(e);
+          }
+        }
+        return simulated.getObject(bucket, key, offset, length);
+      }
+
+      @Override
+      public InputStream getObject(String bucket, String key) throws IOException {
+        return simulated.getObject(bucket, key);
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  @Test
+  public void testHedgeSlowRequest() throws Exception {
+    SimulatedObjectStore simulated = new SimulatedObjectStore().withLatency(2, 0);
+    S3ObjectSummary summary = put(simulated, "bar/_4.tim", 64 * 1024);
+    byte[] expected = new byte[64 * 1024];
+    new Random(expected.length).nextBytes(expected);
+    AtomicBoolean stalled = new AtomicBoolean();
+    ObjectStore store = stallLastKilobyte(simulated, stalled);
+
+    // a second request slot leaves room for the hedge
+    S3BlockFetcher fetcher = new S3BlockFetcher(1024, 2, S3BlockFetcher.DEFAULT_MAX_INFLIGHT_BYTES, 0, 90, 5);
+    // learn the usual time to first byte from the first 63 requests, then hit the slow one
+    long wins = Metrics.getInstance().counter(Metrics.S3_HEDGE_WINS);
+    long start = System.nanoTime();
+    Map<S3FileBlock, ByteBuffer> data = new HashMap<>();
+    S3FileBlock block = new S3FileBlock(summary, 64 * 1024, 0);
+    data.put(block, ByteBuffer.allocate(block.length()));
+    fetcher.fetchAsync(store, summary, data, null, S3BlockFetcher.Priority.DEMAND).get();
+    assertTrue(System.nanoTime() - start < 1500L * 1000 * 1000);
+    assertTrue(stalled.get());
+    assertArrayEquals(expected, data.get(block).array());
+    assertEquals(wins + 1, Metrics.getInstance().counter(Metrics.S3_HEDGE_WINS));
+  }
+
+  @Test
+  public void testNoHedgeBeyondRequestLimit() throws Exception {
+    SimulatedObjectStore simulated = new SimulatedObjectStore().withLatency(2, 0);
+    S3ObjectSummary summary = put(simulated, "bar/_5.tim", 64 * 1024);
+    AtomicBoolean stalled = new AtomicBoolean();
+    ObjectStore store = stallLastKilobyte(simulated, stalled);
+
+    // the stalled request holds the only slot, so it is not duplicated
+    S3BlockFetcher fetcher = new S3BlockFetcher(1024, 1, S3BlockFetcher.DEFAULT_MAX_INFLIGHT_BYTES, 0, 90, 5);
+    long hedged = Metrics.getInstance().counter(Metrics.S3_HEDGED);
+    Map<S3FileBlock, ByteBuffer> data = new HashMap<>();
+    S3FileBlock block = new S3FileBlock(summary, 64 * 1024, 0);
+    data.put(block, ByteBuffer.allocate(block.length()));
+    fetcher.fetchAsync(store, summary, data, null, S3BlockFetcher.Priority.DEMAND).get();
+    assertTrue(stalled.get());
+    assertEquals(hedged, Metrics.getInstance().counter(Metrics.S3_HEDGED));
+  }
+}
@@ -0,0 +1,121 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class S3BlockIndexInputTest {
+  private static final int LENGTH = 1024 * 1024 * 2 + 100;
+
+  private static byte[] data(long seed) {
+    byte[] data = new byte[LENGTH];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+
+  private static S3File file(String key, byte[] data) throws Exception {
+    SimulatedObjectStore store = new SimulatedObjectStore();
+    store.putObject("foo", key, data);
+    S3ObjectSummary summary = store.listObjects("foo", key).get(0);
+    return new S3File(store, summary);
+  }
+
+  @Test
+  public void testReadAcrossBlocks() throws Exception {
+    byte[] data = data(0);
+    S3File file = file("input/_0.tim", data);
+    int blockSize = file.blockSize;
+    assertTrue(blockSize < LENGTH);
+
+    try (S3BlockIndexInput in = new S3BlockIndexInput(file)) {
+      assertEquals(LENGTH, in.length());
+      byte[] read = new byte[LENGTH];
+      in.readBytes(read, 0, 10);
+      in.readBytes(read, 10, LENGTH - 10);
+      assertArrayEquals(data, read);
+      assertEquals(LENGTH, in.getFilePointer());
+
+      // multi-byte reads straddling a block boundary
+      ByteBuffer expected = ByteBuffer.wrap(data);
+      in.seek(blockSize - 3);
+      assertEquals(expected.getLong(blockSize - 3), in.readLong());
+      in.seek(blockSize - 1);
+      assertEquals(expected.getShort(blockSize - 1), in.readShort());
+      assertEquals(expected.getInt(blockSize + 1), in.readInt());
+      assertEquals(data[blockSize + 5], in.readByte());
+
+      in.seek(LENGTH);
+      try {
+        in.readByte();
+        fail("expected EOF");
+      } catch (EOFException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testClonesAndSlicesAreIndependent() throws Exception {
+    byte[] data = data(1);
+    S3File file = file("input/_1.tim", data);
+    int blockSize = file.blockSize;
+
+    S3BlockIndexInput in = new S3BlockIndexInput(file);
+    in.seek(100);
+    IndexInput clone = in.clone();
+    assertEquals(100, clone.getFilePointer());
+    clone.seek(blockSize * 2);
+    assertEquals(data[blockSize * 2], clone.readByte());
+    assertEquals(data[100], in.readByte());
+
+    IndexInput slice = in.slice("test", blockSize - 10, 20);
+    assertEquals(20, slice.length());
+    byte[] read = new byte[20];
+    slice.readBytes(read, 0, 20);
+    assertArrayEquals(Arrays.copyOfRange(data, blockSize - 10, blockSize + 10), read);
+    try {
+      slice.readByte();
+      fail("expected EOF at the end of the slice");
+    } catch (EOFException e) {
+      // expected
+    }
+
+    // closing the original does not affect the clone, which loads its own block
+    in.close();
+    clone.seek(0);
+    assertEquals(data[0], clone.readByte());
+    slice.close();
+    clone.close();
+  }
+
+  @Test
+  public void testRandomAccess() throws Exception {
+    byte[] data = data(2);
+    S3File file = file("input/_2.tim", data);
+    int blockSize = file.blockSize;
+    ByteBuffer expected = ByteBuffer.wrap(data);
+
+    try (S3BlockIndexInput in = new S3BlockIndexInput(file)) {
+      RandomAccessInput slice = in.randomAccessSlice(blockSize, LENGTH - blockSize);
+      assertEquals(data[blockSize], slice.readByte(0));
+      assertEquals(expected.getLong(blockSize * 2 - 4), slice.readLong(blockSize - 4));
+      assertEquals(expected.getInt(blockSize * 2 - 2), slice.readInt(blockSize - 2));
+      assertEquals(expected.getShort(blockSize * 2 - 1), slice.readShort(blockSize - 1));
+      assertEquals(expected.getLong(blockSize + 8), slice.readLong(8));
+      try {
+        slice.readInt(LENGTH - blockSize - 2);
+        fail("expected EOF");
+      } catch (EOFException e) {
+        // expected
+      }
+    }
+  }
+}
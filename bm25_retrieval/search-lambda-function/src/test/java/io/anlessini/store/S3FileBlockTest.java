@@ -6,6 +6,7 @@ import org.junit.Test;
 import java.util.List;
 
 import static io.anlessini.store.S3FileBlock.DEFAULT_BLOCK_SIZE;
+import static io.anlessini.store.Summaries.summary;
 import static org.junit.Assert.*;
 
 public class S3FileBlockTest {
@@ -47,4 +48,16 @@ public class S3FileBlockTest {
     assertEquals(DEFAULT_BLOCK_SIZE * 4, fb.get(0).offset);
     assertEquals(DEFAULT_BLOCK_SIZE / 2, fb.get(0).length());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testBlockSizeIsPartOfIdentity() {
+    S3ObjectSummary summary = summary("bar", 4096);
+    S3FileBlock small = new S3FileBlock(summary, 1024, 0);
+    S3FileBlock large = new S3FileBlock(summary, 4096, 0);
+    // the first block at either size starts at 0, but they hold different bytes
+    assertEquals(small.offset, large.offset);
+    assertNotEquals(small, large);
+    assertEquals(small, new S3FileBlock(summary, 1024, 0));
+    assertEquals(small.hashCode(), new S3FileBlock(summary, 1024, 0).hashCode());
+  }
+}
@@ -0,0 +1,89 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import io.anserini.index.IndexArgs;
+import io.anserini.search.query.BagOfWordsQueryGenerator;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+public class SimulatedObjectStoreTest {
+  public static final String TEST_BUCKET = "test-bucket";
+  public static final String TEST_KEY = "test-key";
+  public static final Path TEST_INDEX = Paths.get("src/test/resources/sample_index/trec/collection1/lucene-index.collection1.pos+docvectors+rawdocs+contents");
+
+  @Test
+  public void testReadS3Directory() throws Exception {
+    SimulatedObjectStore store = new SimulatedObjectStore().withLatency(5, 5);
+    store.putDirectory(TEST_BUCKET, TEST_KEY, TEST_INDEX);
+
+    S3Directory s3Directory = new S3Directory(store, TEST_BUCKET, TEST_KEY);
+    IndexReader reader = DirectoryReader.open(s3Directory);
+    IndexSearcher searcher = new IndexSearcher(reader);
+    searcher.setSimilarity(new BM25Similarity(0.9f, 0.4f));
+    searcher.setQueryCache(null);
+
+    assertEquals(2, reader.maxDoc());
+
+    Analyzer analyzer = new EnglishAnalyzer();
+    Query query = new BagOfWordsQueryGenerator().buildQuery(IndexArgs.CONTENTS, analyzer, "Hopefully we get this right");
+    TopDocs hits = searcher.search(query, 1);
+    assertEquals(1, hits.scoreDocs.length);
+    assertEquals("AP-0001", searcher.doc(hits.scoreDocs[0].doc).get(IndexArgs.ID));
+    assertTrue(store.stats.requests.get() > 0);
+  }
+
+  @Test
+  public void testRangeAndBandwidth() throws Exception {
+    byte[] data = new byte[256 * 1024];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    SimulatedObjectStore store = new SimulatedObjectStore().withBandwidth(1024 * 1024, 0);
+    store.putObject(TEST_BUCKET, "blob", data);
+
+    long start = System.nanoTime();
+    byte[] read;
+    try (InputStream in = store.getObject(TEST_BUCKET, "blob", 1024, data.length - 1024)) {
+      read = IOUtils.toByteArray(in);
+    }
+    long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+    assertEquals(data.length - 1024, read.length);
+    assertEquals(data[1024], read[0]);
+    assertEquals(data[data.length - 1], read[read.length - 1]);
+    // 255 KB at 1 MB/s
+    assertTrue("elapsed " + elapsedMillis + " ms", elapsedMillis >= 200);
+  }
+
+  @Test
+  public void testThrottling() throws Exception {
+    SimulatedObjectStore store = new SimulatedObjectStore().withThrottling(0, 2);
+    store.putObject(TEST_BUCKET, "blob", "hello".getBytes(StandardCharsets.UTF_8));
+
+    store.getObject(TEST_BUCKET, "blob", 0, 5).close();
+    store.getObject(TEST_BUCKET, "blob", 0, 5).close();
+    try {
+      store.getObject(TEST_BUCKET, "blob", 0, 5).close();
+      fail("expected 503 SlowDown");
+    } catch (AmazonS3Exception e) {
+      assertEquals(503, e.getStatusCode());
+      assertEquals("SlowDown", e.getErrorCode());
+    }
+    assertEquals(1, store.stats.throttled.get());
+  }
+}
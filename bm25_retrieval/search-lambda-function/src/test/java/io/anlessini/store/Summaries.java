@@ -0,0 +1,19 @@
+package io.anlessini.store;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Object summaries for tests that need a file of some name and size but no contents
+ */
+final class Summaries {
+  private Summaries() {
+  }
+
+  static S3ObjectSummary summary(String key, long size) {
+    S3ObjectSummary summary = new S3ObjectSummary();
+    summary.setBucketName("foo");
+    summary.setKey(key);
+    summary.setSize(size);
+    return summary;
+  }
+}
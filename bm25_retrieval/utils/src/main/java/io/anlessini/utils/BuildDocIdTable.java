@@ -0,0 +1,79 @@
+package io.anlessini.utils;
+
+import io.anlessini.DocIdTable;
+import io.anserini.index.IndexArgs;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.Bits;
+import org.kohsuke.args4j.*;
+
+import java.io.BufferedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Writes the {@link DocIdTable} of a local index into the index directory, so that the search function loads every
+ * document's id with a single read instead of walking the id doc values. Run it before {@link BuildIndexManifest}.
+ */
+public class BuildDocIdTable {
+  private static final Logger LOG = LogManager.getLogger(BuildDocIdTable.class);
+
+  public static class Args {
+    @Option(name = "-index", metaVar = "[path]", required = true, usage = "Local index directory.")
+    public String index;
+
+    @Option(name = "-output", metaVar = "[file]", usage = "Output table, default to " + DocIdTable.NAME + " in the index directory.")
+    public String output;
+
+    @Option(name = "-field", metaVar = "[name]", usage = "The id field, read from doc values if it has them and otherwise from stored fields.")
+    public String field = IndexArgs.ID;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Args tableArgs = new Args();
+    CmdLineParser parser = new CmdLineParser(tableArgs, ParserProperties.defaults().withUsageWidth(100));
+
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.err.println("Example: BuildDocIdTable" + parser.printExample(OptionHandlerFilter.REQUIRED));
+      return;
+    }
+
+    Path indexPath = Paths.get(tableArgs.index);
+    DocIdTable table;
+    byte[] commitId;
+    try (FSDirectory directory = FSDirectory.open(indexPath); IndexReader reader = DirectoryReader.open(directory)) {
+      // the search function only trusts a table built from the commit it opens
+      commitId = DocIdTable.commitId(reader);
+      table = DocIdTable.fromDocValues(reader, tableArgs.field);
+      if (table == null) {
+        LOG.info("No doc values for " + tableArgs.field + ", reading stored fields");
+        Bits liveDocs = MultiBits.getLiveDocs(reader);
+        DocIdTable.Builder builder = new DocIdTable.Builder(reader.maxDoc());
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+          if (liveDocs != null && !liveDocs.get(doc)) continue;
+          String id = reader.document(doc).get(tableArgs.field);
+          if (id != null) {
+            builder.add(doc, id);
+          }
+        }
+        table = builder.build();
+      }
+    }
+
+    Path output = tableArgs.output != null ? Paths.get(tableArgs.output) : indexPath.resolve(DocIdTable.NAME);
+    try (OutputStreamDataOutput out = new OutputStreamDataOutput(new BufferedOutputStream(Files.newOutputStream(output)))) {
+      table.write(out, commitId);
+    }
+    LOG.info("Wrote ids of " + table.maxDoc() + " documents (" + table.ramBytesUsed() + " bytes in memory) to " + output);
+  }
+}
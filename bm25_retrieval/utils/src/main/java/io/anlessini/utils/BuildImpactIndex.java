@@ -0,0 +1,159 @@
+package io.anlessini.utils;
+
+import io.anlessini.DocIdTable;
+import io.anlessini.ImpactIndex;
+import io.anserini.index.IndexArgs;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiBits;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.kohsuke.args4j.*;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Writes an {@link ImpactIndex} of a local index into the index directory: the BM25 score of every posting for fixed
+ * k1 and b, computed by Lucene's {@link BM25Similarity} and quantized to {@code -bits} bits. Run it before
+ * {@link BuildIndexManifest}.
+ */
+public class BuildImpactIndex {
+  private static final Logger LOG = LogManager.getLogger(BuildImpactIndex.class);
+
+  public static class Args {
+    @Option(name = "-index", metaVar = "[path]", required = true, usage = "Local index directory.")
+    public String index;
+
+    @Option(name = "-output", metaVar = "[path]", usage = "Output directory, default to the index directory.")
+    public String output;
+
+    @Option(name = "-field", metaVar = "[name]", usage = "The field to score.")
+    public String field = IndexArgs.CONTENTS;
+
+    @Option(name = "-bm25.k1", metaVar = "[number]", usage = "BM25: k1 parameter")
+    public float bm25k1 = 0.9f;
+
+    @Option(name = "-bm25.b", metaVar = "[number]", usage = "BM25: b parameter")
+    public float bm25b = 0.4f;
+
+    @Option(name = "-bits", metaVar = "[number]", usage = "Bits of each quantized score, between 1 and 16.")
+    public int bits = 8;
+  }
+
+  /**
+   * Calls the consumer with the postings of every term of the field and their BM25 scores
+   */
+  private interface TermConsumer {
+    void accept(BytesRef term, int[] docs, float[] scores, int count) throws IOException;
+  }
+
+  private static void forEachTerm(IndexReader reader, String field, Similarity similarity, byte[] norms,
+                                  TermConsumer consumer) throws IOException {
+    IndexSearcher searcher = new IndexSearcher(reader);
+    CollectionStatistics collectionStats = searcher.collectionStatistics(field);
+    Bits liveDocs = MultiBits.getLiveDocs(reader);
+    Terms terms = MultiTerms.getTerms(reader, field);
+    TermsEnum termsEnum = terms.iterator();
+    int[] docs = new int[1024];
+    float[] scores = new float[1024];
+    PostingsEnum postings = null;
+    for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+      TermStatistics termStats = new TermStatistics(term, termsEnum.docFreq(), termsEnum.totalTermFreq());
+      Similarity.SimScorer scorer = similarity.scorer(1f, collectionStats, termStats);
+      if (docs.length < termsEnum.docFreq()) {
+        docs = new int[termsEnum.docFreq()];
+        scores = new float[termsEnum.docFreq()];
+      }
+      int count = 0;
+      postings = termsEnum.postings(postings, PostingsEnum.FREQS);
+      for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+        if (liveDocs != null && !liveDocs.get(doc)) continue;
+        docs[count] = doc;
+        scores[count++] = scorer.score(postings.freq(), norms[doc]);
+      }
+      consumer.accept(term, docs, scores, count);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Args impactArgs = new Args();
+    CmdLineParser parser = new CmdLineParser(impactArgs, ParserProperties.defaults().withUsageWidth(100));
+
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.err.println("Example: BuildImpactIndex" + parser.printExample(OptionHandlerFilter.REQUIRED));
+      return;
+    }
+
+    if (impactArgs.bits < 1 || impactArgs.bits > 16) {
+      System.err.println("-bits must be between 1 and 16");
+      return;
+    }
+
+    Path indexPath = Paths.get(impactArgs.index);
+    Path output = impactArgs.output != null ? Paths.get(impactArgs.output) : indexPath;
+    Similarity similarity = new BM25Similarity(impactArgs.bm25k1, impactArgs.bm25b);
+    try (FSDirectory directory = FSDirectory.open(indexPath); IndexReader reader = DirectoryReader.open(directory)) {
+      // the scorer decodes the document length from the norm's low byte, so a byte per document holds them all
+      byte[] norms = new byte[reader.maxDoc()];
+      NumericDocValues normValues = MultiDocValues.getNormValues(reader, impactArgs.field);
+      if (normValues != null) {
+        for (int doc = normValues.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = normValues.nextDoc()) {
+          norms[doc] = (byte) normValues.longValue();
+        }
+      }
+
+      // the first pass finds the highest score, which becomes the highest impact
+      float[] maxScore = new float[1];
+      forEachTerm(reader, impactArgs.field, similarity, norms, (term, docs, scores, count) -> {
+        for (int i = 0; i < count; i++) {
+          maxScore[0] = Math.max(maxScore[0], scores[i]);
+        }
+      });
+      LOG.info("Highest score " + maxScore[0] + ", quantizing to " + impactArgs.bits + " bits");
+
+      long[] postings = new long[1];
+      try (ImpactIndex.Writer writer = new ImpactIndex.Writer(
+          new BufferedOutputStream(Files.newOutputStream(output.resolve(ImpactIndex.TERM_INDEX))),
+          new BufferedOutputStream(Files.newOutputStream(output.resolve(ImpactIndex.TERMS))),
+          new BufferedOutputStream(Files.newOutputStream(output.resolve(ImpactIndex.POSTINGS))),
+          impactArgs.bm25k1, impactArgs.bm25b, maxScore[0], (1 << impactArgs.bits) - 1, reader.maxDoc(),
+          DocIdTable.commitId(reader))) {
+        int[][] impacts = new int[1][1024];
+        forEachTerm(reader, impactArgs.field, similarity, norms, (term, docs, scores, count) -> {
+          if (impacts[0].length < count) impacts[0] = new int[docs.length];
+          for (int i = 0; i < count; i++) {
+            impacts[0][i] = writer.impact(scores[i]);
+          }
+          byte[] bytes = new byte[term.length];
+          System.arraycopy(term.bytes, term.offset, bytes, 0, term.length);
+          writer.add(bytes, docs, impacts[0], count);
+          postings[0] += count;
+        });
+      }
+      LOG.info("Wrote " + postings[0] + " postings to " + output);
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package io.anlessini.utils;
+
+import io.anlessini.store.IndexManifest;
+import io.anlessini.store.S3Directory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.kohsuke.args4j.*;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Writes the {@link IndexManifest} of a local index directory into the directory, so that once the index is uploaded
+ * {@link S3Directory} opens it with a single GET instead of listing the prefix. Run it last, after every other file
+ * (including the prewarm manifest) has been written.
+ */
+public class BuildIndexManifest {
+  private static final Logger LOG = LogManager.getLogger(BuildIndexManifest.class);
+
+  public static class Args {
+    @Option(name = "-index", metaVar = "[path]", required = true, usage = "Local index directory.")
+    public String index;
+
+    @Option(name = "-output", metaVar = "[file]", usage = "Output manifest, default to " + IndexManifest.NAME + " in the index directory.")
+    public String output;
+
+    @Option(name = "-inline.size", metaVar = "[bytes]", usage = "Inline the contents of files up to this size, 0 to disable.")
+    public int inlineSize = 1024 * 16;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Args manifestArgs = new Args();
+    CmdLineParser parser = new CmdLineParser(manifestArgs, ParserProperties.defaults().withUsageWidth(100));
+
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.err.println("Example: BuildIndexManifest" + parser.printExample(OptionHandlerFilter.REQUIRED));
+      return;
+    }
+
+    Path indexPath = Paths.get(manifestArgs.index);
+    IndexManifest manifest = IndexManifest.fromDirectory(indexPath, manifestArgs.inlineSize);
+    Path output = manifestArgs.output != null ? Paths.get(manifestArgs.output) : indexPath.resolve(IndexManifest.NAME);
+    try (OutputStream out = Files.newOutputStream(output)) {
+      manifest.write(out);
+    }
+
+    long inlined = manifest.files.stream().filter(entry -> entry.data != null).count();
+    LOG.info("Wrote " + manifest.files.size() + " files (" + inlined + " inlined) to " + output);
+  }
+}
@@ -0,0 +1,125 @@
+package io.anlessini.utils;
+
+import io.anlessini.SearchLambda;
+import io.anlessini.SearchRequest;
+import io.anlessini.store.BlockAccessRecorder;
+import io.anlessini.store.PrewarmManifest;
+import io.anlessini.store.S3Directory;
+import io.anlessini.store.SimulatedObjectStore;
+import io.anserini.search.topicreader.TopicReader;
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.kohsuke.args4j.*;
+import org.kohsuke.args4j.spi.StringArrayOptionHandler;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays topics against a local index through {@link S3Directory}, exactly as the search lambda reads it, and writes
+ * the blocks the queries touched to a {@link PrewarmManifest} in the index directory. Upload it along with the index
+ * and the lambda will load those blocks during initialization.
+ */
+public class BuildPrewarmManifest {
+  private static final Logger LOG = LogManager.getLogger(BuildPrewarmManifest.class);
+
+  public static class Args {
+    @Option(name = "-index", metaVar = "[path]", required = true, usage = "Local index directory.")
+    public String index;
+
+    @Option(name = "-topics", metaVar = "[file]", handler = StringArrayOptionHandler.class, required = true, usage = "topics file")
+    public String[] topics;
+
+    @Option(name = "-topic.reader", required = true, usage = "TopicReader to use.")
+    public String topicReader;
+
+    @Option(name = "-topic.fields", handler = StringArrayOptionHandler.class, usage = "Which field of the query should be used, default \"title\".")
+    public String[] topicFields = new String[]{"title"};
+
+    @Option(name = "-output", metaVar = "[file]", usage = "Output manifest, default to " + PrewarmManifest.NAME + " in the index directory.")
+    public String output;
+
+    @Option(name = "-threads", metaVar = "[Number]", usage = "Number of Threads")
+    public int threads = 8;
+
+    @Option(name = "-hits", metaVar = "[number]", usage = "max number of hits to return")
+    public int hits = 1000;
+
+    @Option(name = "-bm25.k1", metaVar = "[number]", usage = "BM25: k1 parameter")
+    public float bm25k1 = 0.9f;
+
+    @Option(name = "-bm25.b", metaVar = "[number]", usage = "BM25: b parameter")
+    public float bm25b = 0.4f;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <K> void main(String[] args) throws Exception {
+    Args manifestArgs = new Args();
+    CmdLineParser parser = new CmdLineParser(manifestArgs, ParserProperties.defaults().withUsageWidth(100));
+
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.err.println("Example: BuildPrewarmManifest" + parser.printExample(OptionHandlerFilter.REQUIRED));
+      return;
+    }
+
+    final long start = System.nanoTime();
+    SortedMap<K, Map<String, String>> topics = new TreeMap<>();
+    for (String topicsFile : manifestArgs.topics) {
+      Path path = Paths.get(topicsFile);
+      TopicReader<K> tr = (TopicReader<K>) Class.forName("io.anserini.search.topicreader." + manifestArgs.topicReader + "TopicReader")
+          .getConstructor(Path.class).newInstance(path);
+      topics.putAll(tr.read());
+    }
+
+    Path indexPath = Paths.get(manifestArgs.index);
+    SimulatedObjectStore store = new SimulatedObjectStore();
+    store.putDirectory("local", "index", indexPath);
+    SearchLambda searcher = new SearchLambda(new S3Directory(store, "local", "index"));
+
+    BlockAccessRecorder recorder = BlockAccessRecorder.start();
+    AtomicLong processedQueries = new AtomicLong();
+    ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(manifestArgs.threads);
+    for (Map<String, String> fieldValues : topics.values()) {
+      executor.execute(() -> {
+        StringBuilder sb = new StringBuilder();
+        for (String field : manifestArgs.topicFields) {
+          sb.append(" ").append(fieldValues.get(field.trim()));
+        }
+        searcher.handleRequest(new SearchRequest(sb.toString(), manifestArgs.hits, manifestArgs.bm25k1, manifestArgs.bm25b), null);
+        processedQueries.incrementAndGet();
+      });
+    }
+    executor.shutdown();
+    while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+      LOG.info(String.format("%d queries processed", processedQueries.get()));
+    }
+    BlockAccessRecorder.stop();
+
+    PrewarmManifest manifest = recorder.toManifest();
+    manifest.queries = processedQueries.get();
+    Path output = manifestArgs.output != null ? Paths.get(manifestArgs.output) : indexPath.resolve(PrewarmManifest.NAME);
+    try (OutputStream out = Files.newOutputStream(output)) {
+      manifest.write(out);
+    }
+
+    long totalBytes = 0;
+    for (PrewarmManifest.Entry entry : manifest.entries) {
+      totalBytes += entry.length;
+    }
+    final long durationMillis = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    LOG.info("Wrote " + manifest.entries.size() + " blocks (" + totalBytes + " bytes) touched by " + manifest.queries
+        + " queries to " + output + " in " + DurationFormatUtils.formatDuration(durationMillis, "HH:mm:ss"));
+  }
+}
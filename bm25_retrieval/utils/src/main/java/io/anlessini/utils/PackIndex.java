@@ -0,0 +1,72 @@
+package io.anlessini.utils;
+
+import io.anlessini.store.IndexManifest;
+import io.anlessini.store.PackedIndex;
+import io.anlessini.store.PrewarmManifest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.kohsuke.args4j.*;
+import org.kohsuke.args4j.spi.StringArrayOptionHandler;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Packs a local index directory into a single {@link PackedIndex} object. Upload it as {@link PackedIndex#NAME} under
+ * the index prefix and {@code S3Directory} opens the index with one GET. Build the {@link PrewarmManifest} first, so
+ * the small files are ordered by how often the queries read them.
+ */
+public class PackIndex {
+  private static final Logger LOG = LogManager.getLogger(PackIndex.class);
+
+  public static class Args {
+    @Option(name = "-index", metaVar = "[path]", required = true, usage = "Local index directory.")
+    public String index;
+
+    @Option(name = "-output", metaVar = "[file]", usage = "Output pack, default to " + PackedIndex.NAME + " in the index directory.")
+    public String output;
+
+    @Option(name = "-head.file.size", metaVar = "[bytes]", usage = "Pack files up to this size at the front of the pack.")
+    public int headFileSize = PackedIndex.DEFAULT_MAX_HEAD_FILE_SIZE;
+
+    @Option(name = "-compress", handler = StringArrayOptionHandler.class, usage = "Store files with these extensions LZ4 compressed, e.g. \"pos tvd fdt\".")
+    public String[] compress = new String[]{};
+  }
+
+  public static void main(String[] args) throws Exception {
+    Args packArgs = new Args();
+    CmdLineParser parser = new CmdLineParser(packArgs, ParserProperties.defaults().withUsageWidth(100));
+
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.err.println("Example: PackIndex" + parser.printExample(OptionHandlerFilter.REQUIRED));
+      return;
+    }
+
+    Path indexPath = Paths.get(packArgs.index);
+    Path output = packArgs.output != null ? Paths.get(packArgs.output) : indexPath.resolve(PackedIndex.NAME);
+    IndexManifest manifest;
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(output))) {
+      manifest = PackedIndex.write(indexPath, out, packArgs.headFileSize, new HashSet<>(Arrays.asList(packArgs.compress)));
+    }
+
+    long headFiles = manifest.files.stream().filter(entry -> entry.offset + entry.size <= manifest.headSize).count();
+    LOG.info("Packed " + manifest.files.size() + " files into " + output + " (" + Files.size(output) + " bytes), "
+        + headFiles + " files in the first " + manifest.headSize + " bytes");
+    for (IndexManifest.Entry entry : manifest.files) {
+      if (entry.chunks != null) {
+        long compressedSize = entry.chunks[entry.chunks.length - 1];
+        LOG.info(String.format("Compressed %s from %,d to %,d bytes (%.1f%%)", entry.name, entry.size, compressedSize,
+            100.0 * compressedSize / entry.size));
+      }
+    }
+  }
+}
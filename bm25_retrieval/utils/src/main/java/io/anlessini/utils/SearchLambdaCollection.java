@@ -52,6 +52,9 @@ public class SearchLambdaCollection<K> implements Closeable {
         " For TREC ad hoc topics, description or narrative can be used.")
     public String[] topicFields = new String[]{"title"};
 
+    @Option(name = "-batch.size", metaVar = "[number]", usage = "Number of topics to send in each invocation of the search lambda.")
+    public int batchSize = 1;
+
     @Option(name = "-hits", metaVar = "[number]", usage = "max number of hits to return")
     public int hits = 1000;
 
@@ -61,6 +64,9 @@ public class SearchLambdaCollection<K> implements Closeable {
     @Option(name = "-bm25.b", metaVar = "[number]", usage = "BM25: b parameter")
     public float bm25b = 0.4f;
 
+    @Option(name = "-approximate", usage = "Allow ranking on the impact index, by quantized scores.")
+    public Boolean approximate = false;
+
     @Option(name = "-remove.duplicates", usage = "Remove duplicate docids when writing final run output.")
     public Boolean removeDuplicates = false;
 
@@ -107,61 +113,25 @@ public class SearchLambdaCollection<K> implements Closeable {
     final long start = System.nanoTime();
     final ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(args.threads);
 
+    List<K> batch = new ArrayList<>();
+    List<SearchRequest> requests = new ArrayList<>();
     for (Map.Entry<K, Map<String, String>> topicEntry : topics.entrySet()) {
-      final K qid = topicEntry.getKey();
-      final Map<String, String> fieldValues = topicEntry.getValue();
-      executor.execute(() -> {
-        StringBuilder sb = new StringBuilder();
-        for (String field : args.topicFields) {
-          sb.append(" ").append(fieldValues.get(field.trim()));
-        }
-        String queryString = sb.toString();
-
-        SearchRequest request = new SearchRequest(queryString, args.hits, args.bm25k1, args.bm25b);
-        InvokeRequest invokeRequest = new InvokeRequest()
-            .withFunctionName(args.lambda)
-            .withInvocationType(InvocationType.RequestResponse)
-            .withPayload(gson.toJson(request));
-
-        InvokeResult invokeResult = lambda.invoke(invokeRequest);
-        String payload = StandardCharsets.UTF_8.decode(invokeResult.getPayload().asReadOnlyBuffer()).toString();
-
-        if (invokeResult.getStatusCode() != 200 || invokeResult.getFunctionError() != null) {
-          String logMessage = invokeResult.getLogResult() != null ? new String(Base64.getDecoder().decode(invokeResult.getLogResult())) : "";
-          throw new RuntimeException("Invocation " + request + " failed with code=" + invokeResult.getStatusCode() +
-              "\nerror=" + invokeResult.getFunctionError() + "\npayload=" + payload + "\nlogMessage=" + logMessage);
-        }
-
-        SearchResponse response = gson.fromJson(payload, SearchResponse.class);
-
-        Set<String> docids = new HashSet<>();
-        int rank = 1;
-        StringBuilder buf = new StringBuilder();
-        for (SearchResponse.Hit hit : response.hits) {
-          String docid = hit.docid;
-          if (args.stripSegmentId) {
-            docid = docid.split("\\.")[0];
-          }
-
-          if (args.removeDuplicates) {
-            if (docids.contains(docid)) {
-              continue;
-            } else {
-              docids.add(docid);
-            }
-          }
-
-          buf.append(String.format(Locale.US, "%s Q0 %s %d %f %s\n",
-              qid, docid, rank, hit.score, args.runtag));
-
-          rank++;
-        }
-        out.println(buf.toString());
-        long processed = processedQueries.incrementAndGet();
-        if (processed % args.reportInterval == 0) {
-          LOG.info(String.format("%d queries processed", processed));
-        }
-      });
+      StringBuilder sb = new StringBuilder();
+      for (String field : args.topicFields) {
+        sb.append(" ").append(topicEntry.getValue().get(field.trim()));
+      }
+      batch.add(topicEntry.getKey());
+      SearchRequest request = new SearchRequest(sb.toString(), args.hits, args.bm25k1, args.bm25b);
+      request.setApproximate(args.approximate);
+      requests.add(request);
+      if (batch.size() >= args.batchSize) {
+        submit(executor, batch, requests);
+        batch = new ArrayList<>();
+        requests = new ArrayList<>();
+      }
+    }
+    if (!batch.isEmpty()) {
+      submit(executor, batch, requests);
     }
 
     executor.shutdown();
@@ -183,6 +153,79 @@ public class SearchLambdaCollection<K> implements Closeable {
     LOG.info(processedQueries.get() + " topics processed in " + DurationFormatUtils.formatDuration(durationMillis, "HH:mm:ss"));
   }
 
+  /**
+   * Searches the topics in a single invocation, as a batch request unless there is only one
+   */
+  private void submit(ThreadPoolExecutor executor, List<K> qids, List<SearchRequest> queries) {
+    executor.execute(() -> {
+      SearchRequest request;
+      if (queries.size() == 1) {
+        request = queries.get(0);
+      } else {
+        request = new SearchRequest();
+        request.setQueries(queries);
+      }
+      SearchResponse response = invoke(request);
+      List<SearchResponse> results = request.isBatch() ? response.results : Collections.singletonList(response);
+      if (results == null || results.size() != qids.size()) {
+        throw new RuntimeException("Invocation " + request + " returned " + (results == null ? 0 : results.size()) +
+            " results for " + qids.size() + " queries");
+      }
+
+      for (int i = 0; i < qids.size(); i++) {
+        write(qids.get(i), results.get(i));
+      }
+      long processed = processedQueries.addAndGet(qids.size());
+      if (processed / args.reportInterval != (processed - qids.size()) / args.reportInterval) {
+        LOG.info(String.format("%d queries processed", processed));
+      }
+    });
+  }
+
+  private SearchResponse invoke(SearchRequest request) {
+    InvokeRequest invokeRequest = new InvokeRequest()
+        .withFunctionName(args.lambda)
+        .withInvocationType(InvocationType.RequestResponse)
+        .withPayload(gson.toJson(request));
+
+    InvokeResult invokeResult = lambda.invoke(invokeRequest);
+    String payload = StandardCharsets.UTF_8.decode(invokeResult.getPayload().asReadOnlyBuffer()).toString();
+
+    if (invokeResult.getStatusCode() != 200 || invokeResult.getFunctionError() != null) {
+      String logMessage = invokeResult.getLogResult() != null ? new String(Base64.getDecoder().decode(invokeResult.getLogResult())) : "";
+      throw new RuntimeException("Invocation " + request + " failed with code=" + invokeResult.getStatusCode() +
+          "\nerror=" + invokeResult.getFunctionError() + "\npayload=" + payload + "\nlogMessage=" + logMessage);
+    }
+
+    return gson.fromJson(payload, SearchResponse.class);
+  }
+
+  private void write(K qid, SearchResponse response) {
+    Set<String> docids = new HashSet<>();
+    int rank = 1;
+    StringBuilder buf = new StringBuilder();
+    for (SearchResponse.Hit hit : response.hits) {
+      String docid = hit.docid;
+      if (args.stripSegmentId) {
+        docid = docid.split("\\.")[0];
+      }
+
+      if (args.removeDuplicates) {
+        if (docids.contains(docid)) {
+          continue;
+        } else {
+          docids.add(docid);
+        }
+      }
+
+      buf.append(String.format(Locale.US, "%s Q0 %s %d %f %s\n",
+          qid, docid, rank, hit.score, args.runtag));
+
+      rank++;
+    }
+    out.println(buf.toString());
+  }
+
   @Override
   public void close() {
     out.close();